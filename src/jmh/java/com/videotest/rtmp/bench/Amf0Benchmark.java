@@ -0,0 +1,121 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.chunk.type.AMF0;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OBS 가 보내는 connect / publish / @setDataFrame(onMetaData) 와 비슷한 페이로드로 AMF0 인코딩/디코딩을 잰다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Amf0Benchmark {
+
+	@Param({"connect", "publish", "onMetaData"})
+	public String command;
+
+	private List<Object> objects;
+	private ByteBuf encoded;
+	private ByteBuf out;
+
+	@Setup
+	public void setup() throws Exception {
+		objects = switch (command) {
+			case "connect" -> connect();
+			case "publish" -> publish();
+			default -> onMetaData();
+		};
+		encoded = AMF0.encodeAll(PooledByteBufAllocator.DEFAULT, objects);
+		out = PooledByteBufAllocator.DEFAULT.buffer(encoded.readableBytes());
+	}
+
+	@TearDown
+	public void tearDown() {
+		encoded.release();
+		out.release();
+	}
+
+	@Benchmark
+	public List<Object> decodeAll() throws Exception {
+		return AMF0.decodeAll(encoded.duplicate());
+	}
+
+	// 인코더처럼 채널 버퍼에 이어 쓰는 경우
+	@Benchmark
+	public int encodeAll() throws Exception {
+		out.clear();
+		AMF0.encodeAll(out, objects);
+		return out.readableBytes();
+	}
+
+	static List<Object> connect() {
+		LinkedHashMap<String, Object> commandObject = new LinkedHashMap<>();
+		commandObject.put("app", "kyu");
+		commandObject.put("type", "nonprivate");
+		commandObject.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+		commandObject.put("swfUrl", "rtmp://localhost:1935/kyu");
+		commandObject.put("tcUrl", "rtmp://localhost:1935/kyu");
+		commandObject.put("fpad", false);
+		commandObject.put("capabilities", 239.0);
+		commandObject.put("audioCodecs", 3575.0);
+		commandObject.put("videoCodecs", 252.0);
+		commandObject.put("videoFunction", 1.0);
+		commandObject.put("objectEncoding", 0.0);
+		List<Object> list = new ArrayList<>();
+		list.add("connect");
+		list.add(1.0);
+		list.add(commandObject);
+		return list;
+	}
+
+	static List<Object> publish() {
+		List<Object> list = new ArrayList<>();
+		list.add("publish");
+		list.add(5.0);
+		list.add(null);
+		list.add("live_123456789_abcdefghijklmnop");
+		list.add("kyu");
+		return list;
+	}
+
+	static List<Object> onMetaData() {
+		Map<String, Object> metaData = new HashMap<>();
+		metaData.put("duration", 0.0);
+		metaData.put("fileSize", 0.0);
+		metaData.put("width", 1920.0);
+		metaData.put("height", 1080.0);
+		metaData.put("videocodecid", 7.0);
+		metaData.put("videodatarate", 6000.0);
+		metaData.put("framerate", 60.0);
+		metaData.put("audiocodecid", 10.0);
+		metaData.put("audiodatarate", 160.0);
+		metaData.put("audiosamplerate", 48000.0);
+		metaData.put("audiosamplesize", 16.0);
+		metaData.put("audiochannels", 2.0);
+		metaData.put("stereo", true);
+		metaData.put("2.1", false);
+		metaData.put("3.1", false);
+		metaData.put("4.0", false);
+		metaData.put("4.1", false);
+		metaData.put("5.1", false);
+		metaData.put("7.1", false);
+		metaData.put("encoder", "obs-output module (libobs version 30.0.0)");
+		List<Object> list = new ArrayList<>();
+		list.add("@setDataFrame");
+		list.add("onMetaData");
+		list.add(metaData);
+		return list;
+	}
+}
@@ -0,0 +1,78 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 청크 크기별 한 시청자의 비디오 인코딩 비용과 헤더 오버헤드
+ * 매번 새 메시지라 청크 본문을 직접 나눈다. (공유 본문을 쓰는 첫 시청자의 비용)
+ * headerBytes 를 ops 로 나누면 프레임 하나에 붙는 헤더 바이트다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkSizeBenchmark {
+
+	@Param({"128", "4096", "16384", "65536"})
+	public int chunkSize;
+
+	// 720p delta, 1080p delta, 1080p 키프레임 정도
+	@Param({"8192", "65536", "262144"})
+	public int frameSize;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Overhead {
+		public long headerBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			headerBytes = 0;
+		}
+	}
+
+	private ByteBuf payload;
+	private EmbeddedChannel channel;
+	private long timestamp;
+
+	@Setup
+	public void setup() {
+		payload = ChunkStreams.videoPayload(true, frameSize);
+		channel = new EmbeddedChannel(new RtmpEncoder());
+		channel.writeOutbound(new RtmpChunkMsg(chunkSize));
+		drain();
+	}
+
+	@TearDown
+	public void tearDown() {
+		channel.finishAndReleaseAll();
+		payload.release();
+	}
+
+	@Benchmark
+	public long encode(Overhead overhead) {
+		timestamp += 33;
+		channel.writeOutbound(new RtmpVideoMsg(timestamp, 33, payload.retainedDuplicate()));
+		long encoded = drain();
+		overhead.headerBytes += encoded - frameSize;
+		return encoded;
+	}
+
+	private long drain() {
+		long bytes = 0;
+		for (ByteBuf buf; (buf = channel.readOutbound()) != null; ) {
+			bytes += buf.readableBytes();
+			buf.release();
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,67 @@
+package com.videotest.rtmp.bench;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 벤치마크 입력용 RTMP 청크 스트림을 만든다.
+ */
+public final class ChunkStreams {
+
+	public static final int VIDEO_CSID = 6;
+
+	private ChunkStreams() {
+	}
+
+	/**
+	 * SetChunkSize 다음에 keyFrameInterval 마다 키프레임이 섞인 비디오 메시지를 이어붙인다.
+	 * 첫 메시지는 fmt0, 이후는 fmt1 + fmt3 으로 청크를 나눈다.
+	 */
+	public static ByteBuf videoStream(int chunkSize, int frames, int keyFrameInterval, int keyFrameSize, int deltaSize) {
+		ByteBuf out = Unpooled.buffer();
+		if (chunkSize != 128) {
+			ByteBuf setChunkSize = Unpooled.buffer(4).writeInt(chunkSize);
+			writeMessage(out, 2, 0, 0x01, 0, 0, setChunkSize, 128);
+			setChunkSize.release();
+		}
+		for (int i = 0; i < frames; i++) {
+			boolean keyFrame = i % keyFrameInterval == 0;
+			ByteBuf payload = videoPayload(keyFrame, keyFrame ? keyFrameSize : deltaSize);
+			writeMessage(out, VIDEO_CSID, i == 0 ? 0 : 1, 0x09, 1, i == 0 ? 0 : 33, payload, chunkSize);
+			payload.release();
+		}
+		return out;
+	}
+
+	public static ByteBuf videoPayload(boolean keyFrame, int size) {
+		ByteBuf payload = Unpooled.buffer(size);
+		payload.writeByte(keyFrame ? 0x17 : 0x27); // AVC key/inter frame
+		payload.writeByte(0x01); // AVC NALU
+		byte[] body = new byte[size - 2];
+		ThreadLocalRandom.current().nextBytes(body);
+		payload.writeBytes(body);
+		return payload;
+	}
+
+	/** fmt0 또는 fmt1 헤더로 시작해서 fmt3 청크로 이어지는 메시지 하나를 쓴다. */
+	public static void writeMessage(ByteBuf out, int csid, int fmt, int typeId, int msgStreamId,
+									int timestamp, ByteBuf payload, int chunkSize) {
+		int length = payload.readableBytes();
+		out.writeByte((fmt << 6) | csid);
+		out.writeMedium(timestamp);
+		out.writeMedium(length);
+		out.writeByte(typeId);
+		if (fmt == 0) {
+			out.writeIntLE(msgStreamId);
+		}
+		int offset = payload.readerIndex();
+		int end = offset + length;
+		out.writeBytes(payload, offset, Math.min(chunkSize, length));
+		for (offset += chunkSize; offset < end; offset += chunkSize) {
+			out.writeByte((3 << 6) | csid);
+			out.writeBytes(payload, offset, Math.min(chunkSize, end - offset));
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.videotest.rtmp.bench;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 쓰기를 바로 버리는 플레이어 채널
+ * flush 도 head 까지 내려가지 않으므로 여러 스레드에서 써도 outbound buffer 를 건드리지 않는다.
+ */
+public final class DiscardingChannels {
+
+	private DiscardingChannels() {
+	}
+
+	/**
+	 * @param handlers 버리는 핸들러 뒤(tail 쪽)에 둘 핸들러, 예를 들어 RtmpEncoder
+	 */
+	public static EmbeddedChannel newChannel(ChannelHandler... handlers) {
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+			@Override
+			public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+				ReferenceCountUtil.release(msg);
+				promise.trySuccess();
+			}
+
+			@Override
+			public void flush(ChannelHandlerContext ctx) {
+			}
+		});
+		channel.pipeline().addLast(handlers);
+		return channel;
+	}
+}
@@ -0,0 +1,89 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.server.RtmpProperties;
+import com.videotest.rtmp.server.stream.Stream;
+import com.videotest.rtmp.server.stream.StreamId;
+import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 시청자 입장 시 GOP 캐시를 개별 메시지로 보낼 때와 Aggregate 로 묶어 보낼 때의 비용
+ * buffers 를 ops 로 나누면 입장 한 번에 채널로 내려가는 버퍼 수(gathering write 항목 수), bytes 는 헤더를 포함한 전송량이다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GopBurstBenchmark {
+
+	// 2초 GOP, 30fps 비디오와 43fps 오디오
+	private static final int VIDEO_FRAMES = 60;
+	private static final int AUDIO_FRAMES = 86;
+
+	@Param({"false", "true"})
+	public boolean aggregate;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Burst {
+		public long buffers;
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			buffers = 0;
+			bytes = 0;
+		}
+	}
+
+	private Stream stream;
+
+	@Setup
+	public void setup() {
+		RtmpProperties properties = new RtmpProperties();
+		properties.setAggregateGopBurst(aggregate);
+		stream = new Stream(new StreamId("kyu", "bench"), new EmbeddedChannel(), properties);
+		for (int i = 0, audio = 0; i < VIDEO_FRAMES; i++) {
+			boolean keyFrame = i == 0;
+			RtmpVideoMsg video = new RtmpVideoMsg(i * 33L, 33,
+					ChunkStreams.videoPayload(keyFrame, keyFrame ? 64 * 1024 : 4 * 1024));
+			stream.onRecvVideo(video);
+			video.release();
+			for (; audio * 23L < (i + 1) * 33L && audio < AUDIO_FRAMES; audio++) {
+				RtmpAudioMsg aac = new RtmpAudioMsg(audio * 23L, 23,
+						Unpooled.buffer(256).writeByte(0xaf).writeByte(0x01).writeZero(254));
+				stream.onRecvAudio(aac);
+				aac.release();
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		stream.release();
+	}
+
+	@Benchmark
+	public long join(Burst burst) {
+		EmbeddedChannel viewer = new EmbeddedChannel(new RtmpEncoder());
+		stream.addPlayer(viewer);
+		long bytes = 0;
+		for (ByteBuf buf; (buf = viewer.readOutbound()) != null; ) {
+			burst.buffers++;
+			bytes += buf.readableBytes();
+			buf.release();
+		}
+		burst.bytes += bytes;
+		viewer.close();
+		return bytes;
+	}
+}
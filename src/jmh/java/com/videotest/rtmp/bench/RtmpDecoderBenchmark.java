@@ -0,0 +1,68 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.util.pipeline.RtmpDecoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 잘게 쪼개진 TCP read 에서 ByteToMessageDecoder 기반 RtmpDecoder 와 이전 ReplayingDecoder 를 비교한다.
+ * 한 번의 op 는 GOP 하나 (키프레임 1 + 델타 29) 를 끝까지 디코딩하는 것이다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtmpDecoderBenchmark {
+
+	@Param({"128", "4096", "65536"})
+	public int chunkSize;
+
+	// 17: 헤더까지 쪼개지는 최악의 경우, 1460: MSS, 65536: 큰 read
+	@Param({"17", "1460", "65536"})
+	public int fragmentSize;
+
+	private ByteBuf input;
+
+	@Setup
+	public void setup() {
+		input = ChunkStreams.videoStream(chunkSize, 30, 30, 120 * 1024, 8 * 1024);
+	}
+
+	@TearDown
+	public void tearDown() {
+		input.release();
+	}
+
+	@Benchmark
+	public int byteToMessageDecoder() {
+		return decode(new RtmpDecoder());
+	}
+
+	@Benchmark
+	public int replayingDecoder() {
+		return decode(new ReplayingRtmpDecoder());
+	}
+
+	private int decode(ChannelHandler decoder) {
+		EmbeddedChannel channel = new EmbeddedChannel(decoder);
+		int length = input.readableBytes();
+		for (int offset = 0; offset < length; offset += fragmentSize) {
+			channel.writeInbound(input.retainedSlice(offset, Math.min(fragmentSize, length - offset)));
+		}
+		int frames = 0;
+		Object msg;
+		while ((msg = channel.readInbound()) != null) {
+			frames++;
+			ReferenceCountUtil.release(msg);
+		}
+		channel.finishAndReleaseAll();
+		return frames;
+	}
+}
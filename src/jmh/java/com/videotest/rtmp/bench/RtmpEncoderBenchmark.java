@@ -0,0 +1,79 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RtmpEncoder 의 미디어 인코딩 비용
+ * firstMessage 는 새 채널의 첫 메시지(fmt0), 아니면 이어지는 메시지(fmt1/2/3)다.
+ * sharedBody 가 false 면 매번 새 메시지라 청크 본문을 직접 만들고, true 면 다른 시청자가 만든 본문을 재사용한다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtmpEncoderBenchmark {
+
+	@Param({"128", "4096"})
+	public int chunkSize;
+
+	@Param({"4096", "262144"})
+	public int frameSize;
+
+	@Param({"false", "true"})
+	public boolean sharedBody;
+
+	private ByteBuf payload;
+	private RtmpVideoMsg shared;
+	private EmbeddedChannel channel;
+	private long timestamp;
+
+	@Setup
+	public void setup() {
+		payload = ChunkStreams.videoPayload(true, frameSize);
+		shared = new RtmpVideoMsg(0, 0, payload.retainedDuplicate());
+		channel = newChannel();
+	}
+
+	@TearDown
+	public void tearDown() {
+		channel.finishAndReleaseAll();
+		shared.release();
+		payload.release();
+	}
+
+	@Benchmark
+	public EmbeddedChannel fmt0FirstMessage() {
+		EmbeddedChannel first = newChannel();
+		first.writeOutbound(nextMessage());
+		return first;
+	}
+
+	@Benchmark
+	public EmbeddedChannel fmt1NextMessage() {
+		channel.writeOutbound(nextMessage());
+		return channel;
+	}
+
+	private RtmpVideoMsg nextMessage() {
+		if (sharedBody) {
+			return shared.retain();
+		}
+		timestamp += 33;
+		return new RtmpVideoMsg(timestamp, 33, payload.retainedDuplicate());
+	}
+
+	private EmbeddedChannel newChannel() {
+		EmbeddedChannel encoderChannel = DiscardingChannels.newChannel(new RtmpEncoder());
+		encoderChannel.writeOutbound(new RtmpChunkMsg(chunkSize));
+		return encoderChannel;
+	}
+}
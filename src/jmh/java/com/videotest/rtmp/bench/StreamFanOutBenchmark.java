@@ -0,0 +1,59 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.server.RtmpProperties;
+import com.videotest.rtmp.server.stream.Stream;
+import com.videotest.rtmp.server.stream.StreamId;
+import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 비디오 프레임 하나를 RtmpEncoder 가 붙은 N 개의 플레이어 채널로 내보내는 비용 (인코딩 + flush 포함)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamFanOutBenchmark {
+
+	private static final int GOP_SIZE = 60;
+
+	@Param({"10", "100", "1000"})
+	public int players;
+
+	private Stream stream;
+	private RtmpVideoMsg[] gop;
+	private int next;
+
+	@Setup
+	public void setup() {
+		stream = new Stream(new StreamId("kyu", "bench"), new EmbeddedChannel(), new RtmpProperties());
+		for (int i = 0; i < players; i++) {
+			stream.addPlayer(DiscardingChannels.newChannel(new RtmpEncoder()));
+		}
+		gop = new RtmpVideoMsg[GOP_SIZE];
+		for (int i = 0; i < GOP_SIZE; i++) {
+			boolean keyFrame = i == 0;
+			gop[i] = new RtmpVideoMsg(i * 33L, 33, ChunkStreams.videoPayload(keyFrame, keyFrame ? 128 * 1024 : 16 * 1024));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		stream.release();
+		for (RtmpVideoMsg msg : gop) {
+			msg.release();
+		}
+	}
+
+	@Benchmark
+	public void broadcastVideo() {
+		stream.onRecvVideo(gop[next++ % GOP_SIZE]);
+		stream.flushPlayers();
+	}
+}
@@ -0,0 +1,79 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.server.RtmpProperties;
+import com.videotest.rtmp.server.stream.Stream;
+import com.videotest.rtmp.server.stream.StreamId;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 시청자가 계속 들어오고 나가는 동안 송출(onRecvVideo) 지연이 유지되는지 본다.
+ * ingestAlone 과 joinUnderLoad:ingest 의 분포가 비슷해야 한다.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamJoinContentionBenchmark {
+
+	private static final int GOP_SIZE = 60;
+
+	@Param({"100", "1000"})
+	public int players;
+
+	private Stream stream;
+	private RtmpVideoMsg[] gop;
+	private int next;
+
+	@Setup
+	public void setup() {
+		stream = new Stream(new StreamId("kyu", "bench"), new EmbeddedChannel(), new RtmpProperties());
+		for (int i = 0; i < players; i++) {
+			stream.addPlayer(DiscardingChannels.newChannel());
+		}
+		gop = new RtmpVideoMsg[GOP_SIZE];
+		for (int i = 0; i < GOP_SIZE; i++) {
+			boolean keyFrame = i == 0;
+			gop[i] = new RtmpVideoMsg(i * 33L, 33, ChunkStreams.videoPayload(keyFrame, keyFrame ? 64 * 1024 : 4 * 1024));
+		}
+		// GOP 캐시를 채워둔다
+		for (int i = 0; i < GOP_SIZE; i++) {
+			ingestAlone();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		stream.release();
+		for (RtmpVideoMsg msg : gop) {
+			msg.release();
+		}
+	}
+
+	@Benchmark
+	@Group("ingestAlone")
+	public void ingestAlone() {
+		stream.onRecvVideo(gop[next++ % GOP_SIZE]);
+	}
+
+	@Benchmark
+	@Group("joinUnderLoad")
+	@GroupThreads(1)
+	public void ingest() {
+		stream.onRecvVideo(gop[next++ % GOP_SIZE]);
+	}
+
+	@Benchmark
+	@Group("joinUnderLoad")
+	@GroupThreads(1)
+	public void joinAndLeave() {
+		EmbeddedChannel viewer = DiscardingChannels.newChannel();
+		stream.addPlayer(viewer);
+		viewer.close();
+	}
+}
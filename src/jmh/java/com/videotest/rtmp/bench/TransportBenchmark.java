@@ -0,0 +1,164 @@
+package com.videotest.rtmp.bench;
+
+import com.videotest.rtmp.chunk.message.RtmpUserControlMsg;
+import com.videotest.rtmp.server.RtmpTransport;
+import com.videotest.rtmp.util.pipeline.RtmpDecoder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * transport 와 acceptor 수별 loopback 연결 수락(accepts/sec)과 메시지 디코딩(messages/sec) 처리량
+ * 서버는 RtmpDecoder 만 두고, 클라이언트가 보낸 비디오 묶음 끝의 user control 메시지에 1 바이트로 답한다.
+ * 이 OS 에서 쓸 수 없는 transport 는 setup 에서 실패하고 다음 조합으로 넘어간다.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TransportBenchmark {
+
+	private static final int BATCH = 100;
+	private static final int CHUNK_SIZE = 4096;
+	private static final int FRAME_SIZE = 8192;
+
+	@Param({"NIO", "EPOLL", "IO_URING"})
+	public RtmpTransport transport;
+
+	@Param({"1", "4"})
+	public int acceptors;
+
+	private EventLoopGroup bossGroup;
+	private EventLoopGroup workerGroup;
+	private EventLoopGroup clientGroup;
+	private final List<Channel> serverChannels = new ArrayList<>();
+	private Bootstrap client;
+	private ByteBuf batch;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		if (transport.resolve() != transport) {
+			throw new IllegalStateException(transport + " is not available");
+		}
+		if (acceptors > 1 && !transport.supportsReusePort()) {
+			throw new IllegalStateException(transport + " does not support SO_REUSEPORT");
+		}
+		bossGroup = transport.newEventLoopGroup(acceptors, null);
+		workerGroup = transport.newEventLoopGroup(0, null);
+		clientGroup = transport.newEventLoopGroup(4, null);
+
+		ServerBootstrap server = new ServerBootstrap()
+				.group(bossGroup, workerGroup)
+				.channel(transport.serverChannelClass())
+				.option(ChannelOption.SO_BACKLOG, 4096)
+				.childOption(ChannelOption.TCP_NODELAY, true)
+				.childHandler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.pipeline().addLast(new RtmpDecoder(), new BatchAcknowledger());
+					}
+				});
+		if (acceptors > 1) {
+			server.option(transport.reusePortOption(), true);
+		}
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		Channel first = server.bind(loopback, 0).sync().channel();
+		serverChannels.add(first);
+		int port = ((InetSocketAddress) first.localAddress()).getPort();
+		for (int i = 1; i < acceptors; i++) {
+			serverChannels.add(server.bind(loopback, port).sync().channel());
+		}
+
+		client = new Bootstrap()
+				.group(clientGroup)
+				.channel(transport.socketChannelClass())
+				.option(ChannelOption.TCP_NODELAY, true)
+				.remoteAddress(loopback, port)
+				.handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+					}
+				});
+
+		batch = ChunkStreams.videoStream(CHUNK_SIZE, BATCH, 30, FRAME_SIZE, FRAME_SIZE);
+		ByteBuf ping = Unpooled.buffer(6).writeShort(6).writeInt(0);
+		ChunkStreams.writeMessage(batch, 2, 0, 0x04, 0, 0, ping, CHUNK_SIZE);
+		ping.release();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (Channel serverChannel : serverChannels) {
+			serverChannel.close().syncUninterruptibly();
+		}
+		clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+		workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+		bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+		batch.release();
+	}
+
+	// 연결을 맺고 바로 닫는다, 재연결 폭주 흉내
+	@Benchmark
+	public void accept() throws InterruptedException {
+		client.connect().sync().channel().close().sync();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void messages(Connection connection) throws InterruptedException {
+		connection.channel.writeAndFlush(batch.retainedDuplicate());
+		connection.acks.acquire();
+	}
+
+	@State(Scope.Thread)
+	public static class Connection {
+		private Channel channel;
+		private final Semaphore acks = new Semaphore(0);
+
+		@Setup
+		public void connect(TransportBenchmark benchmark) throws InterruptedException {
+			channel = benchmark.client.clone().handler(new ChannelInboundHandlerAdapter() {
+				@Override
+				public void channelRead(ChannelHandlerContext ctx, Object msg) {
+					acks.release(((ByteBuf) msg).readableBytes());
+					ReferenceCountUtil.release(msg);
+				}
+			}).connect().sync().channel();
+		}
+
+		@TearDown
+		public void close() {
+			channel.close().syncUninterruptibly();
+		}
+	}
+
+	// 묶음 끝의 user control 메시지를 받으면 1 바이트로 답한다
+	private static final class BatchAcknowledger extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			if (msg instanceof RtmpUserControlMsg) {
+				ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(1));
+			}
+			ReferenceCountUtil.release(msg);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.videotest.rtmp.loadtest;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 클라이언트 쪽 simple handshake
+ * 연결되면 c0 + c1 을 보내고, s0 + s1 + s2 를 다 받으면 s1 을 c2 로 돌려준 뒤 빠진다.
+ */
+class ClientHandShakeHandler extends ByteToMessageDecoder {
+
+	static final Object HANDSHAKE_COMPLETE = "HANDSHAKE_COMPLETE";
+
+	private static final int HANDSHAKE_SIZE = 1536;
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		ByteBuf c0c1 = ctx.alloc().buffer(1 + HANDSHAKE_SIZE);
+		c0c1.writeByte(0x03);
+		c0c1.writeInt(0); // time
+		c0c1.writeInt(0); // zero
+		byte[] random = new byte[HANDSHAKE_SIZE - 8];
+		ThreadLocalRandom.current().nextBytes(random);
+		c0c1.writeBytes(random);
+		ctx.writeAndFlush(c0c1);
+		super.channelActive(ctx);
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+		if (in.readableBytes() < 1 + HANDSHAKE_SIZE * 2) {
+			return;
+		}
+		in.skipBytes(1); // s0
+		ByteBuf c2 = in.readRetainedSlice(HANDSHAKE_SIZE); // s1 echo
+		in.skipBytes(HANDSHAKE_SIZE); // s2
+		ctx.writeAndFlush(c2);
+
+		ctx.fireUserEventTriggered(HANDSHAKE_COMPLETE);
+		ctx.pipeline().remove(this);
+	}
+}
@@ -0,0 +1,38 @@
+package com.videotest.rtmp.loadtest;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** 모든 가상 클라이언트가 함께 쓰는 카운터 */
+class LoadStats {
+
+	final LongAdder framesSent = new LongAdder();
+	final LongAdder bytesSent = new LongAdder();
+	// 퍼블리셔 채널이 unwritable 이라 보내지 못한 프레임
+	final LongAdder framesSkipped = new LongAdder();
+	final LongAdder framesReceived = new LongAdder();
+	final LongAdder bytesReceived = new LongAdder();
+	final LongAdder connectFailures = new LongAdder();
+	final LongAdder disconnects = new LongAdder();
+	// EGRESS_WINDOW_MS 구간마다 플레이어들이 받은 바이트 중 가장 큰 값, 송출이 몰리는 정도를 본다
+	static final long EGRESS_WINDOW_MS = 100;
+	final LongAccumulator peakWindowBytes = new LongAccumulator(Math::max, 0);
+
+	// 퍼블리셔가 프레임에 찍은 nanoTime 부터 플레이어가 받을 때까지
+	final LatencyHistogram videoLatency = new LatencyHistogram();
+	final LatencyHistogram audioLatency = new LatencyHistogram();
+	// 플레이어마다 연속한 오디오 프레임의 도착 간격이 송신 간격과 다른 정도
+	final LatencyHistogram audioJitter = new LatencyHistogram();
+
+	void reset() {
+		framesSent.reset();
+		bytesSent.reset();
+		framesSkipped.reset();
+		framesReceived.reset();
+		bytesReceived.reset();
+		peakWindowBytes.reset();
+		videoLatency.reset();
+		audioLatency.reset();
+		audioJitter.reset();
+	}
+}
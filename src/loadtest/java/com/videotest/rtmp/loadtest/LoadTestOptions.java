@@ -0,0 +1,103 @@
+package com.videotest.rtmp.loadtest;
+
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * key=value 형식의 실행 인자
+ * ./gradlew loadTest -Ploadtest.args="publishers=4 players=400 bitrateKbps=6000 durationSeconds=60"
+ */
+@Getter
+class LoadTestOptions {
+
+	private String host = "127.0.0.1";
+	private int port = 1935;
+	// true 면 같은 JVM 에서 RtmpServer 를 띄운다
+	private boolean embedded = true;
+	private int publishers = 1;
+	// 전체 플레이어 수, 퍼블리셔들에 나눠 붙는다
+	private int players = 10;
+	private int fps = 30;
+	private int bitrateKbps = 4000;
+	private int gopFrames = 60;
+	private int keyFrameRatio = 8;
+	// AAC 1024 샘플 / 44.1kHz 면 약 43fps, 0 이면 오디오를 보내지 않는다
+	private int audioFps = 43;
+	private int audioBitrateKbps = 128;
+	// embedded 서버의 rtmp.egress-budget-bytes, 0 이면 EgressScheduler 를 쓰지 않는다
+	private int egressBudgetBytes = 0;
+	// embedded 서버의 rtmp.pacing-rate-multiplier, 0 이면 EgressPacer 를 쓰지 않는다
+	private double pacingRateMultiplier = 0;
+	// 측정 중간에 한꺼번에 입장시키는 플레이어 수 (레이드), 입장 GOP burst 가 egress peak 에 드러난다
+	private int raidPlayers = 0;
+	private int chunkSize = 4096;
+	// 동시에 진행하는 연결 수, 연결 폭주로 핸드셰이크가 밀리는 것을 막는다
+	private int connectConcurrency = 64;
+	private int warmupSeconds = 5;
+	private int durationSeconds = 30;
+	private int reportIntervalSeconds = 5;
+
+	static LoadTestOptions parse(String[] args) {
+		Map<String, String> values = new HashMap<>();
+		for (String arg : args) {
+			int idx = arg.indexOf('=');
+			if (idx == -1) {
+				throw new IllegalArgumentException("expected key=value, actual=" + arg);
+			}
+			values.put(arg.substring(0, idx), arg.substring(idx + 1));
+		}
+
+		LoadTestOptions options = new LoadTestOptions();
+		options.host = values.getOrDefault("host", options.host);
+		options.port = intValue(values, "port", options.port);
+		options.embedded = Boolean.parseBoolean(values.getOrDefault("embedded", String.valueOf(options.embedded)));
+		options.publishers = intValue(values, "publishers", options.publishers);
+		options.players = intValue(values, "players", options.players);
+		options.fps = intValue(values, "fps", options.fps);
+		options.bitrateKbps = intValue(values, "bitrateKbps", options.bitrateKbps);
+		options.gopFrames = intValue(values, "gopFrames", options.gopFrames);
+		options.keyFrameRatio = intValue(values, "keyFrameRatio", options.keyFrameRatio);
+		options.audioFps = intValue(values, "audioFps", options.audioFps);
+		options.audioBitrateKbps = intValue(values, "audioBitrateKbps", options.audioBitrateKbps);
+		options.egressBudgetBytes = intValue(values, "egressBudgetBytes", options.egressBudgetBytes);
+		options.pacingRateMultiplier = Double.parseDouble(values.getOrDefault("pacingRateMultiplier",
+			String.valueOf(options.pacingRateMultiplier)));
+		options.raidPlayers = intValue(values, "raidPlayers", options.raidPlayers);
+		options.chunkSize = intValue(values, "chunkSize", options.chunkSize);
+		options.connectConcurrency = intValue(values, "connectConcurrency", options.connectConcurrency);
+		options.warmupSeconds = intValue(values, "warmupSeconds", options.warmupSeconds);
+		options.durationSeconds = intValue(values, "durationSeconds", options.durationSeconds);
+		options.reportIntervalSeconds = intValue(values, "reportIntervalSeconds", options.reportIntervalSeconds);
+		if (options.publishers < 1 || options.fps < 1 || options.gopFrames < 1) {
+			throw new IllegalArgumentException("publishers, fps and gopFrames must be positive");
+		}
+		return options;
+	}
+
+	private static int intValue(Map<String, String> values, String key, int defaultValue) {
+		String value = values.get(key);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/** GOP 전체가 bitrate 에 맞도록 델타 프레임 크기를 정한다 */
+	int deltaFrameSize() {
+		long gopBytes = (long) bitrateKbps * 125 * gopFrames / fps;
+		return (int) (gopBytes / (gopFrames - 1 + keyFrameRatio));
+	}
+
+	int audioFrameSize() {
+		return audioFps <= 0 ? 0 : audioBitrateKbps * 125 / audioFps;
+	}
+
+	@Override
+	public String toString() {
+		return "target=" + host + ":" + port + (embedded ? " (embedded)" : "")
+			+ ", publishers=" + publishers + ", players=" + players + ", fps=" + fps
+			+ ", bitrateKbps=" + bitrateKbps + ", gopFrames=" + gopFrames + ", chunkSize=" + chunkSize
+			+ ", audioFps=" + audioFps + ", egressBudgetBytes=" + egressBudgetBytes
+			+ ", pacingRateMultiplier=" + pacingRateMultiplier + ", raidPlayers=" + raidPlayers
+			+ ", warmup=" + warmupSeconds + "s, duration=" + durationSeconds + "s";
+	}
+}
@@ -0,0 +1,58 @@
+package com.videotest.rtmp.loadtest;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 합성 H.264 / AAC 프레임
+ * 비디오는 control, AVC packet type, composition time 다음에, 오디오는 control, AAC packet type 다음에
+ * 보낸 시각(System.nanoTime)을 찍는다.
+ * 같은 JVM 안의 플레이어만 이 값을 비교할 수 있다.
+ */
+final class MediaFrames {
+
+	private static final int STAMP_OFFSET = 5;
+	private static final int MIN_FRAME_SIZE = STAMP_OFFSET + 8;
+	private static final int AUDIO_STAMP_OFFSET = 2;
+	private static final int MIN_AUDIO_FRAME_SIZE = AUDIO_STAMP_OFFSET + 8;
+
+	private MediaFrames() {
+	}
+
+	static ByteBuf videoFrame(ByteBufAllocator alloc, boolean keyFrame, int size) {
+		int frameSize = Math.max(MIN_FRAME_SIZE, size);
+		ByteBuf payload = alloc.buffer(frameSize);
+		payload.writeByte(keyFrame ? 0x17 : 0x27); // AVC key/inter frame
+		payload.writeByte(0x01); // AVC NALU
+		payload.writeMedium(0); // composition time
+		payload.writeLong(System.nanoTime());
+		payload.writeZero(frameSize - MIN_FRAME_SIZE);
+		return payload;
+	}
+
+	static ByteBuf audioFrame(ByteBufAllocator alloc, int size) {
+		int frameSize = Math.max(MIN_AUDIO_FRAME_SIZE, size);
+		ByteBuf payload = alloc.buffer(frameSize);
+		payload.writeByte(0xaf); // AAC, 44kHz, 16bit, stereo
+		payload.writeByte(0x01); // AAC raw
+		payload.writeLong(System.nanoTime());
+		payload.writeZero(frameSize - MIN_AUDIO_FRAME_SIZE);
+		return payload;
+	}
+
+	/** @return 찍힌 nanoTime, 합성 프레임이 아니면 -1 */
+	static long sentNanos(ByteBuf payload) {
+		if (payload.readableBytes() < MIN_FRAME_SIZE || payload.getByte(payload.readerIndex() + 1) != 0x01) {
+			return -1;
+		}
+		return payload.getLong(payload.readerIndex() + STAMP_OFFSET);
+	}
+
+	/** @return 오디오 프레임에 찍힌 nanoTime, 합성 프레임이 아니면 -1 */
+	static long audioSentNanos(ByteBuf payload) {
+		if (payload.readableBytes() < MIN_AUDIO_FRAME_SIZE || payload.getByte(payload.readerIndex() + 1) != 0x01) {
+			return -1;
+		}
+		return payload.getLong(payload.readerIndex() + AUDIO_STAMP_OFFSET);
+	}
+}
@@ -0,0 +1,64 @@
+package com.videotest.rtmp.loadtest;
+
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * play 를 요청하고 받은 비디오와 오디오의 지연을 기록한다.
+ * 입장 시 GOP 캐시로 받는 프레임은 play 이전에 찍힌 것이라 지연에서 뺀다.
+ * 오디오 jitter 는 RFC 3550 처럼 연속한 두 프레임의 도착 간격과 송신 간격의 차이다.
+ */
+class PlayerHandler extends RtmpClientHandler {
+
+	private long playSentNanos = Long.MAX_VALUE;
+	// 직전 오디오 프레임의 송신/수신 시각, 없으면 -1
+	private long lastAudioSentNanos = -1;
+	private long lastAudioReceivedNanos;
+
+	PlayerHandler(String streamName, LoadStats stats) {
+		super(streamName, stats);
+	}
+
+	@Override
+	protected void onHandshakeComplete(ChannelHandlerContext ctx) {
+		ctx.channel().write(connect(1));
+		ctx.channel().write(command("createStream", 2));
+		playSentNanos = System.nanoTime();
+		ctx.channel().writeAndFlush(command("play", 3, streamName));
+	}
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, RtmpBaseMsg msg) {
+		if (msg instanceof RtmpAudioMsg audioMsg) {
+			onAudio(audioMsg);
+			return;
+		}
+		if (!(msg instanceof RtmpVideoMsg videoMsg)) {
+			return;
+		}
+		stats.framesReceived.increment();
+		stats.bytesReceived.add(videoMsg.getPayloadLength());
+		long sentNanos = MediaFrames.sentNanos(videoMsg.getPayload());
+		if (sentNanos >= playSentNanos) {
+			stats.videoLatency.record((System.nanoTime() - sentNanos) / 1000);
+		}
+	}
+
+	private void onAudio(RtmpAudioMsg audioMsg) {
+		stats.bytesReceived.add(audioMsg.getPayloadLength());
+		long sentNanos = MediaFrames.audioSentNanos(audioMsg.getPayload());
+		if (sentNanos < playSentNanos) {
+			return;
+		}
+		long now = System.nanoTime();
+		stats.audioLatency.record((now - sentNanos) / 1000);
+		if (lastAudioSentNanos != -1) {
+			long jitterNanos = Math.abs((now - lastAudioReceivedNanos) - (sentNanos - lastAudioSentNanos));
+			stats.audioJitter.record(jitterNanos / 1000);
+		}
+		lastAudioSentNanos = sentNanos;
+		lastAudioReceivedNanos = now;
+	}
+}
@@ -0,0 +1,117 @@
+package com.videotest.rtmp.loadtest;
+
+import com.videotest.rtmp.chunk.message.RtmpAMF0CmdMsg;
+import com.videotest.rtmp.chunk.message.RtmpAMF0DataMsg;
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 합성 비디오/오디오 프레임을 각각 일정한 fps 로 보내는 퍼블리셔
+ * NetStream.Publish.Start 를 받으면 published 를 완료하고 송출을 시작한다.
+ */
+class PublisherHandler extends RtmpClientHandler {
+
+	private final LoadTestOptions options;
+	private final Promise<Channel> published;
+
+	private ScheduledFuture<?> ticker;
+	private ScheduledFuture<?> audioTicker;
+	private long frameIndex;
+	private long audioFrameIndex;
+
+	PublisherHandler(String streamName, LoadTestOptions options, LoadStats stats, Promise<Channel> published) {
+		super(streamName, stats);
+		this.options = options;
+		this.published = published;
+	}
+
+	@Override
+	protected void onHandshakeComplete(ChannelHandlerContext ctx) {
+		Channel channel = ctx.channel();
+		channel.write(new RtmpChunkMsg(options.getChunkSize()));
+		channel.write(connect(1));
+		channel.write(command("releaseStream", 2, streamName));
+		channel.write(command("FCPublish", 3, streamName));
+		channel.write(command("createStream", 4));
+		channel.writeAndFlush(command("publish", 5, streamName, "kyu"));
+	}
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, RtmpBaseMsg msg) {
+		if (ticker != null || !(msg instanceof RtmpAMF0CmdMsg cmdMsg) || !"NetStream.Publish.Start".equals(statusCode(cmdMsg))) {
+			return;
+		}
+		ctx.channel().writeAndFlush(new RtmpAMF0DataMsg(0, List.of("@setDataFrame", "onMetaData", metaData())));
+		long periodNanos = TimeUnit.SECONDS.toNanos(1) / options.getFps();
+		ticker = ctx.executor().scheduleAtFixedRate(() -> sendFrame(ctx.channel()), 0, periodNanos, TimeUnit.NANOSECONDS);
+		if (options.getAudioFps() > 0) {
+			long audioPeriodNanos = TimeUnit.SECONDS.toNanos(1) / options.getAudioFps();
+			audioTicker = ctx.executor().scheduleAtFixedRate(() -> sendAudioFrame(ctx.channel()), 0, audioPeriodNanos,
+					TimeUnit.NANOSECONDS);
+		}
+		published.trySuccess(ctx.channel());
+	}
+
+	private void sendFrame(Channel channel) {
+		long index = frameIndex++;
+		boolean keyFrame = index % options.getGopFrames() == 0;
+		// 키프레임은 델타 프레임의 keyFrameRatio 배 크기
+		int size = keyFrame ? options.deltaFrameSize() * options.getKeyFrameRatio() : options.deltaFrameSize();
+		if (!channel.isWritable() && !keyFrame) {
+			stats.framesSkipped.increment();
+			return;
+		}
+		ByteBuf payload = MediaFrames.videoFrame(channel.alloc(), keyFrame, size);
+		long timestamp = index * 1000 / options.getFps();
+		stats.framesSent.increment();
+		stats.bytesSent.add(payload.readableBytes());
+		channel.writeAndFlush(new RtmpVideoMsg(timestamp, (int) (1000 / options.getFps()), payload), channel.voidPromise());
+	}
+
+	// 오디오는 작아서 unwritable 이어도 버리지 않는다
+	private void sendAudioFrame(Channel channel) {
+		long index = audioFrameIndex++;
+		ByteBuf payload = MediaFrames.audioFrame(channel.alloc(), options.audioFrameSize());
+		long timestamp = index * 1000 / options.getAudioFps();
+		stats.bytesSent.add(payload.readableBytes());
+		channel.writeAndFlush(new RtmpAudioMsg(timestamp, (int) (1000 / options.getAudioFps()), payload), channel.voidPromise());
+	}
+
+	private Map<String, Object> metaData() {
+		Map<String, Object> metaData = new LinkedHashMap<>();
+		metaData.put("width", 1920.0);
+		metaData.put("height", 1080.0);
+		metaData.put("videocodecid", 7.0);
+		metaData.put("videodatarate", (double) options.getBitrateKbps());
+		metaData.put("framerate", (double) options.getFps());
+		if (options.getAudioFps() > 0) {
+			metaData.put("audiocodecid", 10.0);
+			metaData.put("audiodatarate", (double) options.getAudioBitrateKbps());
+		}
+		return metaData;
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if (ticker != null) {
+			ticker.cancel(false);
+		}
+		if (audioTicker != null) {
+			audioTicker.cancel(false);
+		}
+		published.tryFailure(new IllegalStateException("publisher closed before NetStream.Publish.Start: " + streamName));
+		super.channelInactive(ctx);
+	}
+}
@@ -0,0 +1,54 @@
+package com.videotest.rtmp.loadtest;
+
+import com.videotest.rtmp.util.pipeline.AcknowledgementHandler;
+import com.videotest.rtmp.util.pipeline.PingHandler;
+import com.videotest.rtmp.util.pipeline.RtmpDecoder;
+import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import lombok.NonNull;
+
+import java.util.function.Supplier;
+
+/**
+ * 서버와 같은 RtmpDecoder/RtmpEncoder 를 쓰는 최소한의 RTMP 클라이언트
+ * handshake 이후의 동작(publish/play)은 넘겨받은 핸들러가 맡는다.
+ * 실제 플레이어처럼 서버가 알린 Window Acknowledgement Size 마다 ack 하고, 서버의 ping 에 답한다.
+ */
+class RtmpClient {
+
+	private final EventLoopGroup group;
+	private final String host;
+	private final int port;
+
+	RtmpClient(EventLoopGroup group, String host, int port) {
+		this.group = group;
+		this.host = host;
+		this.port = port;
+	}
+
+	ChannelFuture connect(Supplier<RtmpClientHandler> handler) {
+		return new Bootstrap()
+			.group(group)
+			.channel(NioSocketChannel.class)
+			.option(ChannelOption.TCP_NODELAY, true)
+			.handler(new ChannelInitializer<SocketChannel>() {
+				@Override
+				protected void initChannel(@NonNull SocketChannel ch) {
+					ch.pipeline()
+						.addLast(new ClientHandShakeHandler())
+						.addLast(new AcknowledgementHandler(0))
+						.addLast(new RtmpDecoder())
+						.addLast(new RtmpEncoder())
+						.addLast(new PingHandler(0))
+						.addLast(handler.get());
+				}
+			})
+			.connect(host, port);
+	}
+}
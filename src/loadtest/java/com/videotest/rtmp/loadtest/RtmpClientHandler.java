@@ -0,0 +1,92 @@
+package com.videotest.rtmp.loadtest;
+
+import com.videotest.rtmp.chunk.message.RtmpAMF0CmdMsg;
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpWinAckMsg;
+import com.videotest.rtmp.util.pipeline.AcknowledgementHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** 퍼블리셔/플레이어 공통, handshake 가 끝나면 명령을 보내기 시작한다. */
+@Slf4j
+abstract class RtmpClientHandler extends SimpleChannelInboundHandler<RtmpBaseMsg> {
+
+	protected final String streamName;
+	protected final LoadStats stats;
+
+	protected RtmpClientHandler(String streamName, LoadStats stats) {
+		this.streamName = streamName;
+		this.stats = stats;
+	}
+
+	protected abstract void onHandshakeComplete(ChannelHandlerContext ctx);
+
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt == ClientHandShakeHandler.HANDSHAKE_COMPLETE) {
+			onHandshakeComplete(ctx);
+			return;
+		}
+		super.userEventTriggered(ctx, evt);
+	}
+
+	// 서버가 ack 를 기다리는 간격, 퍼블리셔/플레이어 핸들러까지 넘기지 않는다
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (msg instanceof RtmpWinAckMsg winAckMsg) {
+			AcknowledgementHandler acknowledgement = AcknowledgementHandler.of(ctx.channel());
+			if (acknowledgement != null) {
+				acknowledgement.onWindowAckSize(winAckMsg.getAcknowledgementSize());
+			}
+			return;
+		}
+		super.channelRead(ctx, msg);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		stats.disconnects.increment();
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+		log.warn("stream=" + streamName + " client error, closing", cause);
+		ctx.close();
+	}
+
+	protected static RtmpAMF0CmdMsg connect(int transactionId) {
+		LinkedHashMap<String, Object> commandObject = new LinkedHashMap<>();
+		commandObject.put("app", "kyu");
+		commandObject.put("type", "nonprivate");
+		commandObject.put("flashVer", "FMLE/3.0 (compatible; loadtest)");
+		commandObject.put("tcUrl", "rtmp://localhost/kyu");
+		return new RtmpAMF0CmdMsg(0, new ArrayList<>(Arrays.asList("connect", (double) transactionId, commandObject)));
+	}
+
+	protected static RtmpAMF0CmdMsg command(String name, int transactionId, Object... args) {
+		List<Object> objects = new ArrayList<>();
+		objects.add(name);
+		objects.add((double) transactionId);
+		objects.add(null);
+		objects.addAll(Arrays.asList(args));
+		return new RtmpAMF0CmdMsg(0, objects);
+	}
+
+	/** onStatus / onFCPublish 의 info object code, 없으면 null */
+	protected static String statusCode(RtmpAMF0CmdMsg msg) {
+		List<Object> objects = msg.getObjectList();
+		if (objects.size() < 4 || !(objects.get(3) instanceof Map<?, ?> info)) {
+			return null;
+		}
+		Object code = info.get("code");
+		return code instanceof String ? (String) code : null;
+	}
+}
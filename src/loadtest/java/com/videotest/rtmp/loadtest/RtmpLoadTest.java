@@ -0,0 +1,197 @@
+package com.videotest.rtmp.loadtest;
+
+import com.videotest.rtmp.server.RtmpProperties;
+import com.videotest.rtmp.server.RtmpServer;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * localhost 부하 테스트
+ * 퍼블리셔 M 개가 합성 프레임을 보내고 플레이어 N 개가 받으면서, 프레임에 찍힌 시각으로 송출-수신 지연을 잰다.
+ * 결과는 처리량, 지연 백분위, 서버 CPU/힙을 주기적으로, 그리고 마지막에 한 번 더 출력한다.
+ */
+@Slf4j
+public class RtmpLoadTest {
+
+	private final LoadTestOptions options;
+	private final EventLoopGroup group;
+	private final RtmpClient client;
+	private final LoadStats stats = new LoadStats();
+	private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+	private final Semaphore connectPermits;
+
+	RtmpLoadTest(LoadTestOptions options, EventLoopGroup group) {
+		this.options = options;
+		this.group = group;
+		this.client = new RtmpClient(group, options.getHost(), options.getPort());
+		this.connectPermits = new Semaphore(options.getConnectConcurrency());
+	}
+
+	public static void main(String[] args) throws Exception {
+		Thread.currentThread().setName(ServerResourceSampler.CLIENT_THREAD_PREFIX + "-main");
+		LoadTestOptions options = LoadTestOptions.parse(args);
+		log.info("load test: " + options);
+		RtmpServer server = options.isEmbedded() ? startEmbeddedServer(options) : null;
+
+		EventLoopGroup group = new NioEventLoopGroup(0, new DefaultThreadFactory(ServerResourceSampler.CLIENT_THREAD_PREFIX));
+		try {
+			new RtmpLoadTest(options, group).run();
+		} finally {
+			group.shutdownGracefully().syncUninterruptibly();
+			if (server != null) {
+				server.stop();
+			}
+		}
+		// StreamManager 의 정리 타이머 스레드가 남으므로 프로세스를 끝낸다
+		System.exit(0);
+	}
+
+	void run() throws Exception {
+		List<Promise<Channel>> published = new ArrayList<>();
+		for (int i = 0; i < options.getPublishers(); i++) {
+			Promise<Channel> promise = group.next().newPromise();
+			String streamName = streamName(i);
+			connect(() -> new PublisherHandler(streamName, options, stats, promise));
+			published.add(promise);
+		}
+		for (Promise<Channel> promise : published) {
+			if (!promise.await(10, TimeUnit.SECONDS) || !promise.isSuccess()) {
+				throw new IllegalStateException("publisher did not start", promise.cause());
+			}
+		}
+		log.info(options.getPublishers() + " publishers started");
+
+		for (int i = 0; i < options.getPlayers(); i++) {
+			String streamName = streamName(i % options.getPublishers());
+			connect(() -> new PlayerHandler(streamName, stats));
+		}
+		log.info(options.getPlayers() + " players connecting, warmup " + options.getWarmupSeconds() + "s");
+
+		TimeUnit.SECONDS.sleep(options.getWarmupSeconds());
+		stats.reset();
+		ScheduledFuture<?> egressWindow = startEgressWindow();
+		ServerResourceSampler sampler = new ServerResourceSampler();
+		ServerResourceSampler totalSampler = new ServerResourceSampler();
+		long startNanos = System.nanoTime();
+
+		long lastFramesReceived = 0;
+		long lastBytesReceived = 0;
+		boolean raided = options.getRaidPlayers() <= 0;
+		for (long elapsed = 0; elapsed < options.getDurationSeconds(); elapsed += options.getReportIntervalSeconds()) {
+			if (!raided && elapsed >= options.getDurationSeconds() / 2) {
+				raided = true;
+				raid();
+			}
+			TimeUnit.SECONDS.sleep(Math.min(options.getReportIntervalSeconds(), options.getDurationSeconds() - elapsed));
+			long framesReceived = stats.framesReceived.sum();
+			long bytesReceived = stats.bytesReceived.sum();
+			double seconds = Math.min(options.getReportIntervalSeconds(), options.getDurationSeconds() - elapsed);
+			log.info(String.format("[%ds] recv %.0f frames/s, egress %.1f Mbps, latency p50=%.1fms p99=%.1fms, %s",
+				elapsed + (long) seconds, (framesReceived - lastFramesReceived) / seconds,
+				(bytesReceived - lastBytesReceived) * 8 / seconds / 1_000_000,
+				millis(stats.videoLatency.percentile(50)), millis(stats.videoLatency.percentile(99)), sampler.sample()));
+			lastFramesReceived = framesReceived;
+			lastBytesReceived = bytesReceived;
+		}
+
+		egressWindow.cancel(false);
+		report((System.nanoTime() - startNanos) / 1e9, totalSampler);
+		channels.close().awaitUninterruptibly(10, TimeUnit.SECONDS);
+	}
+
+	private void report(double seconds, ServerResourceSampler sampler) {
+		long sent = stats.framesSent.sum();
+		long received = stats.framesReceived.sum();
+		// 플레이어가 모두 모든 프레임을 받았을 때의 수신량 대비
+		double delivery = sent == 0 ? 0 : (double) received * options.getPublishers() / sent / Math.max(1, options.getPlayers());
+		LatencyHistogram latency = stats.videoLatency;
+
+		log.info("==== result: " + options);
+		log.info(String.format("ingest   %.0f frames/s, %.1f Mbps, skipped=%d",
+			sent / seconds, stats.bytesSent.sum() * 8 / seconds / 1_000_000, stats.framesSkipped.sum()));
+		log.info(String.format("egress   %.0f frames/s, %.1f Mbps, peak(%dms)=%.1f Mbps, delivery=%.1f%%",
+			received / seconds, stats.bytesReceived.sum() * 8 / seconds / 1_000_000, LoadStats.EGRESS_WINDOW_MS,
+			stats.peakWindowBytes.get() * 8 / (LoadStats.EGRESS_WINDOW_MS / 1000.0) / 1_000_000, delivery * 100));
+		log.info(String.format("latency  samples=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+			latency.count(), millis(latency.percentile(50)), millis(latency.percentile(90)),
+			millis(latency.percentile(99)), millis(latency.percentile(99.9)), millis(latency.percentile(100))));
+		LatencyHistogram audioLatency = stats.audioLatency;
+		LatencyHistogram audioJitter = stats.audioJitter;
+		log.info(String.format("audio    samples=%d latency p50=%.1fms p99=%.1fms, jitter p50=%.1fms p99=%.1fms max=%.1fms",
+			audioLatency.count(), millis(audioLatency.percentile(50)), millis(audioLatency.percentile(99)),
+			millis(audioJitter.percentile(50)), millis(audioJitter.percentile(99)), millis(audioJitter.percentile(100))));
+		log.info("clients  connectFailures=" + stats.connectFailures.sum() + ", disconnects=" + stats.disconnects.sum());
+		if (options.isEmbedded()) {
+			log.info(sampler.sample());
+		}
+	}
+
+	// 짧은 구간의 수신량을 재서 평균에 가려지는 입장 burst 를 잡는다
+	private ScheduledFuture<?> startEgressWindow() {
+		long[] last = {stats.bytesReceived.sum()};
+		return group.next().scheduleAtFixedRate(() -> {
+			long bytes = stats.bytesReceived.sum();
+			stats.peakWindowBytes.accumulate(bytes - last[0]);
+			last[0] = bytes;
+		}, LoadStats.EGRESS_WINDOW_MS, LoadStats.EGRESS_WINDOW_MS, TimeUnit.MILLISECONDS);
+	}
+
+	// 레이드처럼 플레이어가 한꺼번에 들어오면 모두 GOP 캐시를 받는다
+	private void raid() throws InterruptedException {
+		log.info("raid: " + options.getRaidPlayers() + " players joining");
+		for (int i = 0; i < options.getRaidPlayers(); i++) {
+			String streamName = streamName(i % options.getPublishers());
+			connect(() -> new PlayerHandler(streamName, stats));
+		}
+	}
+
+	private void connect(Supplier<RtmpClientHandler> handler) throws InterruptedException {
+		connectPermits.acquire();
+		ChannelFuture future = client.connect(handler);
+		channels.add(future.channel());
+		future.addListener(f -> {
+			connectPermits.release();
+			if (!f.isSuccess()) {
+				stats.connectFailures.increment();
+				log.warn("connect failed: " + f.cause());
+			}
+		});
+	}
+
+	private static String streamName(int index) {
+		return "load-" + index;
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	private static RtmpServer startEmbeddedServer(LoadTestOptions options) {
+		// 모든 클라이언트가 한 IP 에서 한꺼번에 붙으므로 연결 수락 한도는 끈다
+		RtmpProperties properties = new RtmpProperties();
+		properties.setPort(options.getPort());
+		properties.setMaxConnectionsPerSecond(0);
+		properties.setMaxHandshakesPerIp(0);
+		properties.setEgressBudgetBytes(options.getEgressBudgetBytes());
+		properties.setPacingRateMultiplier(options.getPacingRateMultiplier());
+		RtmpServer server = new RtmpServer(properties);
+		// bind 가 끝난 뒤에 돌아오고, 실패하면 예외를 던진다
+		server.start();
+		return server;
+	}
+}
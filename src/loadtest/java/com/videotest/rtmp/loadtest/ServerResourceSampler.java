@@ -0,0 +1,77 @@
+package com.videotest.rtmp.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 같은 JVM 에 띄운 서버의 CPU/힙 사용량
+ * CPU 는 부하 생성기 스레드(이름이 CLIENT_THREAD_PREFIX 로 시작)를 뺀 스레드 CPU 시간의 합으로 잰다.
+ * 힙과 GC 는 프로세스 전체 값이라 클라이언트 몫이 섞여 있다.
+ */
+class ServerResourceSampler {
+
+	static final String CLIENT_THREAD_PREFIX = "rtmp-loadtest";
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final int cores = Runtime.getRuntime().availableProcessors();
+
+	private long lastWallNanos;
+	private long lastCpuNanos;
+	private long lastGcMillis;
+
+	ServerResourceSampler() {
+		reset();
+	}
+
+	void reset() {
+		lastWallNanos = System.nanoTime();
+		lastCpuNanos = serverCpuNanos();
+		lastGcMillis = gcMillis();
+	}
+
+	/** 직전 sample 이후 값을 한 줄로 돌려준다 */
+	String sample() {
+		long wallNanos = System.nanoTime();
+		long cpuNanos = serverCpuNanos();
+		long gcMillis = gcMillis();
+		double cpuCores = (double) (cpuNanos - lastCpuNanos) / Math.max(1, wallNanos - lastWallNanos);
+		long gcDelta = gcMillis - lastGcMillis;
+		lastWallNanos = wallNanos;
+		lastCpuNanos = cpuNanos;
+		lastGcMillis = gcMillis;
+
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		return String.format("server cpu=%.2f cores (%.1f%% of %d), heap=%dMB/%dMB, gc=%dms",
+			cpuCores, cpuCores * 100 / cores, cores, heap.getUsed() >> 20, heap.getCommitted() >> 20, gcDelta);
+	}
+
+	private long serverCpuNanos() {
+		if (!threads.isThreadCpuTimeSupported()) {
+			return 0;
+		}
+		long total = 0;
+		long[] ids = threads.getAllThreadIds();
+		ThreadInfo[] infos = threads.getThreadInfo(ids);
+		for (int i = 0; i < ids.length; i++) {
+			if (infos[i] == null || infos[i].getThreadName().startsWith(CLIENT_THREAD_PREFIX)) {
+				continue;
+			}
+			long cpu = threads.getThreadCpuTime(ids[i]);
+			if (cpu > 0) {
+				total += cpu;
+			}
+		}
+		return total;
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+}
@@ -1,6 +1,9 @@
 package com.videotest;
 
-import com.videotest.rtmp.server.RtmpServer;
+import com.videotest.rtmp.server.stream.Stream;
+import com.videotest.rtmp.server.stream.StreamId;
+import com.videotest.rtmp.server.stream.StreamManager;
+import com.videotest.rtmp.server.stream.StreamStatsDto;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -79,9 +82,22 @@ public class VideotestApplication {
 		isStreaming.set(false);
 	}
 
-	public static void main(String[] args) throws InterruptedException {
+	// RTMP 스트림별 송출/시청 통계
+	@GetMapping(value = "/rtmp/streams", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Flux<StreamStatsDto> getStreamStats() {
+		return Flux.fromIterable(StreamManager.getStreams())
+				.map(Stream::toStatsDto);
+	}
+
+	@GetMapping(value = "/rtmp/streams/{app}/{name}", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<StreamStatsDto> getStreamStats(@PathVariable String app, @PathVariable String name) {
+		return Mono.justOrEmpty(StreamManager.getStream(new StreamId(app, name)))
+				.map(Stream::toStatsDto);
+	}
+
+	public static void main(String[] args) {
+		// RtmpServer 는 RtmpServerConfig 의 빈으로 함께 시작된다
 		SpringApplication.run(VideotestApplication.class, args);
-		new RtmpServer().start();
 	}
 
 }
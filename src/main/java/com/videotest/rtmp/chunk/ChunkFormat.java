@@ -21,6 +21,8 @@ public enum ChunkFormat {
     AudioMsg((byte) 0x08),
     VideoMsg((byte) 0x09),
     TextMsg((byte) 0x0A),
+    /** 오디오/비디오/데이터 메시지 묶음 */
+    Aggregate((byte) 0x16),
 
     /** AMF */
     Amf0CmdMsg((byte) 0x11),
@@ -60,6 +62,7 @@ public enum ChunkFormat {
             case 0x14 -> ChunkFormat.Amf0CmdMsg;
             case 0x0F -> ChunkFormat.Amf3DataMsg;
             case 0x12 -> ChunkFormat.Amf0DataMsg;
+            case 0x16 -> ChunkFormat.Aggregate;
             default -> throw new Exception("Unknown format: " + fmt);
         };
     }
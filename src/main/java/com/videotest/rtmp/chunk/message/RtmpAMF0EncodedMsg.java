@@ -0,0 +1,67 @@
+package com.videotest.rtmp.chunk.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
+import lombok.Getter;
+
+/**
+ * 이미 인코딩된 AMF0 명령(20) 또는 데이터(18) 메시지
+ * 인코더는 payload 를 복사하지 않고 그대로 내보내며, 참조 카운트는 payload 에 위임한다.
+ */
+@Getter
+public class RtmpAMF0EncodedMsg extends RtmpBaseMsg implements ReferenceCounted {
+
+	public static final byte COMMAND = 20;
+	public static final byte DATA = 18;
+
+	private final ByteBuf payload;
+
+	public RtmpAMF0EncodedMsg(byte messageTypeId, ByteBuf payload) {
+		super(messageTypeId);
+		this.payload = payload;
+	}
+
+	public boolean isCommand() {
+		return getMessageTypeId() == COMMAND;
+	}
+
+	@Override
+	public int refCnt() {
+		return payload.refCnt();
+	}
+
+	@Override
+	public RtmpAMF0EncodedMsg retain() {
+		payload.retain();
+		return this;
+	}
+
+	@Override
+	public RtmpAMF0EncodedMsg retain(int increment) {
+		payload.retain(increment);
+		return this;
+	}
+
+	@Override
+	public RtmpAMF0EncodedMsg touch() {
+		payload.touch();
+		return this;
+	}
+
+	@Override
+	public RtmpAMF0EncodedMsg touch(Object hint) {
+		payload.touch(hint);
+		return this;
+	}
+
+	@Override
+	public boolean release() {
+		return payload.release();
+	}
+
+	@Override
+	public boolean release(int decrement) {
+		return payload.release(decrement);
+	}
+
+}
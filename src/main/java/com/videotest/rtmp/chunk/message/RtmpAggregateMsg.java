@@ -0,0 +1,108 @@
+package com.videotest.rtmp.chunk.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ReferenceCountUtil;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregate 메시지 (22), 오디오/비디오/데이터 메시지 여러 개를 한 메시지로 묶는다.
+ * payload 는 sub-message 의 반복이다.
+ * <pre>
+ * type(1) | size(3) | timestamp(3) | timestamp extended(1) | stream id(3) | data(size) | back pointer(4) = 11 + size
+ * </pre>
+ * 받는 쪽은 sub-message timestamp 를 첫 sub-message 기준으로 이 메시지의 timestamp 에 다시 맞춘다.
+ * pack 으로 만들 때는 이 메시지의 timestamp 를 첫 sub-message 의 timestamp 로 두므로 원래 값이 그대로 나온다.
+ */
+@Getter
+public class RtmpAggregateMsg extends RtmpMediaMsg {
+
+	public static final byte TYPE_ID = 0x16;
+	// sub-message 하나에 붙는 header 11 바이트와 back pointer 4 바이트
+	public static final int SUB_HEADER_LENGTH = 11;
+	public static final int SUB_OVERHEAD = SUB_HEADER_LENGTH + 4;
+	private static final int MAX_PAYLOAD_LENGTH = 0xffffff;
+
+	// 묶은 비디오 중 마지막 timestamp, 비디오가 없으면 -1
+	private final long lastVideoTimestamp;
+
+	public RtmpAggregateMsg(long timeStamp, ByteBuf payload, long lastVideoTimestamp) {
+		super(TYPE_ID, timeStamp, 0, payload);
+		this.lastVideoTimestamp = lastVideoTimestamp;
+	}
+
+	/**
+	 * 이어지는 오디오/비디오 메시지를 maxBytes 이하의 Aggregate 로 묶는다.
+	 * 메시지 참조는 넘겨받는다. 묶은 메시지는 payload 를 복사한 뒤 release 하고, 묶지 않은 메시지는 그대로 결과에 넣는다.
+	 * 혼자서 maxBytes 를 넘는 메시지는 묶지 않는다. maxBytes 는 메시지 길이 한도(3 바이트)를 넘지 않게 자른다.
+	 */
+	public static List<RtmpBaseMsg> pack(ByteBufAllocator alloc, List<? extends RtmpBaseMsg> messages, int maxBytes) {
+		maxBytes = Math.min(maxBytes, MAX_PAYLOAD_LENGTH);
+		List<RtmpBaseMsg> packed = new ArrayList<>();
+		List<RtmpMediaMsg> group = new ArrayList<>();
+		int groupBytes = 0;
+		for (RtmpBaseMsg msg : messages) {
+			if (!(msg instanceof RtmpMediaMsg media) || msg instanceof RtmpAggregateMsg
+					|| media.getPayloadLength() + SUB_OVERHEAD > maxBytes) {
+				flush(alloc, group, groupBytes, packed);
+				group.clear();
+				groupBytes = 0;
+				packed.add(msg);
+				continue;
+			}
+			int size = media.getPayloadLength() + SUB_OVERHEAD;
+			if (groupBytes + size > maxBytes) {
+				flush(alloc, group, groupBytes, packed);
+				group.clear();
+				groupBytes = 0;
+			}
+			group.add(media);
+			groupBytes += size;
+		}
+		flush(alloc, group, groupBytes, packed);
+		return packed;
+	}
+
+	// 하나뿐이면 묶지 않는다
+	private static void flush(ByteBufAllocator alloc, List<RtmpMediaMsg> group, int groupBytes, List<RtmpBaseMsg> out) {
+		if (group.isEmpty()) {
+			return;
+		}
+		if (group.size() == 1) {
+			out.add(group.get(0));
+			return;
+		}
+		ByteBuf payload = alloc.ioBuffer(groupBytes);
+		long lastVideoTimestamp = -1;
+		for (RtmpMediaMsg msg : group) {
+			int size = msg.getPayloadLength();
+			long timestamp = msg.getTimeStamp();
+			payload.writeByte(msg.getMessageTypeId())
+					.writeMedium(size)
+					.writeMedium((int) timestamp)
+					.writeByte((int) (timestamp >>> 24))
+					.writeMedium(0)
+					.writeBytes(msg.getPayload(), msg.getPayload().readerIndex(), size)
+					.writeInt(SUB_HEADER_LENGTH + size);
+			if (msg instanceof RtmpVideoMsg) {
+				lastVideoTimestamp = timestamp;
+			}
+			ReferenceCountUtil.release(msg);
+		}
+		out.add(new RtmpAggregateMsg(group.get(0).getTimeStamp(), payload, lastVideoTimestamp));
+	}
+
+	@Override
+	public RtmpAggregateMsg copy() {
+		return new RtmpAggregateMsg(getTimeStamp(), getPayload().copy(), lastVideoTimestamp);
+	}
+
+	@Override
+	public RtmpAggregateMsg retain() {
+		super.retain();
+		return this;
+	}
+}
@@ -1,27 +1,26 @@
 package com.videotest.rtmp.chunk.message;
 
-import lombok.Getter;
+import io.netty.buffer.ByteBuf;
 
-@Getter
-public class RtmpAudioMsg extends RtmpBaseMsg {
+public class RtmpAudioMsg extends RtmpMediaMsg {
 
-	private final long timeStamp;
-
-	private final int timeStampDelta;
+	public RtmpAudioMsg(long timeStamp, int timeStampDelta, ByteBuf payload) {
+		super((byte) 0x08, timeStamp, timeStampDelta, payload);
+	}
 
-	private final int control;
+	public boolean isAACSequenceHeader() {
+		return getPayloadLength() > 2 && getPacketType() == 0x00;
+	}
 
-	private final byte[] audioBytes;
 
-	public RtmpAudioMsg(long timeStamp, int timeStampDelta, int control, byte[] audioBytes) {
-		super((byte) 0x08);
-		this.timeStamp = timeStamp;
-		this.timeStampDelta = timeStampDelta;
-		this.control = control;
-		this.audioBytes = audioBytes;
+	@Override
+	public RtmpAudioMsg copy() {
+		return new RtmpAudioMsg(getTimeStamp(), getTimeStampDelta(), getPayload().copy());
 	}
 
-	public boolean isAACSequenceHeader() {
-		return audioBytes.length > 1 && audioBytes[0] == 0x00;
+	@Override
+	public RtmpAudioMsg retain() {
+		super.retain();
+		return this;
 	}
 }
@@ -1,7 +1,7 @@
 package com.videotest.rtmp.chunk.message;
 
 import com.videotest.rtmp.chunk.header.MessageHeader;
-import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -13,6 +13,8 @@ public class RtmpData {
 	private byte format;
 	private int curStreamId;
 	private MessageHeader messageHeader;
-	private ByteBuf payload;
+	private CompositeByteBuf payload;
 	private long msgCount;
+	// 직전 헤더가 extended timestamp 를 사용했는지 (fmt3 청크도 따라서 4바이트를 가진다)
+	private boolean extendedTimestamp;
 }
@@ -0,0 +1,138 @@
+package com.videotest.rtmp.chunk.message;
+
+import com.videotest.rtmp.util.ChunkWriter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ReferenceCounted;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * 오디오/비디오 공통 메시지
+ * payload 는 control 바이트를 포함한 원본 그대로이며, 참조 카운트는 payload 에 위임한다.
+ */
+@Getter
+public abstract class RtmpMediaMsg extends RtmpBaseMsg implements ReferenceCounted {
+
+	private final long timeStamp;
+
+	private final int timeStampDelta;
+
+	private final ByteBuf payload;
+
+	// 청크로 나눈 본문 캐시, 플레이어들의 인코더가 함께 쓴다 (chunkSize 등 조합마다 하나)
+	@Getter(AccessLevel.NONE)
+	private volatile EncodedBody[] encodedBodies = new EncodedBody[0];
+
+	protected RtmpMediaMsg(byte messageTypeId, long timeStamp, int timeStampDelta, ByteBuf payload) {
+		super(messageTypeId);
+		this.timeStamp = timeStamp;
+		this.timeStampDelta = timeStampDelta;
+		this.payload = payload;
+	}
+
+	public int getControl() {
+		return payload.getUnsignedByte(payload.readerIndex());
+	}
+
+	public int getPayloadLength() {
+		return payload.readableBytes();
+	}
+
+	/**
+	 * payload 를 크기에 맞는 새 버퍼로 복사한 같은 종류의 메시지, 청크 본문 캐시는 가져가지 않는다
+	 */
+	public abstract RtmpMediaMsg copy();
+
+	/** control 바이트 다음 첫 바이트 (AVC/AAC packet type) */
+	protected byte getPacketType() {
+		return payload.getByte(payload.readerIndex() + 1);
+	}
+
+	/**
+	 * 청크로 나눈 본문을 한 번만 만들어 공유한다.
+	 * 반환된 버퍼는 이 메시지가 소유하므로, 메시지 참조를 가진 동안 retainedDuplicate() 해서 써야 한다.
+	 */
+	public ByteBuf chunkedBody(ByteBufAllocator alloc, int chunkSize, int csid, long extendedTimestamp) {
+		ByteBuf body = findEncodedBody(encodedBodies, chunkSize, csid, extendedTimestamp);
+		if (body != null) {
+			return body;
+		}
+		synchronized (this) {
+			EncodedBody[] bodies = encodedBodies;
+			body = findEncodedBody(bodies, chunkSize, csid, extendedTimestamp);
+			if (body == null) {
+				body = ChunkWriter.chunkedBody(alloc, payload, chunkSize, csid, extendedTimestamp);
+				EncodedBody[] grown = Arrays.copyOf(bodies, bodies.length + 1);
+				grown[bodies.length] = new EncodedBody(chunkSize, csid, extendedTimestamp, body);
+				encodedBodies = grown;
+			}
+			return body;
+		}
+	}
+
+	private static ByteBuf findEncodedBody(EncodedBody[] bodies, int chunkSize, int csid, long extendedTimestamp) {
+		for (EncodedBody encoded : bodies) {
+			if (encoded.chunkSize == chunkSize && encoded.csid == csid && encoded.extendedTimestamp == extendedTimestamp) {
+				return encoded.body;
+			}
+		}
+		return null;
+	}
+
+	private void releaseEncodedBodies() {
+		for (EncodedBody encoded : encodedBodies) {
+			encoded.body.release();
+		}
+		encodedBodies = new EncodedBody[0];
+	}
+
+	private record EncodedBody(int chunkSize, int csid, long extendedTimestamp, ByteBuf body) {
+	}
+
+	@Override
+	public int refCnt() {
+		return payload.refCnt();
+	}
+
+	@Override
+	public RtmpMediaMsg retain() {
+		payload.retain();
+		return this;
+	}
+
+	@Override
+	public RtmpMediaMsg retain(int increment) {
+		payload.retain(increment);
+		return this;
+	}
+
+	@Override
+	public RtmpMediaMsg touch() {
+		payload.touch();
+		return this;
+	}
+
+	@Override
+	public RtmpMediaMsg touch(Object hint) {
+		payload.touch(hint);
+		return this;
+	}
+
+	@Override
+	public boolean release() {
+		return release(1);
+	}
+
+	@Override
+	public boolean release(int decrement) {
+		boolean deallocated = payload.release(decrement);
+		if (deallocated) {
+			releaseEncodedBodies();
+		}
+		return deallocated;
+	}
+
+}
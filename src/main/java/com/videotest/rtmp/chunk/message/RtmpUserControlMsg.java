@@ -5,6 +5,11 @@ import lombok.Getter;
 @Getter
 public class RtmpUserControlMsg extends RtmpBaseMsg {
 
+	// event type
+	public static final short STREAM_BEGIN = 0;
+	public static final short PING_REQUEST = 6; // eventData: 보낸 쪽의 timestamp
+	public static final short PING_RESPONSE = 7; // eventData: 받은 PING_REQUEST 의 timestamp
+
 	private int msgStreamID = 0;
 
 	private int csid = 2;
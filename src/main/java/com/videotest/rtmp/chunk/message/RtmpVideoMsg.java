@@ -1,32 +1,30 @@
 package com.videotest.rtmp.chunk.message;
 
-import lombok.Getter;
+import io.netty.buffer.ByteBuf;
 
-@Getter
-public class RtmpVideoMsg extends RtmpBaseMsg {
+public class RtmpVideoMsg extends RtmpMediaMsg {
 
-	private final long timeStamp;
-
-	private final int timeStampDelta;
-
-	private final int control;
-
-	private final byte[] videoBytes;
-
-	public RtmpVideoMsg(long timeStamp, int timeStampDelta, int control, byte[] videoBytes) {
-		super((byte) 0x09);
-		this.timeStamp = timeStamp;
-		this.timeStampDelta = timeStampDelta;
-		this.control = control;
-		this.videoBytes = videoBytes;
+	public RtmpVideoMsg(long timeStamp, int timeStampDelta, ByteBuf payload) {
+		super((byte) 0x09, timeStamp, timeStampDelta, payload);
 	}
+
 	public boolean isH264KeyFrame() {
-		return control == 0x17;
+		return getControl() == 0x17;
 	}
 
 	public boolean isAVCSequenceHeader() {
-		return isH264KeyFrame() && videoBytes.length > 1 && videoBytes[0] == 0x00;
+		return isH264KeyFrame() && getPayloadLength() > 2 && getPacketType() == 0x00;
 	}
 
 
+	@Override
+	public RtmpVideoMsg copy() {
+		return new RtmpVideoMsg(getTimeStamp(), getTimeStampDelta(), getPayload().copy());
+	}
+
+	@Override
+	public RtmpVideoMsg retain() {
+		super.retain();
+		return this;
+	}
 }
@@ -1,10 +1,17 @@
 package com.videotest.rtmp.chunk.type;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+/**
+ * AMF0 인코더/디코더
+ * 문자열은 ByteBuf 에서 바로 읽고, 자주 나오는 키와 명령 이름은 미리 만든 String 을 돌려준다.
+ * 인코딩은 호출하는 쪽이 넘긴 버퍼(보통 채널의 pooled 버퍼)에 바로 쓴다.
+ */
 public class AMF0 {
     public static final int Number = 0x00;
     public static final int Boolean = 0x01;
@@ -32,19 +39,68 @@ public class AMF0 {
     private static final byte BOOLEAN_FALSE = 0x00;
 
     private static final byte[] END_OF_OBJECT = new byte[] {0x00, 0x00, 0x09};
+    private static final int END_OF_OBJECT_MARKER = 0x000009;
+
+    // connect/publish/play 명령과 onStatus, onMetaData 에 자주 나오는 문자열
+    private static final String[] INTERNED = {
+            "level", "code", "description", "details", "clientid", "status", "error",
+            "app", "type", "flashVer", "swfUrl", "tcUrl", "pageUrl", "fpad", "capabilities",
+            "audioCodecs", "videoCodecs", "videoFunction", "objectEncoding", "fmsVer", "mode", "nonprivate",
+            "duration", "fileSize", "filesize", "width", "height", "framerate", "videocodecid", "videodatarate",
+            "audiocodecid", "audiodatarate", "audiosamplerate", "audiosamplesize", "audiochannels", "stereo",
+            "encoder", "2.1", "3.1", "4.0", "4.1", "5.1", "7.1",
+            "connect", "_result", "_error", "onStatus", "onBWDone", "releaseStream", "FCPublish", "FCUnpublish",
+            "onFCPublish", "createStream", "deleteStream", "publish", "play", "live", "@setDataFrame", "onMetaData",
+            "|RtmpSampleAccess", "NetConnection.Connect.Success", "NetStream.Publish.Start", "NetStream.Play.Start",
+    };
+    // 길이별 후보, 같은 길이의 후보끼리만 바이트를 비교한다
+    private static final byte[][][] INTERNED_BYTES;
+    private static final String[][] INTERNED_STRINGS;
+
+    static {
+        int maxLength = 0;
+        for (String str : INTERNED) {
+            maxLength = Math.max(maxLength, str.length());
+        }
+        List<List<String>> byLength = new ArrayList<>();
+        for (int i = 0; i <= maxLength; i++) {
+            byLength.add(new ArrayList<>());
+        }
+        for (String str : INTERNED) {
+            byLength.get(str.length()).add(str);
+        }
+        INTERNED_BYTES = new byte[maxLength + 1][][];
+        INTERNED_STRINGS = new String[maxLength + 1][];
+        for (int i = 0; i <= maxLength; i++) {
+            List<String> candidates = byLength.get(i);
+            INTERNED_STRINGS[i] = candidates.toArray(new String[0]);
+            INTERNED_BYTES[i] = new byte[candidates.size()][];
+            for (int j = 0; j < candidates.size(); j++) {
+                INTERNED_BYTES[i][j] = candidates.get(j).getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
 
     public static int getType(Object obj) {
         if (obj == null) {
             return Null;
         }
-        if (obj instanceof Number) {
+        // 대부분은 정확한 클래스 비교로 끝난다
+        Class<?> type = obj.getClass();
+        if (type == String.class) {
+            return String;
+        }
+        if (type == Double.class) {
             return Number;
         }
-        if (obj instanceof Boolean) {
+        if (type == LinkedHashMap.class) {
+            return Object;
+        }
+        if (type == Boolean.class) {
             return Boolean;
         }
-        if (obj instanceof String) {
-            return String;
+        if (obj instanceof Number) {
+            return Number;
         }
         if (obj instanceof LinkedHashMap<?,?>) {
             return Object;
@@ -58,7 +114,7 @@ public class AMF0 {
         if (obj instanceof Date) {
             return Date;
         }
-        throw new RuntimeException("unexpected obj class: " + obj.getClass().getComponentType());
+        throw new RuntimeException("unexpected obj class: " + obj.getClass().getName());
     }
 
     public static List<Object> decodeAll(final ByteBuf in) throws Exception {
@@ -75,10 +131,43 @@ public class AMF0 {
     }
 
     private static String decodeString(final ByteBuf in) {
-        short length = in.readShort();
-        byte[] bytes = new byte[length];
-        in.readBytes(bytes);
-        return new String(bytes);
+        return readString(in, in.readUnsignedShort());
+    }
+
+    private static String readString(final ByteBuf in, final int length) {
+        String interned = findInterned(in, in.readerIndex(), length);
+        if (interned != null) {
+            in.skipBytes(length);
+            return interned;
+        }
+        return in.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+
+    private static String findInterned(final ByteBuf in, final int index, final int length) {
+        if (length >= INTERNED_BYTES.length) {
+            return null;
+        }
+        byte[][] candidates = INTERNED_BYTES[length];
+        for (int i = 0; i < candidates.length; i++) {
+            byte[] bytes = candidates[i];
+            int j = 0;
+            while (j < length && in.getByte(index + j) == bytes[j]) {
+                j++;
+            }
+            if (j == length) {
+                return INTERNED_STRINGS[length][i];
+            }
+        }
+        return null;
+    }
+
+    // 다음 3바이트가 object end (0x00 0x00 0x09) 이면 건너뛰고 true
+    private static boolean skipEndOfObject(final ByteBuf in) {
+        if (in.readableBytes() >= 3 && in.getUnsignedMedium(in.readerIndex()) == END_OF_OBJECT_MARKER) {
+            in.skipBytes(3);
+            return true;
+        }
+        return false;
     }
 
     private static Object decode(final ByteBuf in, final byte type) throws Exception {
@@ -92,13 +181,7 @@ public class AMF0 {
             }
             case Object: {
                 LinkedHashMap<String, Object> obj = new LinkedHashMap<>();
-                final byte[] endOfObject = new byte[3];
-                while (in.isReadable()) {
-                    in.getBytes(in.readerIndex(), endOfObject);
-                    if (Arrays.equals(endOfObject, END_OF_OBJECT)) {
-                        in.skipBytes(3);
-                        break;
-                    }
+                while (in.isReadable() && !skipEndOfObject(in)) {
                     obj.put(decodeString(in), decode(in));
                 }
                 return obj;
@@ -106,13 +189,7 @@ public class AMF0 {
             case EcmaArray: {
                 int len = in.readInt(); // array length
                 Map<String, Object> map = new LinkedHashMap<>();
-                final byte[] endOfObject = new byte[3];
-                while (in.isReadable()) {
-                    in.getBytes(in.readerIndex(), endOfObject);
-                    if (Arrays.equals(endOfObject, END_OF_OBJECT)) {
-                        in.skipBytes(3);
-                        break;
-                    }
+                while (in.isReadable() && !skipEndOfObject(in)) {
                     map.put(decodeString(in), decode(in));
                 }
                 return map;
@@ -125,14 +202,12 @@ public class AMF0 {
                 }
                 return array;
             case Date:
-                long date = in.readLong();
+                long date = (long) Double.longBitsToDouble(in.readLong());
                 in.readShort();//ignore timezone
                 return new Date(date);
             case LongString:
                 int length = in.readInt();
-                byte[] bytes = new byte[length];
-                in.readBytes(bytes);
-                return new String(bytes);
+                return readString(in, length);
             case Null:
             case Undefined:
             case UnSupported:
@@ -142,69 +217,93 @@ public class AMF0 {
         }
     }
 
-    public static ByteBuf encodeAll(final List<Object> objs) throws Exception {
+    /**
+     * 새 버퍼를 할당해서 인코딩한다. 반환된 버퍼는 호출한 쪽이 release 해야 한다.
+     */
+    public static ByteBuf encodeAll(final ByteBufAllocator alloc, final List<Object> objs) throws Exception {
         if (objs == null) {
             return null;
         }
 
-        ByteBuf tmpOut = Unpooled.buffer();
+        ByteBuf out = alloc.buffer();
+        try {
+            encodeAll(out, objs);
+        } catch (Exception e) {
+            out.release();
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * out 의 writerIndex 부터 이어서 쓴다.
+     */
+    public static void encodeAll(final ByteBuf out, final List<Object> objs) throws Exception {
+        if (objs == null) {
+            return;
+        }
         for (Object obj : objs) {
-            encode(tmpOut, obj);
+            encode(out, obj);
         }
-        return tmpOut;
     }
 
-    private static void encodeString(final ByteBuf tmpOut, final String str) {
-        byte[] bytes = str.getBytes();
-        tmpOut.writeShort((short) bytes.length);
-        tmpOut.writeBytes(bytes);
+    // 길이 자리를 비워두고 UTF-8 로 쓴 뒤 길이를 채운다
+    private static void encodeString(final ByteBuf out, final String str) {
+        int lengthIndex = out.writerIndex();
+        out.writeShort(0);
+        int length = out.writeCharSequence(str, StandardCharsets.UTF_8);
+        out.setShort(lengthIndex, length);
     }
 
-    private static void encode(final ByteBuf tmpOut, final Object obj) throws Exception {
+    private static void encode(final ByteBuf out, final Object obj) throws Exception {
         int type = getType(obj);
-        tmpOut.writeByte(type);
+        if (type == String && ByteBufUtil.utf8Bytes((String) obj) > 0xffff) {
+            out.writeByte(LongString);
+            int lengthIndex = out.writerIndex();
+            out.writeInt(0);
+            out.setInt(lengthIndex, out.writeCharSequence((String) obj, StandardCharsets.UTF_8));
+            return;
+        }
+        out.writeByte(type);
         switch (type) {
             case Number:
-                if (obj instanceof Double) {
-                    tmpOut.writeLong(Double.doubleToLongBits((Double) obj));
-                } else {
-                    tmpOut.writeLong(Double.doubleToLongBits(Double.parseDouble(obj.toString())));
-                }
+                out.writeLong(Double.doubleToLongBits(((Number) obj).doubleValue()));
                 return;
             case Boolean:
-                tmpOut.writeByte((Boolean) obj ? BOOLEAN_TRUE : BOOLEAN_FALSE);
+                out.writeByte((Boolean) obj ? BOOLEAN_TRUE : BOOLEAN_FALSE);
                 return;
             case String: {
-                encodeString(tmpOut, (String) obj);
+                encodeString(out, (String) obj);
                 return;
             }
             case Object:
                 LinkedHashMap<String, Object> amf0Object = (LinkedHashMap) obj;
                 for (Map.Entry<String, Object> entry : amf0Object.entrySet()) {
-                    encodeString(tmpOut, entry.getKey());
-                    encode(tmpOut, entry.getValue());
+                    encodeString(out, entry.getKey());
+                    encode(out, entry.getValue());
                 }
-                tmpOut.writeBytes(END_OF_OBJECT);
+                out.writeBytes(END_OF_OBJECT);
                 return;
             case EcmaArray:
                 Map<String, Object> map = (Map<String, Object>) obj;
+                out.writeInt(map.size()); // array length
                 for (Map.Entry<String, Object> entry : map.entrySet()) {
-                    encodeString(tmpOut, entry.getKey());
-                    encode(tmpOut, entry.getValue());
+                    encodeString(out, entry.getKey());
+                    encode(out, entry.getValue());
                 }
-                tmpOut.writeBytes(END_OF_OBJECT);
+                out.writeBytes(END_OF_OBJECT);
                 return;
             case StrictArray:
                 Object[] array = (Object[]) obj;
-                tmpOut.writeInt(array.length);
+                out.writeInt(array.length);
                 for (Object o : array) {
-                    encode(tmpOut, o);
+                    encode(out, o);
                 }
                 return;
             case Date:
                 long time = ((Date) obj).getTime();
-                tmpOut.writeLong(Double.doubleToLongBits(time));
-                tmpOut.writeShort((short) 0);//timezone
+                out.writeLong(Double.doubleToLongBits(time));
+                out.writeShort((short) 0);//timezone
                 return;
             case Null:
             case Undefined:
@@ -0,0 +1,77 @@
+package com.videotest.rtmp.server;
+
+import com.videotest.rtmp.chunk.message.RtmpAMF0EncodedMsg;
+import com.videotest.rtmp.chunk.type.AMF0;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Arrays;
+
+/**
+ * 미리 인코딩해 둔 AMF0 응답
+ * 명령 이름 다음의 transaction id 만 응답마다 바꿔 끼우고, 나머지는 공유 버퍼의 duplicate 를 쓴다.
+ */
+public final class AmfTemplate {
+
+	private final byte messageTypeId;
+	// release 되지 않는 공유 버퍼, duplicate 를 release 해도 영향이 없다
+	private final ByteBuf encoded;
+	// transaction id (double) 8바이트의 위치, 없으면 -1
+	private final int transactionIdIndex;
+
+	private AmfTemplate(byte messageTypeId, ByteBuf encoded, int transactionIdIndex) {
+		this.messageTypeId = messageTypeId;
+		this.encoded = Unpooled.unreleasableBuffer(encoded);
+		this.transactionIdIndex = transactionIdIndex;
+	}
+
+	/**
+	 * @param objects 명령 이름, transaction id, 나머지 인자 순서
+	 */
+	public static AmfTemplate command(Object... objects) {
+		ByteBuf encoded = Unpooled.directBuffer();
+		int transactionIdIndex = -1;
+		try {
+			AMF0.encodeAll(encoded, Arrays.asList(objects[0]));
+			if (objects.length > 1 && objects[1] instanceof Number) {
+				transactionIdIndex = encoded.writerIndex() + 1; // type marker 다음
+			}
+			AMF0.encodeAll(encoded, Arrays.asList(objects).subList(1, objects.length));
+		} catch (Exception e) {
+			encoded.release();
+			throw new IllegalArgumentException("cannot encode amf template: " + objects[0], e);
+		}
+		return new AmfTemplate(RtmpAMF0EncodedMsg.COMMAND, encoded, transactionIdIndex);
+	}
+
+	public static AmfTemplate data(Object... objects) {
+		ByteBuf encoded = Unpooled.directBuffer();
+		try {
+			AMF0.encodeAll(encoded, Arrays.asList(objects));
+		} catch (Exception e) {
+			encoded.release();
+			throw new IllegalArgumentException("cannot encode amf template: " + objects[0], e);
+		}
+		return new AmfTemplate(RtmpAMF0EncodedMsg.DATA, encoded, -1);
+	}
+
+	/** 인코딩된 그대로 보낸다 */
+	public RtmpAMF0EncodedMsg newMessage() {
+		return new RtmpAMF0EncodedMsg(messageTypeId, encoded.duplicate());
+	}
+
+	/** transaction id 만 바꿔서 보낸다 */
+	public RtmpAMF0EncodedMsg newMessage(ByteBufAllocator alloc, double transactionId) {
+		if (transactionIdIndex < 0) {
+			return newMessage();
+		}
+		int end = encoded.writerIndex();
+		CompositeByteBuf payload = alloc.compositeBuffer(3);
+		payload.addComponent(true, encoded.slice(0, transactionIdIndex));
+		payload.addComponent(true, alloc.buffer(8).writeDouble(transactionId));
+		payload.addComponent(true, encoded.slice(transactionIdIndex + 8, end - transactionIdIndex - 8));
+		return new RtmpAMF0EncodedMsg(messageTypeId, payload);
+	}
+}
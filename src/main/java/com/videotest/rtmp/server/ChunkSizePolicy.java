@@ -0,0 +1,60 @@
+package com.videotest.rtmp.server;
+
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.server.stream.StreamStats;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * 서버가 보내는 청크 크기 정책
+ * 청크가 클수록 큰 키프레임을 나누는 fmt3 헤더와 복사 횟수가 줄고, 작을수록 오디오가 큰 비디오 뒤에서 덜 기다린다.
+ * adaptiveChunkSize 를 켜면 스트림의 평균 비디오 프레임이 한두 청크에 들어가도록 키프레임마다 다시 정한다.
+ */
+public final class ChunkSizePolicy {
+
+	public static final int MIN_CHUNK_SIZE = 128;
+	// 메시지 길이 필드가 3바이트라 그보다 큰 청크는 의미가 없다
+	public static final int MAX_CHUNK_SIZE = 0xffffff;
+
+	// 채널에 마지막으로 알린 청크 크기
+	private static final AttributeKey<Integer> OUT_CHUNK_SIZE = AttributeKey.valueOf("rtmp.outChunkSize");
+
+	private ChunkSizePolicy() {
+	}
+
+	public static int initialChunkSize(RtmpProperties properties) {
+		return clamp(properties.getOutChunkSize());
+	}
+
+	/**
+	 * 평균 비디오 프레임 크기 이상인 가장 작은 2의 거듭제곱, outChunkSize ~ maxOutChunkSize 사이로 자른다.
+	 * 2의 거듭제곱으로 맞추므로 bitrate 가 조금 흔들려도 SetChunkSize 를 자주 보내지 않는다.
+	 */
+	public static int chunkSize(RtmpProperties properties, StreamStats stats) {
+		int base = initialChunkSize(properties);
+		if (!properties.isAdaptiveChunkSize()) {
+			return base;
+		}
+		long frameBytes = stats.getAverageVideoFrameBytes();
+		if (frameBytes <= base) {
+			return base;
+		}
+		long size = Long.highestOneBit(frameBytes - 1) << 1;
+		return clamp((int) Math.min(size, Math.max(base, properties.getMaxOutChunkSize())));
+	}
+
+	/**
+	 * 채널의 청크 크기가 다르면 SetChunkSize 를 write 한다. flush 는 하지 않는다.
+	 * 인코더가 이 메시지를 인코딩하는 순간부터 새 크기로 나누므로, 이후 write 되는 메시지는 어느 스레드에서 왔든 새 크기를 따른다.
+	 */
+	public static void apply(Channel channel, int chunkSize) {
+		Integer current = channel.attr(OUT_CHUNK_SIZE).getAndSet(chunkSize);
+		if (current == null || current != chunkSize) {
+			channel.write(new RtmpChunkMsg(chunkSize), channel.voidPromise());
+		}
+	}
+
+	private static int clamp(int chunkSize) {
+		return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+	}
+}
@@ -0,0 +1,73 @@
+package com.videotest.rtmp.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 서버 전체의 연결 수락 한도
+ * 초당 새 연결 수는 token bucket 으로, 진행중인 handshake 수는 전체와 IP 별로 제한한다.
+ * 한도가 0 이하이면 제한하지 않는다.
+ */
+public class ConnectionLimiter {
+
+	private final RtmpProperties properties;
+	private final AtomicInteger handshakes = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, Integer> handshakesPerIp = new ConcurrentHashMap<>();
+
+	// token bucket, 최대 1초치까지 쌓인다
+	private double tokens;
+	private long lastRefillNanos = -1;
+
+	public ConnectionLimiter(RtmpProperties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * 새 연결을 받을지 정하고, 받으면 handshake 자리를 하나 잡는다. 받은 연결은 releaseHandshake 를 한 번 불러야 한다.
+	 * @param address IP 를 알 수 없으면 null, IP 별 제한을 하지 않는다
+	 * @return 거절한 이유 (rate, handshakes, per_ip), 받았으면 null
+	 */
+	public String tryAdmit(InetAddress address) {
+		if (!tryAcquireToken()) {
+			return "rate";
+		}
+		int maxHandshakes = properties.getMaxConcurrentHandshakes();
+		if (handshakes.incrementAndGet() > maxHandshakes && maxHandshakes > 0) {
+			handshakes.decrementAndGet();
+			return "handshakes";
+		}
+		int maxPerIp = properties.getMaxHandshakesPerIp();
+		if (address != null && handshakesPerIp.merge(address, 1, Integer::sum) > maxPerIp && maxPerIp > 0) {
+			releaseHandshake(address);
+			return "per_ip";
+		}
+		return null;
+	}
+
+	public void releaseHandshake(InetAddress address) {
+		handshakes.decrementAndGet();
+		if (address != null) {
+			handshakesPerIp.computeIfPresent(address, (ip, count) -> count > 1 ? count - 1 : null);
+		}
+	}
+
+	public int getHandshakes() {
+		return handshakes.get();
+	}
+
+	private synchronized boolean tryAcquireToken() {
+		int rate = properties.getMaxConnectionsPerSecond();
+		if (rate <= 0) {
+			return true;
+		}
+		long now = System.nanoTime();
+		tokens = lastRefillNanos < 0 ? rate : Math.min(rate, tokens + (now - lastRefillNanos) * rate / 1e9);
+		lastRefillNanos = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+}
@@ -0,0 +1,57 @@
+package com.videotest.rtmp.server;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 연결 단위 카운터, 스트림 미터와 같이 global registry 에 등록한다.
+ * <ul>
+ *     <li>rtmp.connections.rejected (reason=rate|handshakes|per_ip): 수락 단계에서 바로 닫은 연결</li>
+ *     <li>rtmp.connections.timeout (phase=handshake|idle): 시간 안에 handshake 를 끝내지 못했거나 idle 로 닫은 연결</li>
+ *     <li>rtmp.connections.rtt: UserControl ping 으로 잰 RTT</li>
+ *     <li>rtmp.handshakes.active: 지금 서버의 ConnectionLimiter 가 잡고 있는 handshake 자리</li>
+ * </ul>
+ */
+public final class ConnectionMetrics {
+
+	private static final MeterRegistry registry = Metrics.globalRegistry;
+	private static final Timer rtt = Timer.builder("rtmp.connections.rtt")
+			.publishPercentiles(0.5, 0.99)
+			.register(registry);
+	// gauge 는 이름당 한 번만 등록되고 대상을 weak reference 로 잡으므로, 서버를 다시 시작해도 이 참조만 바꾼다
+	private static final AtomicReference<ConnectionLimiter> limiter = new AtomicReference<>();
+
+	static {
+		Gauge.builder("rtmp.handshakes.active", limiter, ref -> {
+			ConnectionLimiter current = ref.get();
+			return current == null ? 0 : current.getHandshakes();
+		}).register(registry);
+	}
+
+	private ConnectionMetrics() {
+	}
+
+	/**
+	 * rtmp.handshakes.active 가 읽을 limiter, 서버가 시작할 때마다 새 limiter 로 바꾼다
+	 */
+	public static void bindLimiter(ConnectionLimiter connectionLimiter) {
+		limiter.set(connectionLimiter);
+	}
+
+	public static void onRejected(String reason) {
+		registry.counter("rtmp.connections.rejected", "reason", reason).increment();
+	}
+
+	public static void onTimeout(String phase) {
+		registry.counter("rtmp.connections.timeout", "phase", phase).increment();
+	}
+
+	public static void onRtt(long nanos) {
+		rtt.record(nanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,114 @@
+package com.videotest.rtmp.server;
+
+import com.videotest.rtmp.server.stream.Stream;
+import com.videotest.rtmp.server.stream.StreamManager;
+import com.videotest.rtmp.util.pipeline.AdmissionControlHandler;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.EventExecutor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 스트림 단위로 이벤트 루프를 맞춘다.
+ * 플레이어를 퍼블리셔의 이벤트 루프로 옮기면 브로드캐스트 write 가 다른 스레드의 task queue 를 거치지 않는다.
+ * 퍼블리셔는 시청자 수 합이 가장 적은 이벤트 루프로 옮겨 스트림을 고르게 나눈다.
+ * 배치는 publish 할 때 한 번만 정한다. 그 뒤로 시청자가 늘거나 줄어도 이미 배치한 스트림은 옮기지 않으므로,
+ * 여러 스트림이 시청자 없이 한꺼번에 시작하면 루프마다 돌아가며 놓인다.
+ * 옮긴 채널은 이전 루프에 예약된 idle 감시를 새 루프에서 다시 만든다. PingHandler 는 channelRegistered 에서 ping 을 다시 예약한다.
+ */
+@Slf4j
+public class EventLoopAffinity {
+
+	private final EventLoopGroup workerGroup;
+	private final RtmpProperties properties;
+
+	public EventLoopAffinity(EventLoopGroup workerGroup, RtmpProperties properties) {
+		this.workerGroup = workerGroup;
+		this.properties = properties;
+	}
+
+	/**
+	 * 새 스트림의 퍼블리셔를 가장 한가한 이벤트 루프로 옮긴다.
+	 */
+	public void onPublish(Stream stream) {
+		if (!properties.isBalanceStreamsByViewers()) {
+			return;
+		}
+		Channel publisher = stream.getPublisher();
+		EventLoop target = leastLoadedLoop(stream, publisher.eventLoop());
+		migrate(publisher, target, () -> log.info("publisher=" + publisher.id() + " moved to " + target));
+	}
+
+	/**
+	 * 플레이어를 퍼블리셔의 이벤트 루프로 옮긴 뒤 그 루프에서 then 을 실행한다.
+	 */
+	public void onPlay(Channel player, Stream stream, Runnable then) {
+		if (!properties.isPlayerPublisherLoopAffinity() || stream.getPublisher() == null) {
+			then.run();
+			return;
+		}
+		migrate(player, stream.getPublisher().eventLoop(), then);
+	}
+
+	// 퍼블리셔 + 시청자 수를 부하로 보고, 같으면 지금 루프를 유지한다
+	private EventLoop leastLoadedLoop(Stream placing, EventLoop current) {
+		Map<EventLoop, Integer> loads = new HashMap<>();
+		for (Stream stream : StreamManager.getStreams()) {
+			Channel publisher = stream.getPublisher();
+			if (stream == placing || publisher == null || !publisher.isActive()) {
+				continue;
+			}
+			loads.merge(publisher.eventLoop(), stream.getPlayers().size() + 1, Integer::sum);
+		}
+
+		EventLoop best = current;
+		int bestLoad = loads.getOrDefault(current, 0);
+		for (EventExecutor executor : workerGroup) {
+			EventLoop loop = (EventLoop) executor;
+			int load = loads.getOrDefault(loop, 0);
+			if (load < bestLoad) {
+				best = loop;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	private static void migrate(Channel channel, EventLoop target, Runnable then) {
+		if (channel.eventLoop() == target) {
+			then.run();
+			return;
+		}
+		channel.deregister().addListener(deregistered -> {
+			if (!deregistered.isSuccess()) {
+				log.warn("failed to deregister channel=" + channel.id(), deregistered.cause());
+				channel.close();
+				return;
+			}
+			target.register(channel).addListener(registered -> {
+				if (!registered.isSuccess()) {
+					log.warn("failed to register channel=" + channel.id() + " to " + target, registered.cause());
+					channel.close();
+					return;
+				}
+				restartIdleHandler(channel);
+				then.run();
+			});
+		});
+	}
+
+	// IdleStateHandler 의 타이머는 이전 루프에 예약되어 있으므로 같은 설정으로 새로 만들어 지금 루프에 예약한다
+	private static void restartIdleHandler(Channel channel) {
+		if (channel.pipeline().get(AdmissionControlHandler.IDLE_HANDLER_NAME) instanceof IdleStateHandler idle) {
+			channel.pipeline().replace(idle, AdmissionControlHandler.IDLE_HANDLER_NAME,
+					new IdleStateHandler(idle.getReaderIdleTimeInMillis(), idle.getWriterIdleTimeInMillis(),
+							idle.getAllIdleTimeInMillis(), TimeUnit.MILLISECONDS));
+		}
+	}
+}
@@ -5,19 +5,49 @@ import com.videotest.rtmp.chunk.type.AMF0;
 import com.videotest.rtmp.server.stream.Stream;
 import com.videotest.rtmp.server.stream.StreamId;
 import com.videotest.rtmp.server.stream.StreamManager;
+import com.videotest.rtmp.util.pipeline.AcknowledgementHandler;
+import com.videotest.rtmp.util.pipeline.AdmissionControlHandler;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.timeout.IdleStateHandler;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class MessageHandler {
 
+	// 클라이언트마다 같은 응답이라 미리 인코딩해 두고 transaction id 만 바꾼다
+	private static final AmfTemplate CONNECT_RESULT = AmfTemplate.command("_result", 0,
+			amf0Object("fmsVer", "FMS/3,5,3,888", "capabilities", 127, "mode", 1),
+			amf0Object("level", "status", "code", "NetConnection.Connect.Success",
+					"description", "Connection succeeded", "objectEncoding", 0));
+	private static final AmfTemplate BW_DONE = AmfTemplate.command("onBWDone", 0, null);
+	private static final AmfTemplate EMPTY_RESULT = AmfTemplate.command("_result", 0, null, null); //should be undefined
+	private static final AmfTemplate CREATE_STREAM_RESULT = AmfTemplate.command("_result", 0, null, 1); // stream id
+	private static final AmfTemplate FC_PUBLISH_START = AmfTemplate.command("onFCPublish", 0, null,
+			amf0Object("code", "NetStream.Publish.Start", "description", "Started publishing stream."));
+	private static final AmfTemplate PUBLISH_START = AmfTemplate.command("onStatus", 0, null,
+			amf0Object("level", "status", "code", "NetStream.Publish.Start",
+					"description", "Started publishing stream.", "clientid", "ASAICiss"));
+	private static final AmfTemplate PLAY_START = AmfTemplate.command("onStatus", 0, null,
+			amf0Object("level", "status", "code", "NetStream.Play.Start", "description", "Start live"));
+	private static final AmfTemplate SAMPLE_ACCESS = AmfTemplate.data("|RtmpSampleAccess", true, true);
+
+	private final RtmpProperties properties;
+	private final EventLoopAffinity affinity;
+
 	private Stream stream;
 
+	public MessageHandler(RtmpProperties properties, EventLoopAffinity affinity) {
+		this.properties = properties;
+		this.affinity = affinity;
+	}
+
 	public void handleVideo(RtmpVideoMsg msg) {
 		if (stream == null) {
 			return;
@@ -32,6 +62,14 @@ public class MessageHandler {
 		stream.onRecvAudio(msg);
 	}
 
+	// 퍼블리셔의 read 가 끝나면 모아둔 플레이어 write 를 flush 한다
+	public void handleReadComplete() {
+		if (stream == null) {
+			return;
+		}
+		stream.flushPlayers();
+	}
+
 	public void handleText(RtmpTextMsg msg) {
 		if (stream == null) {
 			return;
@@ -40,6 +78,23 @@ public class MessageHandler {
 		stream.onRecvText(msg);
 	}
 
+	// 플레이어의 ack 로 in flight 바이트와 처리량을 구한다
+	public void handleAck(ChannelHandlerContext ctx, RtmpAckMsg msg) {
+		AcknowledgementHandler acknowledgement = AcknowledgementHandler.of(ctx.channel());
+		if (acknowledgement != null) {
+			acknowledgement.onAcknowledgement(msg.getSequnceNumber());
+		}
+	}
+
+	// 상대가 ack 를 기다리는 간격, 이후 그만큼 받을 때마다 ack 를 보낸다
+	public void handleWindowAckSize(ChannelHandlerContext ctx, RtmpWinAckMsg msg) {
+		log.info("<-- recv Window Acknowledgement Size: " + msg.getAcknowledgementSize());
+		AcknowledgementHandler acknowledgement = AcknowledgementHandler.of(ctx.channel());
+		if (acknowledgement != null) {
+			acknowledgement.onWindowAckSize(msg.getAcknowledgementSize());
+		}
+	}
+
 	public void handleAMF0Data(ChannelHandlerContext ctx, RtmpAMF0DataMsg data) {
 		if (data == null) {
 			return;
@@ -126,47 +181,31 @@ public class MessageHandler {
 
 		// send streamBegin
 		log.info("--> send streamBegin for play");
-		RtmpUserControlMsg streamBegin = new RtmpUserControlMsg((short) 0, 0);
-		ctx.channel().writeAndFlush(streamBegin);
+		RtmpUserControlMsg streamBegin = new RtmpUserControlMsg(RtmpUserControlMsg.STREAM_BEGIN, 0);
+		ctx.channel().write(streamBegin);
 
 		// send onStatus('NetStream.Play.Start')
 		log.info("--> send onStatus('NetStream.Play.Start') for play");
-		List<Object> onStatus = new ArrayList<>();
-		onStatus.add("onStatus");
-		onStatus.add(0);
-		onStatus.add(null);
-		LinkedHashMap<String, Object> amf0Object = new LinkedHashMap<>();
-		amf0Object.put("level", "status");
-		amf0Object.put("code", "NetStream.Play.Start");
-		amf0Object.put("description", "Start live");
-		onStatus.add(amf0Object);
-		RtmpAMF0CmdMsg onStatusCommand = new RtmpAMF0CmdMsg(command.getCurStreamId(), onStatus);
-		ctx.channel().writeAndFlush(onStatusCommand);
+		ctx.channel().write(PLAY_START.newMessage());
 
 		// send |RtmpSampleAccess()
 		log.info("--> send |RtmpSampleAccess() for play");
-		List<Object> sampleAccess = new ArrayList<>();
-		sampleAccess.add("|RtmpSampleAccess");
-		sampleAccess.add(true);
-		sampleAccess.add(true);
-		RtmpAMF0DataMsg sampleAccessDataMessage = new RtmpAMF0DataMsg(command.getCurStreamId(), sampleAccess);
-		ctx.channel().writeAndFlush(sampleAccessDataMessage);
-
-		// send onMetaData()
+		ctx.channel().write(SAMPLE_ACCESS.newMessage());
+
+		// send onMetaData(), 스트림에 인코딩해 둔 것을 공유한다
 		log.info("--> send onMetaData() for play");
-		List<Object> onMetaData = new ArrayList<>();
-		onMetaData.add("onMetaData");
-		LinkedHashMap<String, Object> amf0Object1 = new LinkedHashMap<>();
-		if (stream.getMetaData() != null) {
-			amf0Object1.putAll(stream.getMetaData());
+		try {
+			ctx.channel().write(stream.newMetaDataMessage());
+		} catch (Exception e) {
+			log.error("cannot encode onMetaData, stream=" + streamId, e);
 		}
-		onMetaData.add(amf0Object1);
-		RtmpAMF0DataMsg dataMessage = new RtmpAMF0DataMsg(command.getCurStreamId(), onMetaData);
-		ctx.channel().writeAndFlush(dataMessage);
 
-		// start playing
+		// start playing, 위 응답들은 addPlayer 에서 입장 데이터와 함께 flush 된다
 		log.info(streamId + " is playing");
-		stream.addPlayer(ctx.channel());
+		affinity.onPlay(ctx.channel(), stream, () -> {
+			watchPlayerIdle(ctx.channel());
+			stream.addPlayer(ctx.channel());
+		});
 	}
 
 	private void doHandlePublish(final ChannelHandlerContext ctx, final RtmpAMF0CmdMsg command) {
@@ -185,136 +224,104 @@ public class MessageHandler {
 			streamName = streamName.substring(0, idx);
 		}
 		StreamId streamId = new StreamId(appName, streamName);
-		Stream newStream = new Stream(streamId, ctx.channel());
+		Stream newStream = new Stream(streamId, ctx.channel(), properties);
 		boolean createSuccess = StreamManager.createStream(streamId, newStream);
 		if (!createSuccess) {
 			log.error("refuse duplicated stream=" + streamId);
 			return;
 		}
 		stream = newStream;
+		// 퍼블리셔가 끊기면 cleaner 를 기다리지 않고 GOP 캐시 등을 바로 해제한다
+		ctx.channel().closeFuture().addListener(future -> {
+			log.info(streamId + " publisher closed");
+			StreamManager.deleteStream(newStream);
+		});
 		log.info(streamId + " is publishing");
+		affinity.onPublish(newStream);
 
 		// send onFCPublish()
 		log.info("--> send onFCPublish() for publish");
-		List<Object> onFCPublish = new ArrayList<>();
-		onFCPublish.add("onFCPublish");
-		onFCPublish.add(0);
-		onFCPublish.add(null);
-		LinkedHashMap<String, Object> amf0Object = new LinkedHashMap<>();
-		amf0Object.put("code", "NetStream.Publish.Start");
-		amf0Object.put("description", "Started publishing stream.");
-		onFCPublish.add(amf0Object);
-		RtmpAMF0CmdMsg onFCPublishCommand = new RtmpAMF0CmdMsg(command.getCurStreamId(), onFCPublish);
-		ctx.channel().writeAndFlush(onFCPublishCommand);
+		ctx.channel().writeAndFlush(FC_PUBLISH_START.newMessage());
 
 		// send onStatus('NetStream.Publish.Start')
 		log.info("--> send onStatus('NetStream.Publish.Start') for publish");
-		List<Object> onStatus = new ArrayList<>();
-		onStatus.add("onStatus");
-		onStatus.add(0);
-		onStatus.add(null);
-		LinkedHashMap<String, Object> amf0Object1 = new LinkedHashMap<>();
-		amf0Object1.put("level", "status");
-		amf0Object1.put("code", "NetStream.Publish.Start");
-		amf0Object1.put("description", "Started publishing stream.");
-		amf0Object1.put("clientid", "ASAICiss");
-		onStatus.add(amf0Object1);
-		RtmpAMF0CmdMsg onStatusCommand = new RtmpAMF0CmdMsg(command.getCurStreamId(), onStatus);
-		ctx.channel().writeAndFlush(onStatusCommand);
+		ctx.channel().writeAndFlush(PUBLISH_START.newMessage());
 	}
 
 	private void doHandleCreateStream(final ChannelHandlerContext ctx, final RtmpAMF0CmdMsg command) {
-		Object number = getNumber(command.getObjectList());
+		double transactionId = getTransactionId(command.getObjectList());
 		// send _result
 		log.info("--> send _result for createStream");
-		List<Object> _result = new ArrayList<>();
-		_result.add("_result");
-		_result.add(number);
-		_result.add(null);
-		RtmpAMF0CmdMsg _resultCommand = new RtmpAMF0CmdMsg(command.getCurStreamId(), _result);
-		ctx.channel().writeAndFlush(_resultCommand);
+		ctx.channel().writeAndFlush(CREATE_STREAM_RESULT.newMessage(ctx.alloc(), transactionId));
 	}
 
 	private void doHandleFCPublish(final ChannelHandlerContext ctx, final RtmpAMF0CmdMsg command) {
-		Object number = getNumber(command.getObjectList());
+		double transactionId = getTransactionId(command.getObjectList());
 		// send _result
 		log.info("--> send _result for FCPublish");
-		List<Object> _result = new ArrayList<>();
-		_result.add("_result");
-		_result.add(number);
-		_result.add(null);
-		_result.add(null); //should be undefined
-		RtmpAMF0CmdMsg _resultCommand = new RtmpAMF0CmdMsg(command.getCurStreamId(), _result);
-		ctx.channel().writeAndFlush(_resultCommand);
+		ctx.channel().writeAndFlush(EMPTY_RESULT.newMessage(ctx.alloc(), transactionId));
 	}
 
 
 	private void doHandleReleaseStream(final ChannelHandlerContext ctx, final RtmpAMF0CmdMsg command) {
-		Object number = getNumber(command.getObjectList());
+		double transactionId = getTransactionId(command.getObjectList());
 		// send _result
 		log.info("--> send _result for releaseStream");
-		List<Object> _result = new ArrayList<>();
-		_result.add("_result");
-		_result.add(number);
-		_result.add(null);
-		_result.add(null); //should be undefined
-		RtmpAMF0CmdMsg _resultCommand = new RtmpAMF0CmdMsg(command.getCurStreamId(), _result);
-		ctx.channel().writeAndFlush(_resultCommand);
+		ctx.channel().writeAndFlush(EMPTY_RESULT.newMessage(ctx.alloc(), transactionId));
 	}
 
 	private void doHandleConnect(final ChannelHandlerContext ctx, final RtmpAMF0CmdMsg command) {
-		// send Window Acknowledgement Size
+		// send Window Acknowledgement Size, 상대는 이만큼 받을 때마다 ack 한다
 		log.info("--> send Window Acknowledgement Size for connect");
-		ctx.channel().writeAndFlush(new RtmpWinAckMsg(250000));
+		ctx.channel().writeAndFlush(new RtmpWinAckMsg(properties.getWindowAckSize()));
 
 		// send SetPeerBandwidth
 		log.info("--> send SetPeerBandwidth for connect");
 		ctx.channel().writeAndFlush(new RtmpPeerBandWidthMsg(2500000, (byte) 2));
 
-		// send SetChunkSize
+		// send SetChunkSize, 시청을 시작하면 스트림에 맞춰 다시 정할 수 있다
 		log.info("--> send SetChunkSize for connect");
-		ctx.channel().writeAndFlush(new RtmpChunkMsg(4096));
+		ChunkSizePolicy.apply(ctx.channel(), ChunkSizePolicy.initialChunkSize(properties));
+		ctx.channel().flush();
 
-		Object number = getNumber(command.getObjectList());
+		double transactionId = getTransactionId(command.getObjectList());
 		// send _result('NetConnection.Connect.Success')
 		log.info("--> send _result('NetConnection.Connect.Success') for connect");
-		List<Object> _result = new ArrayList<>();
-		_result.add("_result");
-		_result.add(number);
-		LinkedHashMap<String, Object> amf0Object1 = new LinkedHashMap<>();
-		amf0Object1.put("fmsVer", "FMS/3,5,3,888");
-		amf0Object1.put("capabilities", 127);
-		amf0Object1.put("mode", 1);
-		LinkedHashMap<String, Object> amf0Object2 = new LinkedHashMap<>();
-		amf0Object2.put("level", "status");
-		amf0Object2.put("code", "NetConnection.Connect.Success");
-		amf0Object2.put("description", "Connection succeeded");
-		amf0Object2.put("objectEncoding", 0);
-		_result.add(amf0Object1);
-		_result.add(amf0Object2);
-		ctx.channel().writeAndFlush(new RtmpAMF0CmdMsg(command.getCurStreamId(), _result));
+		ctx.channel().writeAndFlush(CONNECT_RESULT.newMessage(ctx.alloc(), transactionId));
 
 		// send onBWDone()
 		log.info("--> send onBWDone() for connect");
-		List<Object> onBWDone = new ArrayList<>();
-		onBWDone.add("onBWDone");
-		onBWDone.add(number);
-		onBWDone.add(null);
-		ctx.channel().writeAndFlush(new RtmpAMF0CmdMsg(command.getCurStreamId(), onBWDone));
+		ctx.channel().writeAndFlush(BW_DONE.newMessage(ctx.alloc(), transactionId));
 	}
 
 
 
-	private Object getNumber(List<Object> decodedObjectList) {
-		Object number = 0;
+	// 플레이어는 읽을 것이 거의 없으므로 읽기/쓰기가 모두 없을 때만 닫는다, 옮겨간 이벤트 루프에서 새로 만든다
+	private void watchPlayerIdle(Channel channel) {
+		ChannelPipeline pipeline = channel.pipeline();
+		if (pipeline.get(AdmissionControlHandler.IDLE_HANDLER_NAME) == null || properties.getPlayerIdleTimeoutMs() <= 0) {
+			return;
+		}
+		pipeline.replace(AdmissionControlHandler.IDLE_HANDLER_NAME, AdmissionControlHandler.IDLE_HANDLER_NAME,
+				new IdleStateHandler(0, 0, properties.getPlayerIdleTimeoutMs(), TimeUnit.MILLISECONDS));
+	}
+
+	private double getTransactionId(List<Object> decodedObjectList) {
 		for (Object o : decodedObjectList) {
 			int type = AMF0.getType(o);
 			if (type == AMF0.Number) {
-				number = o;
-				break;
+				return ((Number) o).doubleValue();
 			}
 		}
-		return number;
+		return 0;
+	}
+
+	private static LinkedHashMap<String, Object> amf0Object(Object... keyValues) {
+		LinkedHashMap<String, Object> amf0Object = new LinkedHashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			amf0Object.put((String) keyValues[i], keyValues[i + 1]);
+		}
+		return amf0Object;
 	}
 
 }
@@ -0,0 +1,95 @@
+package com.videotest.rtmp.server;
+
+import com.videotest.rtmp.server.stream.GopEvictionPolicy;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * RTMP 서버 설정값, application.properties 의 rtmp.* 로 바꿀 수 있다 (예: rtmp.worker-threads=16)
+ */
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "rtmp")
+public class RtmpProperties {
+
+	// false 면 RtmpServer 빈을 만들지 않는다
+	private boolean enabled = true;
+	private int port = 1935;
+	// 0 이면 acceptors 수만큼
+	private int bossThreads = 0;
+	// 0 이면 netty 기본값 (코어 수 * 2)
+	private int workerThreads = 0;
+	// 연결별 소켓 버퍼, 0 이면 OS 기본값
+	private int soRcvBuf = 0;
+	private int soSndBuf = 0;
+	// 종료할 때 연결의 쓰기를 내보내고 이벤트 루프를 내리기까지 기다리는 최대 시간
+	private long shutdownTimeoutMs = 10_000;
+
+	// 서버 소켓 transport, AUTO 는 epoll 을 쓸 수 있으면 epoll
+	private RtmpTransport transport = RtmpTransport.AUTO;
+	// SO_REUSEPORT 로 같은 포트에 bind 할 server channel 수, 각각 boss 이벤트 루프 하나씩 쓴다 (epoll, io_uring)
+	private int acceptors = 1;
+
+	// 커널의 accept 대기열 길이
+	private int soBacklog = 1024;
+	// 연결 수락 한도, 0 이하이면 제한하지 않는다
+	private int maxConnectionsPerSecond = 500;
+	private int maxConcurrentHandshakes = 1024;
+	private int maxHandshakesPerIp = 16;
+
+	// handshake 가 이 시간 안에 끝나지 않으면 닫는다
+	private long handshakeTimeoutMs = 5_000;
+	// 이 시간 동안 아무것도 보내지 않은 연결(퍼블리셔 포함)을 닫는다
+	private long readIdleTimeoutMs = 30_000;
+	// 플레이어는 ack 정도만 보내므로 읽기와 쓰기가 모두 없을 때 닫는다
+	private long playerIdleTimeoutMs = 60_000;
+
+	// connect 때 알리는 Window Acknowledgement Size, 상대가 따로 알리지 않으면 서버도 이만큼 받을 때마다 ack 한다
+	private int windowAckSize = 2_500_000;
+	// 연결마다 RTT 를 재는 UserControl ping 간격, 0 이면 보내지 않는다
+	private long pingIntervalMs = 5_000;
+
+	// 플레이어 채널의 write buffer watermark, high 를 넘으면 unwritable 이 된다
+	private int writeBufferLowWaterMark = 256 * 1024;
+	private int writeBufferHighWaterMark = 1024 * 1024;
+
+	// 플레이어 채널에 쌓인 바이트가 이 값을 넘으면 오디오까지 모두 버린다
+	private long playerMaxPendingBytes = 8 * 1024 * 1024;
+
+	// 0 이면 퍼블리셔의 read 한 번마다 플레이어를 flush 하고, 0 보다 크면 그 간격(ms) 안의 write 를 모아서 flush 한다
+	private long playerFlushIntervalMs = 0;
+
+	// 0 보다 크면 EgressScheduler 로 오디오/제어 메시지를 비디오 청크 사이에 끼워 보내고, 채널에는 이만큼만 내려보낸다
+	private int egressBudgetBytes = 0;
+
+	// 0 보다 크면 플레이어마다 EgressPacer 로 송출을 스트림 bitrate 의 이 배수로 제한한다 (입장 시 GOP 를 한꺼번에 쏟지 않도록)
+	private double pacingRateMultiplier = 0;
+	// bitrate 를 아직 모를 때(ingest 1초 전) 쓰는 bitrate 와 최소값
+	private double pacingMinKbps = 1_000;
+	// 송출 속도로 이 시간만큼은 몰아서 보낼 수 있다
+	private long pacingBurstMs = 100;
+	// 입장 직후 기다리지 않고 보내는 미디어 payload 바이트, 시퀀스 헤더와 GOP 앞부분. writeBufferHighWaterMark 보다 크면 그 값으로 줄인다
+	private long pacingFastStartBytes = 512 * 1024;
+
+	// 스트림별 GOP 캐시 한도, 바이트는 보관한 payload 가 붙잡은 버퍼 크기로 센다 (GopCache)
+	private long gopCacheMaxBytes = 16 * 1024 * 1024;
+	private long gopCacheMaxDurationMs = 10_000;
+	private GopEvictionPolicy gopEvictionPolicy = GopEvictionPolicy.KEEP_KEY_FRAME;
+
+	// 켜면 입장 시 시퀀스 헤더와 GOP 캐시를 aggregateMaxBytes 이하의 Aggregate 메시지로 묶어 보낸다
+	private boolean aggregateGopBurst = false;
+	private int aggregateMaxBytes = 256 * 1024;
+
+	// 서버가 보내는 청크 크기, connect 응답 때 SetChunkSize 로 알린다
+	private int outChunkSize = 4096;
+	// 켜면 스트림의 평균 비디오 프레임 크기에 맞춰 키프레임마다 outChunkSize ~ maxOutChunkSize 사이에서 다시 정한다
+	private boolean adaptiveChunkSize = false;
+	private int maxOutChunkSize = 64 * 1024;
+
+	// 플레이어 채널을 퍼블리셔의 이벤트 루프로 옮길지
+	private boolean playerPublisherLoopAffinity = false;
+	// 새 퍼블리셔를 시청자 수 합이 가장 적은 이벤트 루프로 옮길지, publish 할 때만 정하고 시청자가 바뀌어도 다시 옮기지 않는다
+	private boolean balanceStreamsByViewers = false;
+
+}
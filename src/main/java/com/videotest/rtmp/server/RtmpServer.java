@@ -1,32 +1,44 @@
 package com.videotest.rtmp.server;
 
+import com.videotest.rtmp.util.pipeline.AcknowledgementHandler;
+import com.videotest.rtmp.util.pipeline.AdmissionControlHandler;
+import com.videotest.rtmp.util.pipeline.EgressPacer;
+import com.videotest.rtmp.util.pipeline.EgressScheduler;
+import com.videotest.rtmp.util.pipeline.PingHandler;
 import com.videotest.rtmp.util.pipeline.RtmpDecoder;
 import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import com.videotest.rtmp.util.pipeline.RtmpMessageDispatcher;
+import com.videotest.rtmp.util.pipeline.RtmpMessageSizeEstimator;
 import com.videotest.rtmp.util.pipeline.HandShakeHandler;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.epoll.Epoll;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollServerSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
 
 import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
-// 송신서버
+// 송신서버, 스프링이 시작/종료를 관리한다 (RtmpServerConfig)
 @Slf4j
-public class RtmpServer {
-
-	private static final boolean epollAvailable = Epoll.isAvailable();
+public class RtmpServer implements SmartLifecycle {
 
 	/*
 		이벤트 루프 그룹 설명
 		EpollEventLoopGroup :  linux 에서 높은 네트워크 성능
 		KQueueEventLoopGroup : Epoll 과 빗스하며 macOS와 BSD 에서 사용 (webFlux에없음)
 		NioEventLoopGroup : 운영체제 독립적 NIO 기반 멀티플렉싱
+		IOUringEventLoopGroup : linux 5.9 이상, 시스템 콜을 묶어서 제출 (netty incubator)
+		어떤 것을 쓸지는 RtmpProperties.transport 로 정한다 (RtmpTransport)
 		이벤트 루프 그룹의 존재 이유
 		1. 비동기 I/O 처리
 		2. 이벤트 루프 관리
@@ -37,48 +49,169 @@ public class RtmpServer {
 		3. 타이멈 관리
 	 */
 
-	public void start() {
-		EventLoopGroup bossGroup = selectGroup();
-		EventLoopGroup workerGroup = selectGroup();
-		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
-			bootstrap.group(bossGroup, workerGroup)
-				.channel(selectChannel())
-				.localAddress(new InetSocketAddress(1935))
-				.childOption(ChannelOption.TCP_NODELAY, true)
-				.childHandler(new ChannelInitializer<SocketChannel>() {
-					@Override
-					public void initChannel(@NonNull SocketChannel ch) {
-						ch.pipeline()
-							.addLast(new HandShakeHandler())
-							.addLast(new RtmpDecoder())
-							.addLast(new RtmpEncoder());
+	private final RtmpProperties properties;
+
+	private volatile boolean running;
+	private EventLoopGroup bossGroup;
+	private EventLoopGroup workerGroup;
+	private final List<Channel> serverChannels = new CopyOnWriteArrayList<>();
+	// 종료할 때 쓰기를 마저 내보내고 닫기 위해 연결을 모아둔다
+	private final ChannelGroup connections = new DefaultChannelGroup("rtmp-connections", GlobalEventExecutor.INSTANCE);
+
+	public RtmpServer(RtmpProperties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * 이벤트 루프를 만들고 첫 acceptor 가 bind 될 때까지 기다린다. bind 에 실패하면 이벤트 루프를 내리고 IllegalStateException 을 던져 기동을 멈춘다.
+	 */
+	@Override
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		RtmpTransport transport = properties.getTransport().resolve();
+		int acceptors = Math.max(1, properties.getAcceptors());
+		if (acceptors > 1 && !transport.supportsReusePort()) {
+			log.warn(transport + " does not support SO_REUSEPORT, bind one acceptor");
+			acceptors = 1;
+		}
+		// acceptor 마다 boss 이벤트 루프 하나는 있어야 한다
+		int bossThreads = Math.max(acceptors, properties.getBossThreads());
+		bossGroup = transport.newEventLoopGroup(bossThreads, new DefaultThreadFactory("rtmp-boss"));
+		workerGroup = transport.newEventLoopGroup(properties.getWorkerThreads(), new DefaultThreadFactory("rtmp-worker"));
+		EventLoopAffinity affinity = new EventLoopAffinity(workerGroup, properties);
+		ConnectionLimiter limiter = new ConnectionLimiter(properties);
+		ConnectionMetrics.bindLimiter(limiter);
+		// fast start 로 한 번에 내려보낸 바이트가 high water mark 를 넘으면 입장하자마자 unwritable 이 되어 프레임을 버린다
+		long pacingFastStartBytes = Math.min(properties.getPacingFastStartBytes(), properties.getWriteBufferHighWaterMark());
+		if (properties.getPacingRateMultiplier() > 0 && pacingFastStartBytes < properties.getPacingFastStartBytes()) {
+			log.warn("pacingFastStartBytes " + properties.getPacingFastStartBytes()
+				+ " is above writeBufferHighWaterMark, use " + pacingFastStartBytes);
+		}
+
+		ServerBootstrap bootstrap = new ServerBootstrap();
+		bootstrap.group(bossGroup, workerGroup)
+			.channel(transport.serverChannelClass())
+			.localAddress(new InetSocketAddress(properties.getPort()))
+			.childOption(ChannelOption.TCP_NODELAY, true)
+			.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+				properties.getWriteBufferLowWaterMark(), properties.getWriteBufferHighWaterMark()))
+			.childOption(ChannelOption.MESSAGE_SIZE_ESTIMATOR, RtmpMessageSizeEstimator.INSTANCE)
+			.childHandler(new ChannelInitializer<SocketChannel>() {
+				@Override
+				public void initChannel(@NonNull SocketChannel ch) {
+					connections.add(ch);
+					boolean scheduled = properties.getEgressBudgetBytes() > 0;
+					ch.pipeline()
+						.addLast(new AdmissionControlHandler(properties, limiter))
+						.addLast(new HandShakeHandler())
+						.addLast(new AcknowledgementHandler(properties.getWindowAckSize()))
+						.addLast(new RtmpDecoder());
+					if (scheduled) {
+						ch.pipeline().addLast(new EgressScheduler(properties.getEgressBudgetBytes()));
+					}
+					ch.pipeline()
+						.addLast(new RtmpEncoder(scheduled))
+						.addLast(new PingHandler(properties.getPingIntervalMs()));
+					// 인코딩 전 미디어만 기다리게 하고, 제어 메시지는 바로 인코더로 보낸다
+					if (properties.getPacingRateMultiplier() > 0) {
+						ch.pipeline().addLast(new EgressPacer(properties.getPacingRateMultiplier(),
+							properties.getPacingMinKbps(), properties.getPacingBurstMs(), pacingFastStartBytes));
 					}
-				})
-				.option(ChannelOption.SO_BACKLOG, 128);
-
-			ChannelFuture channelFuture = bootstrap.bind().sync();
-			channelFuture.channel().closeFuture().sync();
-		} catch (InterruptedException e){
-			log.info(e.getMessage());
-		}  finally {
-			workerGroup.shutdownGracefully();
-			bossGroup.shutdownGracefully();
+					ch.pipeline().addLast(new RtmpMessageDispatcher(properties, affinity));
+				}
+			})
+			.option(ChannelOption.SO_BACKLOG, properties.getSoBacklog());
+		// 0 이면 OS 기본값 (자동 조절)을 쓴다
+		if (properties.getSoRcvBuf() > 0) {
+			bootstrap.childOption(ChannelOption.SO_RCVBUF, properties.getSoRcvBuf());
+		}
+		if (properties.getSoSndBuf() > 0) {
+			bootstrap.childOption(ChannelOption.SO_SNDBUF, properties.getSoSndBuf());
+		}
+		if (acceptors > 1) {
+			// 커널이 같은 포트의 listen 소켓들에 연결을 나눠준다
+			bootstrap.option(transport.reusePortOption(), true);
+		}
+
+		// 포트를 못 잡았는데 running 으로 남으면 스프링은 RTMP 없이 정상 기동한 것으로 본다
+		ChannelFuture first = bootstrap.bind().awaitUninterruptibly();
+		if (!first.isSuccess()) {
+			workerGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+			bossGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+			throw new IllegalStateException("rtmp server failed to bind port " + properties.getPort(), first.cause());
 		}
+		running = true;
+		serverChannels.add(first.channel());
+		bindOtherAcceptors(bootstrap, (InetSocketAddress) first.channel().localAddress(), acceptors);
+		log.info("rtmp server started on " + first.channel().localAddress() + ", transport=" + transport
+			+ ", acceptors=" + acceptors);
 	}
 
-	private static EventLoopGroup selectGroup() {
-		if (epollAvailable) {
-			return new EpollEventLoopGroup();
+	// 첫 acceptor 가 bind 된 포트(port=0 이면 임의 포트)에 나머지를 bind 한다, 실패해도 첫 acceptor 로 받는다
+	private void bindOtherAcceptors(ServerBootstrap bootstrap, InetSocketAddress localAddress, int acceptors) {
+		for (int i = 1; i < acceptors; i++) {
+			bootstrap.bind(localAddress).addListener((ChannelFutureListener) future -> {
+				if (future.isSuccess()) {
+					serverChannels.add(future.channel());
+				} else {
+					log.error("rtmp server failed to bind another acceptor on " + localAddress, future.cause());
+				}
+			});
 		}
-		return new NioEventLoopGroup();
 	}
 
-	private static Class<? extends ServerChannel> selectChannel() {
-		if (epollAvailable) {
-			return EpollServerSocketChannel.class;
+	/**
+	 * 새 연결을 받지 않고, 연결마다 쌓인 쓰기를 내보낸 뒤 닫는다.
+	 * shutdownTimeoutMs 안에 끝나지 않은 연결은 이벤트 루프를 내리면서 강제로 닫는다.
+	 */
+	@Override
+	public synchronized void stop() {
+		if (!running) {
+			return;
 		}
-		return NioServerSocketChannel.class;
+		running = false;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(properties.getShutdownTimeoutMs());
+		for (Channel serverChannel : serverChannels) {
+			serverChannel.close().awaitUninterruptibly(remainingMs(deadline));
+		}
+		serverChannels.clear();
+
+		// 빈 버퍼의 쓰기가 끝나면 그 앞의 쓰기도 모두 나간 것이다
+		// EgressPacer 는 순서를 지키면서 속도 제한 없이 비우고, EgressScheduler 는 빈 버퍼를 큐에 있던 것 뒤에 보낸다
+		for (Channel connection : connections) {
+			EgressPacer pacer = EgressPacer.of(connection);
+			if (pacer != null) {
+				pacer.stopPacing();
+			}
+			connection.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+		}
+		if (!connections.newCloseFuture().awaitUninterruptibly(remainingMs(deadline))) {
+			log.warn("close " + connections.size() + " rtmp connections without draining");
+		}
+
+		Future<?> workerTermination = workerGroup.shutdownGracefully(0, remainingMs(deadline), TimeUnit.MILLISECONDS);
+		Future<?> bossTermination = bossGroup.shutdownGracefully(0, remainingMs(deadline), TimeUnit.MILLISECONDS);
+		workerTermination.awaitUninterruptibly(remainingMs(deadline));
+		bossTermination.awaitUninterruptibly(remainingMs(deadline));
+		log.info("rtmp server stopped");
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * 실제로 bind 된 주소, 아직 bind 되지 않았으면 null
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return serverChannels.isEmpty() ? null : (InetSocketAddress) serverChannels.get(0).localAddress();
+	}
+
+	private static long remainingMs(long deadlineNanos) {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
 	}
 
 }
@@ -0,0 +1,21 @@
+package com.videotest.rtmp.server;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * RtmpServer 를 SmartLifecycle 빈으로 등록한다.
+ * 스프링 컨텍스트가 뜬 뒤 bind 를 시작하고, 컨텍스트가 닫힐 때 연결을 정리한다.
+ */
+@Configuration
+@EnableConfigurationProperties(RtmpProperties.class)
+public class RtmpServerConfig {
+
+	@Bean
+	@ConditionalOnProperty(prefix = "rtmp", name = "enabled", havingValue = "true", matchIfMissing = true)
+	public RtmpServer rtmpServer(RtmpProperties properties) {
+		return new RtmpServer(properties);
+	}
+}
@@ -0,0 +1,114 @@
+package com.videotest.rtmp.server;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 서버 소켓 transport
+ * AUTO 는 epoll 을 쓸 수 있으면 epoll, 아니면 NIO 다. 고른 transport 를 이 OS 에서 쓸 수 없으면 NIO 로 대신한다.
+ * SO_REUSEPORT 로 같은 포트에 server channel 을 여러 개 bind 하는 것은 epoll, io_uring 에서만 된다.
+ * resolve() 의 결과로 이벤트 루프 그룹과 채널 클래스를 만든다.
+ */
+@Slf4j
+public enum RtmpTransport {
+	AUTO,
+	NIO,
+	EPOLL,
+	// 리눅스 5.9 이상, netty incubator transport
+	IO_URING;
+
+	public RtmpTransport resolve() {
+		switch (this) {
+			case AUTO:
+				return Epoll.isAvailable() ? EPOLL : NIO;
+			case EPOLL:
+				if (!Epoll.isAvailable()) {
+					log.warn("epoll is not available, use NIO", Epoll.unavailabilityCause());
+					return NIO;
+				}
+				return EPOLL;
+			case IO_URING:
+				if (!IOUring.isAvailable()) {
+					log.warn("io_uring is not available, use NIO", IOUring.unavailabilityCause());
+					return NIO;
+				}
+				return IO_URING;
+			default:
+				return NIO;
+		}
+	}
+
+	/**
+	 * @param threads 0 이면 netty 기본값 (코어 수 * 2)
+	 * @param threadFactory null 이면 netty 기본값
+	 */
+	public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+		switch (this) {
+			case EPOLL:
+				return new EpollEventLoopGroup(threads, threadFactory);
+			case IO_URING:
+				return new IOUringEventLoopGroup(threads, threadFactory);
+			default:
+				return new NioEventLoopGroup(threads, threadFactory);
+		}
+	}
+
+	public Class<? extends ServerChannel> serverChannelClass() {
+		switch (this) {
+			case EPOLL:
+				return EpollServerSocketChannel.class;
+			case IO_URING:
+				return IOUringServerSocketChannel.class;
+			default:
+				return NioServerSocketChannel.class;
+		}
+	}
+
+	// 클라이언트(부하 테스트, 벤치마크)용
+	public Class<? extends SocketChannel> socketChannelClass() {
+		switch (this) {
+			case EPOLL:
+				return EpollSocketChannel.class;
+			case IO_URING:
+				return IOUringSocketChannel.class;
+			default:
+				return NioSocketChannel.class;
+		}
+	}
+
+	public boolean supportsReusePort() {
+		return this == EPOLL || this == IO_URING;
+	}
+
+	/**
+	 * @return SO_REUSEPORT 옵션, 지원하지 않으면 null
+	 */
+	public ChannelOption<Boolean> reusePortOption() {
+		switch (this) {
+			case EPOLL:
+				return EpollChannelOption.SO_REUSEPORT;
+			case IO_URING:
+				return IOUringChannelOption.SO_REUSEPORT;
+			default:
+				return null;
+		}
+	}
+}
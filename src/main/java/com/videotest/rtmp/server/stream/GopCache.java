@@ -0,0 +1,165 @@
+package com.videotest.rtmp.server.stream;
+
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 바이트/시간 한도가 있는 GOP 캐시
+ * 메시지는 retain 해서 보관하고, 밀려나거나 비울 때 release 한다. 스레드 안전하지 않다.
+ * 디코더가 만든 payload 는 읽기 버퍼의 slice 라 작은 프레임 하나가 훨씬 큰 버퍼를 붙잡을 수 있다.
+ * 붙잡은 버퍼가 payload 의 COMPACT_RATIO 배를 넘으면 payload 를 복사해서 보관하고,
+ * 바이트 한도는 보관한 payload 가 붙잡고 있는 버퍼 크기(capacity)로 센다.
+ */
+public class GopCache implements Iterable<RtmpMediaMsg> {
+
+    private static final int COMPACT_RATIO = 2;
+
+    private final ArrayDeque<RtmpMediaMsg> messages = new ArrayDeque<>();
+    // messages 와 같은 순서로 메시지마다 센 바이트
+    private final ArrayDeque<Long> messageBytes = new ArrayDeque<>();
+    private final long maxBytes;
+    private final long maxDurationMs;
+    private final GopEvictionPolicy policy;
+
+    private long bytes;
+    private long evictedMessages;
+    // DROP_GOP 으로 비운 뒤 다음 키프레임을 기다리는 중이면 false
+    private boolean accepting = true;
+
+    public GopCache(long maxBytes, long maxDurationMs, GopEvictionPolicy policy) {
+        this.maxBytes = maxBytes;
+        this.maxDurationMs = maxDurationMs;
+        this.policy = policy;
+    }
+
+    public void add(RtmpMediaMsg msg) {
+        if (msg instanceof RtmpVideoMsg && ((RtmpVideoMsg) msg).isH264KeyFrame()) {
+            clear();
+            accepting = true;
+        }
+        if (!accepting) {
+            return;
+        }
+
+        long retained = retainedBytes(msg.getPayload());
+        RtmpMediaMsg cached = msg;
+        if (retained > (long) msg.getPayloadLength() * COMPACT_RATIO) {
+            cached = msg.copy();
+            retained = retainedBytes(cached.getPayload());
+        } else {
+            msg.retain();
+        }
+        messages.addLast(cached);
+        messageBytes.addLast(retained);
+        bytes += retained;
+        evictIfNeeded();
+    }
+
+    public void clear() {
+        for (RtmpMediaMsg msg : messages) {
+            msg.release();
+        }
+        messages.clear();
+        messageBytes.clear();
+        bytes = 0;
+    }
+
+    private void evictIfNeeded() {
+        while (messages.size() > 1 && isOverBudget()) {
+            if (policy == GopEvictionPolicy.DROP_GOP) {
+                evictedMessages += messages.size();
+                clear();
+                accepting = false;
+                return;
+            }
+
+            RtmpMediaMsg head = messages.pollFirst();
+            long headBytes = messageBytes.pollFirst();
+            if (isKeyFrame(head)) {
+                // 키프레임은 남기고 바로 다음 프레임을 버린다
+                evict(messages.pollFirst(), messageBytes.pollFirst());
+                messages.addFirst(head);
+                messageBytes.addFirst(headBytes);
+            } else {
+                evict(head, headBytes);
+            }
+        }
+    }
+
+    private boolean isOverBudget() {
+        return bytes > maxBytes || evictableDurationMs() > maxDurationMs;
+    }
+
+    // 키프레임을 남기는 경우 키프레임 다음 프레임부터의 길이
+    private long evictableDurationMs() {
+        Iterator<RtmpMediaMsg> iterator = messages.iterator();
+        RtmpMediaMsg oldest = iterator.next();
+        if (isKeyFrame(oldest) && iterator.hasNext()) {
+            oldest = iterator.next();
+        }
+        return messages.peekLast().getTimeStamp() - oldest.getTimeStamp();
+    }
+
+    private void evict(RtmpMediaMsg msg, long retained) {
+        bytes -= retained;
+        evictedMessages++;
+        msg.release();
+    }
+
+    /**
+     * buf 가 붙잡고 있는 버퍼들의 capacity 합, slice 는 원본 버퍼로 센다.
+     * 디코더는 청크를 읽은 순서대로 이어붙이므로 같은 원본이 연달아 나오면 한 번만 센다.
+     */
+    static long retainedBytes(ByteBuf buf) {
+        if (!(buf instanceof CompositeByteBuf composite)) {
+            return root(buf).capacity();
+        }
+        long bytes = 0;
+        ByteBuf previous = null;
+        for (int i = 0; i < composite.numComponents(); i++) {
+            ByteBuf component = root(composite.internalComponent(i));
+            if (component != previous) {
+                bytes += component.capacity();
+                previous = component;
+            }
+        }
+        return bytes;
+    }
+
+    private static ByteBuf root(ByteBuf buf) {
+        for (ByteBuf parent; (parent = buf.unwrap()) != null; ) {
+            buf = parent;
+        }
+        return buf;
+    }
+
+    private static boolean isKeyFrame(RtmpMediaMsg msg) {
+        return msg instanceof RtmpVideoMsg && ((RtmpVideoMsg) msg).isH264KeyFrame();
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getDurationMs() {
+        return messages.isEmpty() ? 0 : messages.peekLast().getTimeStamp() - messages.peekFirst().getTimeStamp();
+    }
+
+    public long getEvictedMessages() {
+        return evictedMessages;
+    }
+
+    @Override
+    public Iterator<RtmpMediaMsg> iterator() {
+        return messages.iterator();
+    }
+}
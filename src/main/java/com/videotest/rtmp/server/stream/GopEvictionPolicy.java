@@ -0,0 +1,14 @@
+package com.videotest.rtmp.server.stream;
+
+/**
+ * GOP 캐시가 용량/시간 한도를 넘었을 때의 처리 방식
+ */
+public enum GopEvictionPolicy {
+
+    /** 마지막 키프레임은 남기고 그 뒤의 오래된 프레임부터 버린다. 입장 시 화면은 바로 나오지만 다음 키프레임까지 깨질 수 있다. */
+    KEEP_KEY_FRAME,
+
+    /** 캐시를 모두 비우고 다음 키프레임까지 캐시하지 않는다. */
+    DROP_GOP
+
+}
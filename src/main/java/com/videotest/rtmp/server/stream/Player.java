@@ -0,0 +1,191 @@
+package com.videotest.rtmp.server.stream;
+
+import com.videotest.rtmp.chunk.message.RtmpAggregateMsg;
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.server.ChunkSizePolicy;
+import com.videotest.rtmp.server.RtmpProperties;
+import com.videotest.rtmp.util.pipeline.AcknowledgementHandler;
+import com.videotest.rtmp.util.pipeline.EgressPacer;
+import com.videotest.rtmp.util.pipeline.PingHandler;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.ReferenceCountUtil;
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 스트림을 보는 플레이어 채널
+ * 채널이 unwritable 이면 키프레임이 아닌 비디오를 버리고, 다음 키프레임부터 다시 보낸다.
+ * 키프레임은 unwritable 이어도 보낸다. 채널에 쌓인 바이트가 playerMaxPendingBytes 를 넘을 때만 버린다.
+ */
+public class Player {
+
+    @Getter
+    private final Channel channel;
+    private final RtmpProperties properties;
+    private final StreamStats streamStats;
+    private final LongAdder droppedFrames = new LongAdder();
+    // 서버 파이프라인이 아니면 (테스트, 부하 도구) null
+    private final AcknowledgementHandler acknowledgement;
+    private final PingHandler ping;
+    private final EgressPacer pacer;
+
+    // 비디오를 버린 뒤 키프레임을 기다리는 중인지
+    // 송출 스레드와 입장 처리 스레드가 함께 보므로 volatile
+    @Getter
+    private volatile boolean awaitingKeyFrame;
+    @Getter
+    private volatile long lastVideoTimestamp = -1;
+    // write 만 하고 flush 를 미룬 상태인지
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+
+    public Player(Channel channel, RtmpProperties properties, StreamStats streamStats) {
+        this.channel = channel;
+        this.properties = properties;
+        this.streamStats = streamStats;
+        this.acknowledgement = AcknowledgementHandler.of(channel);
+        this.ping = PingHandler.of(channel);
+        this.pacer = EgressPacer.of(channel);
+        // 송출 속도는 스트림의 ingest bitrate 를 따른다
+        if (pacer != null) {
+            pacer.setBitrateSource(streamStats::getIngestKbps);
+        }
+    }
+
+    public boolean isActive() {
+        return channel.isActive();
+    }
+
+    public boolean isWritable() {
+        return channel.isWritable();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * 채널에 쌓인 바이트, EgressPacer 가 있으면 토큰을 기다리는 미디어도 더한다
+     */
+    public long getPendingBytes() {
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        long pending = outboundBuffer == null ? 0 : outboundBuffer.totalPendingWriteBytes();
+        return pacer == null ? pending : pending + pacer.getQueuedBytes();
+    }
+
+    /**
+     * 보냈지만 플레이어가 아직 ack 하지 않은 바이트, 채널에 쌓인 바이트(pendingBytes)를 포함한다
+     */
+    public long getBytesInFlight() {
+        return acknowledgement == null ? 0 : acknowledgement.getBytesInFlight();
+    }
+
+    // 플레이어의 ack 로 구한 실제 수신 속도
+    public double getAckedKbps() {
+        return acknowledgement == null ? 0 : acknowledgement.getAckedBytesPerSecond() * 8 / 1000;
+    }
+
+    // ping 으로 잰 평활 RTT, 아직 모르면 0
+    public double getRttMs() {
+        return ping == null ? 0 : ping.getRttMs();
+    }
+
+    /**
+     * RTT 와 ack 진행으로 추정한 플레이어까지의 대역폭, 아직 모르면 0
+     */
+    public double getBandwidthKbps() {
+        return ping == null ? 0 : ping.getBandwidthBytesPerSecond() * 8 / 1000;
+    }
+
+    // pacer 가 허용하는 송출 속도, pacer 가 없으면 0
+    public double getPacingKbps() {
+        return pacer == null ? 0 : pacer.getRateBytesPerSecond() * 8 / 1000;
+    }
+
+    /**
+     * 메시지 참조를 하나 넘겨서 보낸다. 버린 경우 false
+     */
+    public boolean send(RtmpBaseMsg msg) {
+        if (!channel.isActive()) {
+            return false;
+        }
+        if (msg instanceof RtmpMediaMsg && getPendingBytes() > properties.getPlayerMaxPendingBytes()) {
+            awaitingKeyFrame = true;
+            onDropped();
+            return false;
+        }
+        if (msg instanceof RtmpVideoMsg video && !video.isAVCSequenceHeader()) {
+            // 키프레임은 unwritable 이어도 보내서 바로 다시 볼 수 있게 한다. 메모리는 위의 playerMaxPendingBytes 가 막는다
+            if (!video.isH264KeyFrame() && (awaitingKeyFrame || !channel.isWritable())) {
+                awaitingKeyFrame = true;
+                onDropped();
+                return false;
+            }
+            awaitingKeyFrame = false;
+            // 청크 크기는 키프레임 앞에서만 바꾼다
+            if (video.isH264KeyFrame()) {
+                updateChunkSize();
+            }
+        }
+        write(msg);
+        return true;
+    }
+
+    /**
+     * 정책이 정한 청크 크기가 채널의 크기와 다르면 SetChunkSize 를 먼저 보낸다.
+     */
+    public void updateChunkSize() {
+        ChunkSizePolicy.apply(channel, ChunkSizePolicy.chunkSize(properties, streamStats));
+    }
+
+    private void onDropped() {
+        droppedFrames.increment();
+        streamStats.onDroppedFrame();
+    }
+
+    /**
+     * 버리지 않고 메시지 참조를 하나 넘겨서 보낸다. (입장 시 시퀀스 헤더, GOP 전송용)
+     * flush 는 하지 않는다. 퍼블리셔의 read 한 번이 끝날 때 또는 playerFlushIntervalMs 뒤에 모아서 한다.
+     */
+    public void write(RtmpBaseMsg msg) {
+        if (msg instanceof RtmpVideoMsg video) {
+            lastVideoTimestamp = video.getTimeStamp();
+        } else if (msg instanceof RtmpAggregateMsg aggregate && aggregate.getLastVideoTimestamp() >= 0) {
+            lastVideoTimestamp = aggregate.getLastVideoTimestamp();
+        }
+        channel.write(ReferenceCountUtil.retain(msg), channel.voidPromise());
+        if (flushPending.compareAndSet(false, true) && properties.getPlayerFlushIntervalMs() > 0) {
+            channel.eventLoop().schedule(this::flush, properties.getPlayerFlushIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isFlushPending() {
+        return flushPending.get();
+    }
+
+    public void flush() {
+        flushPending.set(false);
+        channel.flush();
+    }
+
+    public StreamStatsDto.PlayerStatsDto toStatsDto() {
+        StreamStatsDto.PlayerStatsDto dto = new StreamStatsDto.PlayerStatsDto();
+        dto.setId(channel.id().asShortText());
+        dto.setRemoteAddress(String.valueOf(channel.remoteAddress()));
+        dto.setPendingBytes(getPendingBytes());
+        dto.setBytesInFlight(getBytesInFlight());
+        dto.setAckedKbps(getAckedKbps());
+        dto.setRttMs(getRttMs());
+        dto.setBandwidthKbps(getBandwidthKbps());
+        dto.setPacingKbps(getPacingKbps());
+        dto.setDroppedFrames(getDroppedFrames());
+        dto.setAwaitingKeyFrame(awaitingKeyFrame);
+        return dto;
+    }
+
+}
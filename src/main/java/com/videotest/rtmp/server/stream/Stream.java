@@ -1,29 +1,52 @@
 package com.videotest.rtmp.server.stream;
 
+import com.videotest.rtmp.chunk.message.RtmpAMF0EncodedMsg;
+import com.videotest.rtmp.chunk.message.RtmpAggregateMsg;
 import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
 import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
 import com.videotest.rtmp.chunk.message.RtmpTextMsg;
 import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.chunk.type.AMF0;
+import com.videotest.rtmp.server.RtmpProperties;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * 방송 하나
+ * 송출(onRecv*)은 퍼블리셔의 이벤트 루프 한 곳에서만 호출되고, 플레이어 목록은 copy-on-write 라 브로드캐스트에 락이 없다.
+ * GOP 캐시와 시퀀스 헤더는 gopLock 으로 보호하며, 입장 시에는 락 안에서 참조만 복사하고 전송은 락 밖에서 한다.
+ */
 @Slf4j
 public class Stream {
+    @Getter
     private final StreamId streamId;
-    private final LinkedList<Channel> players;
-    private final LinkedList<RtmpBaseMsg> gopCache;
+    private final RtmpProperties properties;
+    @Getter
+    private final StreamStats stats = new StreamStats();
+    private final CopyOnWriteArrayList<Player> players;
+    private final GopCache gopCache;
+    private final Object gopLock = new Object();
 
     @Getter
     private Channel publisher;
 
     @Getter
-    @Setter
-    private Map<String, Object> metaData;
+    private volatile Map<String, Object> metaData;
+    // 시청자마다 다시 인코딩하지 않도록 onMetaData 를 한 번만 인코딩해 둔다, @setDataFrame 이 오면 버린다
+    private ByteBuf encodedMetaData;
+    private final Object metaDataLock = new Object();
 
     // AVCDecoderConfigurationRecord defined in ISO-14496-15 AVC file format
     private RtmpVideoMsg avcSequenceHeader;
@@ -31,64 +54,264 @@ public class Stream {
     private RtmpAudioMsg aacSequenceHeader;
 
 
-    public Stream(StreamId streamId, Channel publisher) {
+    public Stream(StreamId streamId, Channel publisher, RtmpProperties properties) {
         this.streamId = streamId;
         this.publisher = publisher;
-        this.players = new LinkedList<>();
-        this.gopCache = new LinkedList<>();
+        this.properties = properties;
+        this.players = new CopyOnWriteArrayList<>();
+        this.gopCache = new GopCache(properties.getGopCacheMaxBytes(), properties.getGopCacheMaxDurationMs(),
+                properties.getGopEvictionPolicy());
     }
 
-    public synchronized void addPlayer(Channel player) {
-        if (player != null && player.isActive()) {
-            players.add(player);
+    /**
+     * 플레이어를 등록하고 시퀀스 헤더와 GOP 캐시를 보낸다.
+     * 플레이어의 이벤트 루프에서 실행해야 입장 데이터가 이후 브로드캐스트보다 먼저 나간다.
+     */
+    public void addPlayer(Channel channel) {
+        if (channel == null || !channel.isActive()) {
+            return;
+        }
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> addPlayer(channel));
+            return;
+        }
 
-            // write AVC/AAC Sequence Header first
+        Player player = new Player(channel, properties, stats);
+        List<RtmpBaseMsg> snapshot;
+        synchronized (gopLock) {
+            snapshot = new ArrayList<>(gopCache.size() + 2);
+            // write AVC/AAC Sequence Header first, gop cache then
             if (avcSequenceHeader != null) {
-                player.writeAndFlush(avcSequenceHeader);
+                snapshot.add(avcSequenceHeader.retain());
             }
             if (aacSequenceHeader != null) {
-                player.writeAndFlush(aacSequenceHeader);
+                snapshot.add(aacSequenceHeader.retain());
             }
-            // write gop cache then
-            for (RtmpBaseMsg msg : gopCache) {
-                player.writeAndFlush(msg);
+            for (RtmpMediaMsg msg : gopCache) {
+                snapshot.add(msg.retain());
             }
+            players.add(player);
+        }
+        channel.closeFuture().addListener(future -> players.remove(player));
+
+        // 메시지 수백 개 대신 몇 개의 Aggregate 로 보내 헤더와 write 수를 줄인다
+        if (properties.isAggregateGopBurst()) {
+            snapshot = RtmpAggregateMsg.pack(channel.alloc(), snapshot, properties.getAggregateMaxBytes());
         }
+
+        // GOP 를 보내기 전에 스트림에 맞는 청크 크기로 바꾼다
+        player.updateChunkSize();
+        for (RtmpBaseMsg msg : snapshot) {
+            player.write(msg);
+            ReferenceCountUtil.release(msg);
+        }
+        // play 응답과 입장 데이터를 한 번에 내보낸다
+        // EgressPacer 가 있으면 fast start 만큼만 바로 나가고 나머지는 스트림 bitrate 의 배수로 나눠 나간다
+        player.flush();
     }
 
-    public synchronized void onRecvVideo(RtmpVideoMsg msg) {
-        if (msg.isAVCSequenceHeader()) {
-            log.info("<-- recv AVC Sequence Header, stream=" + streamId);
-            avcSequenceHeader = msg;
+    public void setMetaData(Map<String, Object> metaData) {
+        synchronized (metaDataLock) {
+            this.metaData = metaData;
+            ReferenceCountUtil.release(encodedMetaData);
+            encodedMetaData = null;
         }
-        if (msg.isH264KeyFrame()) {
-            log.info("<-- recv key frame, stream=" + streamId);
-            gopCache.clear();
+    }
+
+    /**
+     * 플레이어에게 보낼 onMetaData, 인코딩된 버퍼를 공유하므로 복사 없이 duplicate 만 만든다.
+     */
+    public RtmpAMF0EncodedMsg newMetaDataMessage() throws Exception {
+        synchronized (metaDataLock) {
+            if (encodedMetaData == null) {
+                List<Object> onMetaData = new ArrayList<>(2);
+                onMetaData.add("onMetaData");
+                LinkedHashMap<String, Object> amf0Object = new LinkedHashMap<>();
+                if (metaData != null) {
+                    amf0Object.putAll(metaData);
+                }
+                onMetaData.add(amf0Object);
+                encodedMetaData = AMF0.encodeAll(publisher.alloc(), onMetaData);
+            }
+            return new RtmpAMF0EncodedMsg(RtmpAMF0EncodedMsg.DATA, encodedMetaData.retainedDuplicate());
         }
+    }
 
-        gopCache.add(msg);
-        broadcastToPlayers(msg);
+    public List<Player> getPlayers() {
+        return Collections.unmodifiableList(players);
     }
 
-    public synchronized void onRecvAudio(RtmpAudioMsg msg) {
-        if (msg.isAACSequenceHeader()) {
-            log.info("<-- recv AAC Sequence Header, stream=" + streamId);
-            aacSequenceHeader = msg;
+    public void onRecvVideo(RtmpVideoMsg msg) {
+        Iterator<Player> targets;
+        synchronized (gopLock) {
+            if (msg.isAVCSequenceHeader()) {
+                log.info("<-- recv AVC Sequence Header, stream=" + streamId);
+                ReferenceCountUtil.release(avcSequenceHeader);
+                avcSequenceHeader = msg.retain();
+            }
+            if (msg.isH264KeyFrame()) {
+                log.debug("<-- recv key frame, stream=" + streamId + ", last gop cache size=" + gopCache.size()
+                        + ", bytes=" + gopCache.getBytes() + ", durationMs=" + gopCache.getDurationMs());
+            }
+
+            gopCache.add(msg);
+            // 캐시에 넣은 뒤 입장한 플레이어는 이 프레임을 GOP 스냅샷으로 받으므로, 대상은 락 안에서 정한다
+            targets = players.iterator();
         }
+        stats.onVideo(msg);
+        broadcastToPlayers(msg, targets);
+    }
 
-        gopCache.add(msg);
-        broadcastToPlayers(msg);
+    public void onRecvAudio(RtmpAudioMsg msg) {
+        Iterator<Player> targets;
+        synchronized (gopLock) {
+            if (msg.isAACSequenceHeader()) {
+                log.info("<-- recv AAC Sequence Header, stream=" + streamId);
+                ReferenceCountUtil.release(aacSequenceHeader);
+                aacSequenceHeader = msg.retain();
+            }
+
+            gopCache.add(msg);
+            targets = players.iterator();
+        }
+        stats.onAudio(msg);
+        broadcastToPlayers(msg, targets);
     }
 
     public void onRecvText(RtmpTextMsg msg) {
-        broadcastToPlayers(msg);
+        broadcastToPlayers(msg, players.iterator());
     }
 
-    private void broadcastToPlayers(RtmpBaseMsg msg) {
-        for (Channel player : players) {
-            if (player.isActive()) {
-                player.writeAndFlush(msg);
+    /**
+     * 플레이어마다 참조를 하나씩 넘기고, 인코더가 쓰고 난 뒤 release 한다
+     * @param targets copy-on-write 목록의 iterator 라 만든 시점의 플레이어만 돈다
+     */
+    private void broadcastToPlayers(RtmpBaseMsg msg, Iterator<Player> targets) {
+        while (targets.hasNext()) {
+            Player player = targets.next();
+            if (!player.isActive()) {
+                continue;
+            }
+            if (msg instanceof RtmpVideoMsg && player.isAwaitingKeyFrame() && player.isWritable()
+                    && resyncFromGopCache(player)) {
+                continue;
             }
+            player.send(msg);
+        }
+    }
+
+    /**
+     * 퍼블리셔의 read 한 번이 끝날 때 호출되어, 그동안 쌓인 write 를 플레이어마다 한 번씩 flush 한다.
+     * playerFlushIntervalMs 를 쓰는 경우에는 플레이어가 스스로 flush 를 예약하므로 하지 않는다.
+     */
+    public void flushPlayers() {
+        if (properties.getPlayerFlushIntervalMs() > 0) {
+            return;
+        }
+        for (Player player : players) {
+            if (player.isFlushPending()) {
+                player.flush();
+            }
+        }
+    }
+
+    /**
+     * 비디오를 버렸던 플레이어가 다시 writable 이 되면, GOP 캐시가 그 이후의 키프레임에서 시작하는 경우
+     * 다음 키프레임을 기다리지 않고 캐시의 비디오로 바로 따라잡는다.
+     * 방금 받은 비디오는 이미 캐시의 마지막에 들어 있으므로 따로 보내지 않는다.
+     */
+    private boolean resyncFromGopCache(Player player) {
+        synchronized (gopLock) {
+            RtmpVideoMsg keyFrame = null;
+            for (RtmpMediaMsg msg : gopCache) {
+                if (msg instanceof RtmpVideoMsg) {
+                    keyFrame = (RtmpVideoMsg) msg;
+                    break;
+                }
+            }
+            if (keyFrame == null || !keyFrame.isH264KeyFrame() || keyFrame.getTimeStamp() <= player.getLastVideoTimestamp()) {
+                return false;
+            }
+
+            for (RtmpMediaMsg msg : gopCache) {
+                if (msg instanceof RtmpVideoMsg) {
+                    player.send(msg);
+                }
+            }
+        }
+        log.info("player=" + player.getChannel().id() + " resynced from gop cache, stream=" + streamId
+                + ", dropped=" + player.getDroppedFrames());
+        return true;
+    }
+
+    public int getGopCacheSize() {
+        synchronized (gopLock) {
+            return gopCache.size();
+        }
+    }
+
+    public long getGopCacheBytes() {
+        synchronized (gopLock) {
+            return gopCache.getBytes();
+        }
+    }
+
+    public long getGopCacheDurationMs() {
+        synchronized (gopLock) {
+            return gopCache.getDurationMs();
+        }
+    }
+
+    public long getPlayersPendingBytes() {
+        long pendingBytes = 0;
+        for (Player player : players) {
+            pendingBytes += player.getPendingBytes();
+        }
+        return pendingBytes;
+    }
+
+    public StreamStatsDto toStatsDto() {
+        StreamStatsDto dto = new StreamStatsDto();
+        dto.setApp(streamId.getAppName());
+        dto.setName(streamId.getStreamName());
+        dto.setIngestBytes(stats.getIngestBytes());
+        dto.setIngestKbps(stats.getIngestKbps());
+        dto.setVideoFps(stats.getVideoFps());
+        dto.setAudioFps(stats.getAudioFps());
+        dto.setKeyFrameIntervalMs(stats.getKeyFrameIntervalMs());
+        dto.setDroppedFrames(stats.getDroppedFrames());
+        synchronized (gopLock) {
+            dto.setGopCacheMessages(gopCache.size());
+            dto.setGopCacheBytes(gopCache.getBytes());
+            dto.setGopCacheDurationMs(gopCache.getDurationMs());
+        }
+        List<StreamStatsDto.PlayerStatsDto> playerStats = new ArrayList<>(players.size());
+        for (Player player : players) {
+            playerStats.add(player.toStatsDto());
+        }
+        dto.setViewers(playerStats.size());
+        dto.setPlayers(playerStats);
+        return dto;
+    }
+
+    public long getGopCacheEvictedMessages() {
+        synchronized (gopLock) {
+            return gopCache.getEvictedMessages();
+        }
+    }
+
+    // 스트림이 정리될 때 보관중인 메시지를 해제한다
+    public void release() {
+        synchronized (metaDataLock) {
+            ReferenceCountUtil.release(encodedMetaData);
+            encodedMetaData = null;
+        }
+        synchronized (gopLock) {
+            gopCache.clear();
+            ReferenceCountUtil.release(avcSequenceHeader);
+            ReferenceCountUtil.release(aacSequenceHeader);
+            avcSequenceHeader = null;
+            aacSequenceHeader = null;
         }
     }
 
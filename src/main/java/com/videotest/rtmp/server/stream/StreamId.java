@@ -1,7 +1,9 @@
 package com.videotest.rtmp.server.stream;
 
+import lombok.Getter;
 import lombok.ToString;
 
+@Getter
 @ToString
 public class StreamId {
     private final String appName;
@@ -2,6 +2,8 @@ package com.videotest.rtmp.server.stream;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
@@ -19,12 +21,15 @@ public class StreamManager {
 
     // map: StreamId -> Stream
     private static final ConcurrentHashMap<StreamId, Stream> streamMap = new ConcurrentHashMap<>();
+    static {
+        StreamMetrics.bindStreamCount(streamMap);
+    }
 
     public static boolean createStream(StreamId streamId, Stream stream) {
-        if (streamMap.containsKey(streamId)) {
+        if (streamMap.putIfAbsent(streamId, stream) != null) {
             return false;
         }
-        streamMap.put(streamId, stream);
+        StreamMetrics.bind(stream);
         return true;
     }
 
@@ -32,11 +37,30 @@ public class StreamManager {
         return streamMap.get(streamId);
     }
 
-    private static void deleteStream(StreamId streamId) {
-        streamMap.remove(streamId);
+    public static Collection<Stream> getStreams() {
+        return Collections.unmodifiableCollection(streamMap.values());
+    }
+
+    public static void deleteStream(StreamId streamId) {
+        Stream stream = streamMap.remove(streamId);
+        if (stream != null) {
+            StreamMetrics.unbind(stream);
+            stream.release();
+        }
     }
 
 
+    /**
+     * 퍼블리셔 연결이 닫힐 때 바로 정리한다. 같은 이름으로 새로 만든 스트림은 지우지 않는다.
+     */
+    public static void deleteStream(Stream stream) {
+        if (streamMap.remove(stream.getStreamId(), stream)) {
+            StreamMetrics.unbind(stream);
+            stream.release();
+        }
+    }
+
+    // 닫힘 리스너를 놓친 스트림을 위한 주기적 정리
     private static class StreamCleaner implements Runnable {
         @Override
         public void run() {
@@ -0,0 +1,62 @@
+package com.videotest.rtmp.server.stream;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 스트림별 Micrometer 미터
+ * Stream 은 빈이 아니므로 global registry 에 등록한다. (Spring Boot 가 자신의 registry 를 global 에 붙인다)
+ * 같은 이름으로 다시 publish 하면 이전 스트림의 미터를 지우기 전에 새 스트림이 등록될 수 있다.
+ * 그래서 publisher 태그로 스트림 인스턴스를 구분하고, unbind 는 그 인스턴스가 등록한 미터만 지운다.
+ */
+final class StreamMetrics {
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+    // Stream 은 equals 를 재정의하지 않으므로 인스턴스마다 따로 잡힌다
+    private static final Map<Stream, List<Meter>> meters = new ConcurrentHashMap<>();
+
+    private StreamMetrics() {
+    }
+
+    static void bind(Stream stream) {
+        StreamId streamId = stream.getStreamId();
+        StreamStats stats = stream.getStats();
+        Tags tags = Tags.of("app", streamId.getAppName(), "stream", streamId.getStreamName(),
+                "publisher", stream.getPublisher().id().asShortText());
+        meters.put(stream, List.of(
+                FunctionCounter.builder("rtmp.stream.ingest.bytes", stats, StreamStats::getIngestBytes)
+                        .tags(tags).baseUnit("bytes").register(registry),
+                Gauge.builder("rtmp.stream.ingest.bitrate", stats, StreamStats::getIngestKbps)
+                        .tags(tags).baseUnit("kbps").register(registry),
+                Gauge.builder("rtmp.stream.video.fps", stats, StreamStats::getVideoFps).tags(tags).register(registry),
+                Gauge.builder("rtmp.stream.audio.fps", stats, StreamStats::getAudioFps).tags(tags).register(registry),
+                Gauge.builder("rtmp.stream.keyframe.interval", stats, StreamStats::getKeyFrameIntervalMs)
+                        .tags(tags).baseUnit("milliseconds").register(registry),
+                Gauge.builder("rtmp.stream.viewers", stream, s -> s.getPlayers().size()).tags(tags).register(registry),
+                Gauge.builder("rtmp.stream.players.pending.bytes", stream, Stream::getPlayersPendingBytes)
+                        .tags(tags).baseUnit("bytes").register(registry),
+                FunctionCounter.builder("rtmp.stream.players.dropped.frames", stats, StreamStats::getDroppedFrames)
+                        .tags(tags).register(registry),
+                Gauge.builder("rtmp.stream.gop.cache.bytes", stream, Stream::getGopCacheBytes)
+                        .tags(tags).baseUnit("bytes").register(registry)));
+    }
+
+    static void unbind(Stream stream) {
+        List<Meter> removed = meters.remove(stream);
+        if (removed != null) {
+            removed.forEach(registry::remove);
+        }
+    }
+
+    static void bindStreamCount(Map<StreamId, Stream> streams) {
+        Gauge.builder("rtmp.streams", streams, Map::size).register(registry);
+    }
+}
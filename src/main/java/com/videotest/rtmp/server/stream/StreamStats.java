@@ -0,0 +1,122 @@
+package com.videotest.rtmp.server.stream;
+
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 스트림 하나의 송출/시청 카운터
+ * 송출 쪽 값은 퍼블리셔의 이벤트 루프에서만 갱신되고, 통계 조회는 어느 스레드에서나 할 수 있다.
+ * fps 와 bitrate 는 미디어 timestamp 기준 1초 구간마다 갱신한다.
+ */
+public class StreamStats {
+    private final LongAdder ingestBytes = new LongAdder();
+    private final LongAdder videoFrames = new LongAdder();
+    private final LongAdder audioFrames = new LongAdder();
+    private final LongAdder keyFrames = new LongAdder();
+    // 플레이어들이 버린 프레임의 합, 플레이어가 나가도 줄어들지 않는다
+    private final LongAdder droppedFrames = new LongAdder();
+
+    private final RateWindow videoRate = new RateWindow();
+    private final RateWindow audioRate = new RateWindow();
+    private final RateWindow byteRate = new RateWindow();
+    private final RateWindow videoByteRate = new RateWindow();
+
+    private long lastKeyFrameTimestamp = -1;
+    private volatile long keyFrameIntervalMs;
+
+    void onVideo(RtmpVideoMsg msg) {
+        ingestBytes.add(msg.getPayloadLength());
+        videoFrames.increment();
+        videoRate.add(msg.getTimeStamp(), 1);
+        byteRate.add(msg.getTimeStamp(), msg.getPayloadLength());
+        videoByteRate.add(msg.getTimeStamp(), msg.getPayloadLength());
+        if (msg.isH264KeyFrame() && !msg.isAVCSequenceHeader()) {
+            keyFrames.increment();
+            if (lastKeyFrameTimestamp >= 0) {
+                keyFrameIntervalMs = msg.getTimeStamp() - lastKeyFrameTimestamp;
+            }
+            lastKeyFrameTimestamp = msg.getTimeStamp();
+        }
+    }
+
+    void onAudio(RtmpAudioMsg msg) {
+        ingestBytes.add(msg.getPayloadLength());
+        audioFrames.increment();
+        audioRate.add(msg.getTimeStamp(), 1);
+        byteRate.add(msg.getTimeStamp(), msg.getPayloadLength());
+    }
+
+    void onDroppedFrame() {
+        droppedFrames.increment();
+    }
+
+    public long getIngestBytes() {
+        return ingestBytes.sum();
+    }
+
+    public long getVideoFrames() {
+        return videoFrames.sum();
+    }
+
+    public long getAudioFrames() {
+        return audioFrames.sum();
+    }
+
+    public long getKeyFrames() {
+        return keyFrames.sum();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public double getVideoFps() {
+        return videoRate.getRate();
+    }
+
+    public double getAudioFps() {
+        return audioRate.getRate();
+    }
+
+    public double getIngestKbps() {
+        return byteRate.getRate() * 8 / 1000;
+    }
+
+    // 최근 1초 구간의 비디오 프레임 평균 크기, 아직 구간이 없으면 0
+    public long getAverageVideoFrameBytes() {
+        double fps = videoRate.getRate();
+        return fps > 0 ? (long) (videoByteRate.getRate() / fps) : 0;
+    }
+
+    public long getKeyFrameIntervalMs() {
+        return keyFrameIntervalMs;
+    }
+
+    // 송출 스레드 하나만 add 한다
+    private static final class RateWindow {
+        private long windowStart = -1;
+        private long count;
+        private volatile double rate;
+
+        void add(long timestamp, long amount) {
+            if (windowStart < 0 || timestamp < windowStart) {
+                windowStart = timestamp;
+                count = amount;
+                return;
+            }
+            long elapsed = timestamp - windowStart;
+            if (elapsed >= 1000) {
+                rate = count * 1000.0 / elapsed;
+                windowStart = timestamp;
+                count = 0;
+            }
+            count += amount;
+        }
+
+        double getRate() {
+            return rate;
+        }
+    }
+}
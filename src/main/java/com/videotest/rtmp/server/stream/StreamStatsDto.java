@@ -0,0 +1,37 @@
+package com.videotest.rtmp.server.stream;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class StreamStatsDto {
+
+    private String app;
+    private String name;
+    private long ingestBytes;
+    private double ingestKbps;
+    private double videoFps;
+    private double audioFps;
+    private long keyFrameIntervalMs;
+    private int viewers;
+    private long droppedFrames;
+    private int gopCacheMessages;
+    private long gopCacheBytes;
+    private long gopCacheDurationMs;
+    private List<PlayerStatsDto> players;
+
+    @Data
+    public static class PlayerStatsDto {
+        private String id;
+        private String remoteAddress;
+        private long pendingBytes;
+        private long bytesInFlight;
+        private double ackedKbps;
+        private double rttMs;
+        private double bandwidthKbps;
+        private double pacingKbps;
+        private long droppedFrames;
+        private boolean awaitingKeyFrame;
+    }
+}
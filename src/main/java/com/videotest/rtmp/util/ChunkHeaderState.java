@@ -0,0 +1,84 @@
+package com.videotest.rtmp.util;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * chunk stream 하나의 마지막으로 보낸 헤더
+ * 직전 메시지와 같은 필드는 생략할 수 있으므로 가장 짧은 fmt 를 고른다.
+ * <ul>
+ *     <li>fmt0 (11 bytes): 처음, message stream 이 바뀌거나 timestamp 가 뒤로 간 경우</li>
+ *     <li>fmt1 (7 bytes): 길이나 type 이 바뀐 경우</li>
+ *     <li>fmt2 (3 bytes): timestamp delta 만 바뀐 경우</li>
+ *     <li>fmt3 (0 bytes): 길이, type, delta 가 모두 같은 경우</li>
+ * </ul>
+ * 받는 쪽(스펙, ffmpeg, librtmp)은 fmt3 으로 시작하는 메시지에 직전 헤더의 delta 를 더하고, fmt0 뒤의 delta 는 fmt0 의 절대 timestamp 로 본다.
+ * 그래서 fmt0 다음 메시지는 timestamp 가 그 두 배일 때만 fmt3 이 된다.
+ */
+public class ChunkHeaderState {
+
+	private static final int[] MESSAGE_HEADER_LENGTH = {11, 7, 3, 0};
+
+	private final int csid;
+
+	private boolean initialized;
+	private int msgStreamId;
+	private int payloadLength;
+	private byte typeId;
+	private long timestamp;
+	private long timestampDelta;
+	// 직전 헤더가 extended timestamp 를 썼으면 fmt3 으로 이어 쓸 수 없다
+	private boolean extended;
+
+	public ChunkHeaderState(int csid) {
+		this.csid = csid;
+	}
+
+	public int getCsid() {
+		return csid;
+	}
+
+	/**
+	 * 첫 청크의 헤더를 쓰고 상태를 갱신한다.
+	 * @param timestamp 메시지의 절대 timestamp
+	 * @return 이어지는 청크에 붙일 extended timestamp, 없으면 -1
+	 */
+	public long writeHeader(ByteBuf out, long timestamp, int payloadLength, byte typeId, int msgStreamId) {
+		int fmt = selectFormat(timestamp, payloadLength, typeId, msgStreamId);
+		long value = fmt == 0 ? timestamp : timestamp - this.timestamp;
+		long extendedTimestamp = ChunkWriter.writeMessageHeader(out, fmt, csid, value, payloadLength, typeId, msgStreamId);
+		if (fmt != 3) {
+			extended = extendedTimestamp >= 0;
+			timestampDelta = value;
+		}
+		initialized = true;
+		this.msgStreamId = msgStreamId;
+		this.payloadLength = payloadLength;
+		this.typeId = typeId;
+		this.timestamp = timestamp;
+		return extendedTimestamp;
+	}
+
+	/**
+	 * writeHeader 가 쓸 헤더의 길이, 헤더를 payload 앞에 나중에 채우는 경우에 쓴다.
+	 */
+	public int headerLength(long timestamp, int payloadLength, byte typeId, int msgStreamId) {
+		int fmt = selectFormat(timestamp, payloadLength, typeId, msgStreamId);
+		long value = fmt == 0 ? timestamp : timestamp - this.timestamp;
+		int length = ChunkWriter.basicHeaderLength(csid) + MESSAGE_HEADER_LENGTH[fmt];
+		return fmt != 3 && value >= ChunkWriter.MAX_TIMESTAMP ? length + 4 : length;
+	}
+
+	private int selectFormat(long timestamp, int payloadLength, byte typeId, int msgStreamId) {
+		if (!initialized || msgStreamId != this.msgStreamId || timestamp < this.timestamp) {
+			return 0;
+		}
+		long delta = timestamp - this.timestamp;
+		if (payloadLength != this.payloadLength || typeId != this.typeId) {
+			return 1;
+		}
+		if (delta != timestampDelta || extended || delta >= ChunkWriter.MAX_TIMESTAMP) {
+			return 2;
+		}
+		return 3;
+	}
+}
@@ -0,0 +1,91 @@
+package com.videotest.rtmp.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/** 청크 헤더/본문 쓰기 */
+public final class ChunkWriter {
+
+	public static final int MAX_TIMESTAMP = 0xffffff;
+
+	private ChunkWriter() {
+	}
+
+	public static int basicHeaderLength(final int csid) {
+		if (csid <= 63) {
+			return 1;
+		}
+		return csid <= 319 ? 2 : 3;
+	}
+
+	public static void writeBasicHeader(final ByteBuf out, final int fmt, final int csid) {
+		if (csid <= 63) {
+			out.writeByte((fmt << 6) + csid);
+		} else if (csid <= 319) {
+			out.writeByte(fmt << 6);
+			out.writeByte(csid - 64);
+		} else {
+			out.writeByte((fmt << 6) | 1);
+			out.writeByte((csid - 64) & 0xff);
+			out.writeByte((csid - 64) >> 8);
+		}
+	}
+
+	/**
+	 * fmt0/1/2/3 청크 헤더를 쓴다. fmt 에 없는 필드는 쓰지 않는다.
+	 * @param timestamp fmt0 은 절대값, fmt1/2 는 delta, fmt3 은 무시
+	 * @return extended timestamp 를 썼다면 그 값, 아니면 -1
+	 */
+	public static long writeMessageHeader(final ByteBuf out, final int fmt, final int csid, final long timestamp,
+										  final int payloadLength, final byte typeId, final int msgStreamId) {
+		boolean extended = fmt != 3 && timestamp >= MAX_TIMESTAMP;
+		writeBasicHeader(out, fmt, csid);
+		if (fmt <= 2) {
+			out.writeMedium(extended ? MAX_TIMESTAMP : (int) timestamp);
+		}
+		if (fmt <= 1) {
+			out.writeMedium(payloadLength);
+			out.writeByte(typeId);
+		}
+		if (fmt == 0) {
+			out.writeIntLE(msgStreamId);
+		}
+		if (extended) {
+			out.writeInt((int) timestamp);
+		}
+		return extended ? timestamp : -1;
+	}
+
+	/**
+	 * 첫 청크의 message header 를 제외한 나머지를 새 버퍼에 쓴다.
+	 * 헤더와 무관하게 chunkSize, csid, extended timestamp 만 같으면 바이트가 같으므로 여러 플레이어가 공유할 수 있다.
+	 * @param extendedTimestamp 첫 청크가 extended timestamp 를 썼다면 그 값, 아니면 -1
+	 */
+	public static ByteBuf chunkedBody(final ByteBufAllocator alloc, final ByteBuf payload, final int chunkSize,
+									  final int csid, final long extendedTimestamp) {
+		int length = payload.readableBytes();
+		int chunks = Math.max(1, (length + chunkSize - 1) / chunkSize);
+		int continuationHeader = basicHeaderLength(csid) + (extendedTimestamp >= 0 ? 4 : 0);
+		ByteBuf body = alloc.ioBuffer(length + (chunks - 1) * continuationHeader);
+		writeChunkedBody(body, payload, chunkSize, csid, extendedTimestamp);
+		return body;
+	}
+
+	/**
+	 * 첫 청크 payload 다음부터는 fmt3 basic header (+ extended timestamp) 와 payload 가 번갈아 온다.
+	 * payload 의 readerIndex 는 바뀌지 않는다.
+	 */
+	public static void writeChunkedBody(final ByteBuf out, final ByteBuf payload, final int chunkSize,
+										final int csid, final long extendedTimestamp) {
+		int offset = payload.readerIndex();
+		int end = offset + payload.readableBytes();
+		out.writeBytes(payload, offset, Math.min(chunkSize, end - offset));
+		for (offset += chunkSize; offset < end; offset += chunkSize) {
+			writeBasicHeader(out, 3, csid);
+			if (extendedTimestamp >= 0) {
+				out.writeInt((int) extendedTimestamp);
+			}
+			out.writeBytes(payload, offset, Math.min(chunkSize, end - offset));
+		}
+	}
+}
@@ -3,7 +3,9 @@ package com.videotest.rtmp.util;
 /** 디코드 상태값 */
 public enum DecodeState {
 
-	READY_TO_DECODE_HEADER,
-	READY_TO_DECODE_PAYLOAD
+	BASIC_HEADER,
+	MESSAGE_HEADER,
+	EXTENDED_TIMESTAMP,
+	PAYLOAD
 	
 }
@@ -0,0 +1,131 @@
+package com.videotest.rtmp.util;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * HMAC-SHA256 digest handshake (complex handshake)
+ * c1/s1 1536 바이트 안의 32 바이트 digest 위치는 scheme 에 따라 정해진다.
+ * <ul>
+ *     <li>scheme 0: 8~11 번째 바이트의 합 % 728 + 12</li>
+ *     <li>scheme 1: 772~775 번째 바이트의 합 % 728 + 776</li>
+ * </ul>
+ * digest 는 그 32 바이트를 뺀 나머지를 HMAC 한 값이다. Mac 은 스레드마다 하나씩 만들어 재사용한다.
+ */
+public final class HandshakeDigest {
+
+	public static final int HANDSHAKE_SIZE = 1536;
+	public static final int DIGEST_LENGTH = 32;
+
+	private static final byte[] KEY_SUFFIX = {
+			(byte) 0xF0, (byte) 0xEE, (byte) 0xC2, (byte) 0x4A, (byte) 0x80, (byte) 0x68, (byte) 0xBE, (byte) 0xE8,
+			(byte) 0x2E, (byte) 0x00, (byte) 0xD0, (byte) 0xD1, (byte) 0x02, (byte) 0x9E, (byte) 0x7E, (byte) 0x57,
+			(byte) 0x6E, (byte) 0xEC, (byte) 0x5D, (byte) 0x2D, (byte) 0x29, (byte) 0x80, (byte) 0x6F, (byte) 0xAB,
+			(byte) 0x93, (byte) 0xB8, (byte) 0xE6, (byte) 0x36, (byte) 0xCF, (byte) 0xEB, (byte) 0x31, (byte) 0xAE,
+	};
+	private static final byte[] FP_KEY = key("Genuine Adobe Flash Player 001");
+	private static final byte[] FMS_KEY = key("Genuine Adobe Flash Media Server 001");
+
+	// c1 검증은 FP 키의 문자열 부분, s1 서명은 FMS 키의 문자열 부분, s2 서명 키는 FMS 키 전체로 만든다
+	private static final SecretKeySpec CLIENT_KEY = new SecretKeySpec(FP_KEY, 0, 30, "HmacSHA256");
+	private static final SecretKeySpec SERVER_KEY = new SecretKeySpec(FMS_KEY, 0, 36, "HmacSHA256");
+	private static final SecretKeySpec SERVER_FULL_KEY = new SecretKeySpec(FMS_KEY, "HmacSHA256");
+
+	private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 is not available", e);
+		}
+	});
+
+	private HandshakeDigest() {
+	}
+
+	/**
+	 * c1 의 digest 를 찾는다. version 필드(4~7 바이트)가 0 이면 simple handshake 다.
+	 * @param index c1 시작 위치
+	 * @return 맞는 scheme (0 또는 1), 없으면 -1
+	 */
+	public static int findClientScheme(ByteBuf c1, int index) {
+		if (c1.getInt(index + 4) == 0) {
+			return -1;
+		}
+		for (int scheme = 1; scheme >= 0; scheme--) {
+			int digestIndex = digestIndex(c1, index, scheme);
+			byte[] digest = digest(CLIENT_KEY, c1, index, digestIndex);
+			if (equals(c1, digestIndex, digest)) {
+				return scheme;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 같은 scheme 으로 s1 의 digest 자리를 계산해 서명한다. s1 의 나머지는 먼저 다 써 두어야 한다.
+	 */
+	public static void signServer(ByteBuf s1, int index, int scheme) {
+		int digestIndex = digestIndex(s1, index, scheme);
+		s1.setBytes(digestIndex, digest(SERVER_KEY, s1, index, digestIndex));
+	}
+
+	/**
+	 * s2 의 마지막 32 바이트에 c1 digest 로 만든 키의 HMAC 을 쓴다. s2 의 앞 1504 바이트는 먼저 써 두어야 한다.
+	 */
+	public static void signResponse(ByteBuf s2, int index, ByteBuf c1, int c1Index, int scheme) {
+		int clientDigestIndex = digestIndex(c1, c1Index, scheme);
+		Mac mac = HMAC_SHA256.get();
+		try {
+			mac.init(SERVER_FULL_KEY);
+			mac.update(c1.nioBuffer(clientDigestIndex, DIGEST_LENGTH));
+			SecretKeySpec responseKey = new SecretKeySpec(mac.doFinal(), "HmacSHA256");
+			mac.init(responseKey);
+			mac.update(s2.nioBuffer(index, HANDSHAKE_SIZE - DIGEST_LENGTH));
+			s2.setBytes(index + HANDSHAKE_SIZE - DIGEST_LENGTH, mac.doFinal());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static int digestIndex(ByteBuf buf, int index, int scheme) {
+		int base = scheme == 0 ? 8 : 772;
+		int sum = buf.getUnsignedByte(index + base) + buf.getUnsignedByte(index + base + 1)
+				+ buf.getUnsignedByte(index + base + 2) + buf.getUnsignedByte(index + base + 3);
+		return index + sum % 728 + base + 4;
+	}
+
+	// digest 자리 32 바이트를 뺀 1504 바이트의 HMAC
+	private static byte[] digest(SecretKeySpec key, ByteBuf buf, int index, int digestIndex) {
+		Mac mac = HMAC_SHA256.get();
+		try {
+			mac.init(key);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		mac.update(buf.nioBuffer(index, digestIndex - index));
+		int after = digestIndex + DIGEST_LENGTH;
+		mac.update(buf.nioBuffer(after, index + HANDSHAKE_SIZE - after));
+		return mac.doFinal();
+	}
+
+	private static boolean equals(ByteBuf buf, int index, byte[] digest) {
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			if (buf.getByte(index + i) != digest[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] key(String name) {
+		byte[] prefix = name.getBytes(StandardCharsets.US_ASCII);
+		byte[] key = Arrays.copyOf(prefix, prefix.length + KEY_SUFFIX.length);
+		System.arraycopy(KEY_SUFFIX, 0, key, prefix.length, KEY_SUFFIX.length);
+		return key;
+	}
+}
@@ -0,0 +1,120 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpAckMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 주고받은 바이트를 세고 Acknowledgement 창을 양방향으로 지킨다.
+ * HandShakeHandler 와 RtmpDecoder 사이에 두어 인코딩된 바이트만 본다.
+ * 상대의 sequence number 는 handshake 부터 센 값이므로 카운터는 handshake 크기(HANDSHAKE_BYTES)에서 시작한다.
+ * <ul>
+ *     <li>받는 쪽: 상대가 알린 Window Acknowledgement Size (없으면 서버가 알린 값) 만큼 받을 때마다 Acknowledgement 를 보낸다.
+ *     인코더(퍼블리셔)는 이 ack 가 늦으면 업로드를 멈추거나 줄인다.</li>
+ *     <li>보내는 쪽: 상대의 Acknowledgement 로 아직 받았다고 하지 않은 바이트(in flight)와 ack 기준 처리량을 구한다.</li>
+ * </ul>
+ * 카운터는 채널의 이벤트 루프에서만 바뀌고, 조회는 어느 스레드에서나 할 수 있다.
+ */
+public class AcknowledgementHandler extends ChannelDuplexHandler {
+
+	// ack 처리량 EWMA 의 새 값 가중치
+	private static final double RATE_WEIGHT = 0.25;
+
+	private int ackWindow;
+	private long lastAckSent = HandShakeHandler.HANDSHAKE_BYTES;
+	private volatile long bytesReceived = HandShakeHandler.HANDSHAKE_BYTES;
+
+	private volatile long bytesSent = HandShakeHandler.HANDSHAKE_BYTES;
+	private volatile long bytesAcked;
+	private long lastAckNanos;
+	private volatile double ackedBytesPerSecond;
+
+	/**
+	 * @param ackWindow 상대가 Window Acknowledgement Size 를 알리기 전까지 쓸 ack 간격, 0 이하이면 알려올 때까지 보내지 않는다
+	 */
+	public AcknowledgementHandler(int ackWindow) {
+		this.ackWindow = ackWindow;
+	}
+
+	/**
+	 * 채널의 AcknowledgementHandler, 파이프라인에 없으면 null
+	 */
+	public static AcknowledgementHandler of(Channel channel) {
+		return channel.pipeline().get(AcknowledgementHandler.class);
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (msg instanceof ByteBuf buf) {
+			bytesReceived += buf.readableBytes();
+		}
+		super.channelRead(ctx, msg);
+		// 디코딩 중에 상대가 창 크기를 바꿨을 수 있으므로 넘긴 뒤에 확인한다
+		if (ackWindow > 0 && bytesReceived - lastAckSent >= ackWindow) {
+			lastAckSent = bytesReceived;
+			// 인코더를 거쳐야 하므로 채널(파이프라인 끝)에서 보낸다, sequence number 는 32 비트에서 돈다
+			ctx.channel().writeAndFlush(new RtmpAckMsg((int) bytesReceived), ctx.channel().voidPromise());
+		}
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if (msg instanceof ByteBuf buf) {
+			bytesSent += buf.readableBytes();
+		}
+		super.write(ctx, msg, promise);
+	}
+
+	/**
+	 * 상대가 보낸 Window Acknowledgement Size, 이후 그만큼 받을 때마다 ack 한다.
+	 */
+	public void onWindowAckSize(int windowAckSize) {
+		ackWindow = windowAckSize;
+	}
+
+	/**
+	 * 상대가 보낸 Acknowledgement, sequence number 는 상대가 지금까지 받은 바이트 수의 하위 32 비트다.
+	 */
+	public void onAcknowledgement(int sequenceNumber) {
+		long acked = bytesAcked;
+		long delta = (sequenceNumber - (int) acked) & 0xffffffffL;
+		long now = System.nanoTime();
+		if (lastAckNanos != 0 && now > lastAckNanos) {
+			double rate = delta * 1_000_000_000.0 / (now - lastAckNanos);
+			double previous = ackedBytesPerSecond;
+			ackedBytesPerSecond = previous == 0 ? rate : previous + (rate - previous) * RATE_WEIGHT;
+		}
+		lastAckNanos = now;
+		bytesAcked = acked + delta;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getBytesAcked() {
+		return bytesAcked;
+	}
+
+	/**
+	 * 보냈지만 상대가 아직 ack 하지 않은 바이트, 소켓에 내려가지 않고 채널에 쌓인 바이트도 포함한다.
+	 * ack 를 받기 전에는 handshake 도 in flight 로 잡힌다. 상대가 보낸 것보다 많이 ack 해도 0 아래로는 내려가지 않는다.
+	 */
+	public long getBytesInFlight() {
+		return Math.max(0, bytesSent - bytesAcked);
+	}
+
+	/**
+	 * ack 사이에 상대가 받았다고 알린 바이트로 구한 처리량(EWMA), ack 를 두 번 받기 전에는 0
+	 */
+	public double getAckedBytesPerSecond() {
+		return ackedBytesPerSecond;
+	}
+}
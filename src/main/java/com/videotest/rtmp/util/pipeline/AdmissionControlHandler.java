@@ -0,0 +1,113 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.server.ConnectionLimiter;
+import com.videotest.rtmp.server.ConnectionMetrics;
+import com.videotest.rtmp.server.RtmpProperties;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleStateHandler;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 파이프라인 맨 앞에서 연결을 받을지 정한다.
+ * ConnectionLimiter 에서 자리를 얻지 못하면 handshake 를 시작하기 전에 닫고,
+ * handshakeTimeoutMs 안에 handshake 가 끝나지 않아도 닫는다.
+ * handshake 가 끝나면 자리를 돌려주고 idle 감시(IdleStateHandler)로 바뀐다.
+ */
+@Slf4j
+public class AdmissionControlHandler extends ChannelInboundHandlerAdapter {
+
+	public static final String IDLE_HANDLER_NAME = "idle";
+
+	private final RtmpProperties properties;
+	private final ConnectionLimiter limiter;
+
+	private InetAddress address;
+	private boolean holdingHandshake;
+	private ScheduledFuture<?> handshakeTimeout;
+
+	public AdmissionControlHandler(RtmpProperties properties, ConnectionLimiter limiter) {
+		this.properties = properties;
+		this.limiter = limiter;
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		address = inetAddress(ctx.channel().remoteAddress());
+		String rejected = limiter.tryAdmit(address);
+		if (rejected != null) {
+			ConnectionMetrics.onRejected(rejected);
+			log.warn("reject connection from " + address + ", reason=" + rejected);
+			ctx.close();
+			return;
+		}
+		holdingHandshake = true;
+		if (properties.getHandshakeTimeoutMs() > 0) {
+			handshakeTimeout = ctx.executor().schedule(() -> onHandshakeTimeout(ctx),
+					properties.getHandshakeTimeoutMs(), TimeUnit.MILLISECONDS);
+		}
+		super.channelActive(ctx);
+	}
+
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt != HandShakeHandler.HANDSHAKE_COMPLETE) {
+			super.userEventTriggered(ctx, evt);
+			return;
+		}
+		releaseHandshake();
+		super.userEventTriggered(ctx, evt);
+		if (properties.getReadIdleTimeoutMs() > 0) {
+			ctx.pipeline().replace(this, IDLE_HANDLER_NAME,
+					new IdleStateHandler(properties.getReadIdleTimeoutMs(), 0, 0, TimeUnit.MILLISECONDS));
+		} else {
+			ctx.pipeline().remove(this);
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		releaseHandshake();
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) {
+		releaseHandshake();
+	}
+
+	private void onHandshakeTimeout(ChannelHandlerContext ctx) {
+		if (!holdingHandshake) {
+			return;
+		}
+		ConnectionMetrics.onTimeout("handshake");
+		log.warn("handshake timeout, close channel: " + ctx.channel().id() + ", remote=" + address);
+		ctx.close();
+	}
+
+	// 여러 경로(완료, 닫힘, 제거)에서 불리므로 한 번만 돌려준다
+	private void releaseHandshake() {
+		if (!holdingHandshake) {
+			return;
+		}
+		holdingHandshake = false;
+		limiter.releaseHandshake(address);
+		if (handshakeTimeout != null) {
+			handshakeTimeout.cancel(false);
+			handshakeTimeout = null;
+		}
+	}
+
+	private static InetAddress inetAddress(SocketAddress remoteAddress) {
+		if (remoteAddress instanceof InetSocketAddress inetSocketAddress) {
+			return inetSocketAddress.getAddress();
+		}
+		return null;
+	}
+}
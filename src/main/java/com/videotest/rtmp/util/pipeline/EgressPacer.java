@@ -0,0 +1,232 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * 플레이어 채널의 미디어 송출 속도를 token bucket 으로 제한한다. 인코더보다 tail 쪽에 두고 인코딩 전 메시지 단위로 내보낸다.
+ * <ul>
+ *     <li>처음 fastStartBytes 는 바로 보낸다. 입장 시 시퀀스 헤더와 GOP 앞부분이 여기에 들어간다.</li>
+ *     <li>그 뒤로는 스트림 bitrate * rateMultiplier 로 채워지는 bucket 에서 꺼내 보낸다. bucket 은 burstMs 만큼만 쌓인다.</li>
+ *     <li>토큰이 모자라면 모자란 만큼 채워질 시각에 채널 이벤트 루프의 타이머로 다시 보낸다. 별도 스레드는 쓰지 않는다.</li>
+ * </ul>
+ * 오디오/비디오만 토큰을 기다리고 protocol control, user control, 명령은 바로 인코더로 넘긴다.
+ * 인코딩 전이라 순서가 바뀌어도 chunk header 상태나 청크 크기는 어긋나지 않는다. 인코더를 거치지 않는 버퍼만 큐 순서를 따른다.
+ * 큐는 채널의 pending 바이트에 잡히지 않으므로 입장 시 GOP 가 커도 unwritable 이 되지 않는다.
+ * 대신 Player 가 getQueuedBytes 를 pending 바이트에 더해 playerMaxPendingBytes 로 제한한다.
+ */
+public class EgressPacer extends ChannelDuplexHandler {
+
+	private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final double rateMultiplier;
+	private final double minKbps;
+	private final long burstMs;
+
+	private ChannelHandlerContext ctx;
+	private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+	// 이벤트 루프에서만 바꾸고 Player 가 다른 스레드에서 읽는다
+	private volatile long queuedBytes;
+	// 스트림에 붙기 전에는 minKbps 로 보낸다
+	private volatile DoubleSupplier bitrateKbps = () -> 0;
+
+	private double tokens;
+	private long lastRefillNanos;
+	private boolean timerScheduled;
+	// 서버를 내릴 때는 토큰과 상관없이 보낸다
+	private volatile boolean unpaced;
+
+	/**
+	 * @param rateMultiplier 스트림 bitrate 에 곱할 송출 속도 배수
+	 * @param minKbps bitrate 를 아직 모르거나 이보다 낮을 때 쓰는 bitrate
+	 * @param burstMs bucket 크기, 송출 속도로 이 시간 동안 보낼 바이트
+	 * @param fastStartBytes 처음에 기다리지 않고 보낼 바이트
+	 */
+	public EgressPacer(double rateMultiplier, double minKbps, long burstMs, long fastStartBytes) {
+		this.rateMultiplier = rateMultiplier;
+		this.minKbps = minKbps;
+		this.burstMs = burstMs;
+		this.tokens = fastStartBytes;
+	}
+
+	/**
+	 * 채널의 EgressPacer, 파이프라인에 없으면 null
+	 */
+	public static EgressPacer of(Channel channel) {
+		return channel.pipeline().get(EgressPacer.class);
+	}
+
+	/**
+	 * 송출 속도의 기준이 될 스트림 bitrate, 플레이어가 스트림에 붙을 때 정한다
+	 */
+	public void setBitrateSource(DoubleSupplier bitrateKbps) {
+		this.bitrateKbps = bitrateKbps;
+	}
+
+	/**
+	 * 이후로는 토큰과 상관없이 바로 내보낸다. 서버를 내릴 때 남은 write 를 shutdownTimeoutMs 안에 내보내기 위해 쓴다.
+	 * 큐에 있던 순서는 그대로 지킨다.
+	 */
+	public void stopPacing() {
+		unpaced = true;
+		ChannelHandlerContext ctx = this.ctx;
+		if (ctx == null) {
+			return;
+		}
+		ctx.channel().eventLoop().execute(() -> {
+			if (!ctx.isRemoved() && drain()) {
+				ctx.flush();
+			}
+		});
+	}
+
+	public double getRateBytesPerSecond() {
+		return Math.max(minKbps, bitrateKbps.getAsDouble()) * rateMultiplier * 125;
+	}
+
+	/**
+	 * 토큰을 기다리는 바이트, 미디어는 payload 길이로 센다
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) {
+		this.ctx = ctx;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+		// 종료 시 drain 표시 같은 버퍼는 앞서 큐에 들어온 미디어 뒤에 나간다
+		boolean paced = msg instanceof RtmpMediaMsg || (!(msg instanceof RtmpBaseMsg) && !queue.isEmpty());
+		if (!paced) {
+			ctx.write(msg, promise);
+			return;
+		}
+		int size = sizeOf(msg);
+		queue.add(new PendingWrite(msg, promise, size));
+		queuedBytes += size;
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) {
+		drain();
+		ctx.flush();
+	}
+
+	@Override
+	public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+		failAll(new ClosedChannelException());
+		super.close(ctx, promise);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		failAll(new ClosedChannelException());
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) {
+		failAll(new ClosedChannelException());
+	}
+
+	private static int sizeOf(Object msg) {
+		if (msg instanceof RtmpMediaMsg media) {
+			return media.getPayloadLength();
+		}
+		return msg instanceof ByteBuf buf ? buf.readableBytes() : 0;
+	}
+
+	/**
+	 * 토큰이 남아 있는 동안 큐에서 꺼내 보낸다. 남은 것이 있으면 토큰이 채워질 때 다시 부르도록 예약한다.
+	 * @return 하나라도 보냈는지
+	 */
+	private boolean drain() {
+		if (queue.isEmpty()) {
+			return false;
+		}
+		refill();
+		boolean wrote = false;
+		while (!queue.isEmpty() && (unpaced || tokens > 0)) {
+			PendingWrite write = queue.poll();
+			tokens -= write.size;
+			queuedBytes -= write.size;
+			ctx.write(write.msg, write.promise);
+			wrote = true;
+		}
+		if (!queue.isEmpty()) {
+			scheduleDrain();
+		}
+		return wrote;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		double rate = getRateBytesPerSecond();
+		double capacity = rate * burstMs / 1000;
+		// fast start 로 받은 토큰은 bucket 크기를 넘어도 쓸 때까지 남겨둔다
+		if (tokens < capacity) {
+			tokens = Math.min(capacity, tokens + rate * (now - lastRefillNanos) / TimeUnit.SECONDS.toNanos(1));
+		}
+		lastRefillNanos = now;
+	}
+
+	private void scheduleDrain() {
+		if (timerScheduled) {
+			return;
+		}
+		timerScheduled = true;
+		long delayNanos = Math.max(MIN_DELAY_NANOS,
+				(long) (-tokens / getRateBytesPerSecond() * TimeUnit.SECONDS.toNanos(1)));
+		ctx.channel().eventLoop().schedule(this::onTimer, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void onTimer() {
+		// 예약한 사이에 채널이 다른 이벤트 루프로 옮겨졌으면 그 루프에서 보낸다
+		if (!ctx.channel().eventLoop().inEventLoop()) {
+			ctx.channel().eventLoop().execute(this::onTimer);
+			return;
+		}
+		timerScheduled = false;
+		if (ctx.isRemoved() || !ctx.channel().isActive()) {
+			return;
+		}
+		if (drain()) {
+			ctx.flush();
+		}
+	}
+
+	private void failAll(Throwable cause) {
+		for (PendingWrite write; (write = queue.poll()) != null; ) {
+			ReferenceCountUtil.safeRelease(write.msg);
+			write.promise.tryFailure(cause);
+		}
+		queuedBytes = 0;
+	}
+
+	private static final class PendingWrite {
+		private final Object msg;
+		private final ChannelPromise promise;
+		private final int size;
+
+		private PendingWrite(Object msg, ChannelPromise promise, int size) {
+			this.msg = msg;
+			this.promise = promise;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package com.videotest.rtmp.util.pipeline;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.PendingWriteQueue;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * RtmpEncoder(true) 가 내보낸 EncodedMessage 를 우선순위에 따라 섞어 보낸다. 인코더와 소켓 사이에 둔다.
+ * <ul>
+ *     <li>control, command, data, 오디오, 텍스트: 높은 우선순위 큐 하나에 순서대로 두고 메시지 통째로 보낸다.</li>
+ *     <li>비디오(Aggregate 포함): csid 마다 낮은 우선순위 큐를 두고, 한 번에 한 청크씩 csid 를 돌아가며 보낸다.</li>
+ * </ul>
+ * 채널(ChannelOutboundBuffer)에는 budgetBytes 까지만 내려보내고 나머지는 큐에 둔다.
+ * 큰 키프레임이 앞서 있어도 나중에 온 오디오는 채널에 남은 budget 만큼만 기다리면 된다.
+ * 큐에 있는 바이트도 PendingWriteQueue 를 통해 채널의 pending 바이트에 잡히므로 writability 는 그대로 동작한다.
+ * RTMP 는 chunk stream 마다 순서만 지키면 되므로 csid 사이의 순서는 바꿔도 된다.
+ * SetChunkSize, Abort 는 이미 인코딩된 청크 크기를 바꾸면 안 되므로 앞서 큐에 있던 비디오를 모두 보낸 뒤에 보낸다.
+ * 인코더를 거치지 않은 ByteBuf 도 같은 식으로 앞서 큐에 있던 것 뒤에 보내므로, 빈 버퍼의 write 가 끝나면 그 앞의 write 도 모두 나간 것이다.
+ */
+public class EgressScheduler extends ChannelDuplexHandler {
+
+	private final int budgetBytes;
+
+	private ChannelHandlerContext ctx;
+	private PendingWriteQueue high;
+	// csid 별 비디오 큐, 쓰는 csid 는 모두 63 이하다
+	private final PendingWriteQueue[] low = new PendingWriteQueue[64];
+	private int lowCursor;
+
+	// 채널에 내려보낸 조각이 나가면 다시 drain 하도록 리스너를 걸어두었는지
+	private boolean drainListening;
+	private final ChannelFutureListener drainListener = future -> {
+		drainListening = false;
+		if (future.channel().isActive() && !ctx.isRemoved()) {
+			drain(ctx, true);
+		}
+	};
+
+	/**
+	 * @param budgetBytes 큐에서 채널로 내려보내 둘 최대 바이트, 한 번에 청크 하나는 넘을 수 있다
+	 */
+	public EgressScheduler(int budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) {
+		this.ctx = ctx;
+		high = new PendingWriteQueue(ctx);
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+		if (msg instanceof ByteBuf buf && !isEmpty()) {
+			// 인코더를 거치지 않은 버퍼(종료 시 drain 표시 등)는 앞서 큐에 들어온 것이 모두 나간 뒤에 나간다
+			moveLowToHigh();
+			high.add(EncodedMessage.whole((byte) 0, 0, null, buf), promise);
+			return;
+		}
+		if (!(msg instanceof EncodedMessage encoded)) {
+			ctx.write(msg, promise);
+			return;
+		}
+		if (encoded.isBarrier()) {
+			moveLowToHigh();
+		}
+		if (!encoded.isInterleaved()) {
+			high.add(msg, promise);
+			return;
+		}
+		int csid = encoded.getCsid();
+		if (low[csid] == null) {
+			low[csid] = new PendingWriteQueue(ctx);
+		}
+		low[csid].add(msg, promise);
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) {
+		drain(ctx, false);
+		ctx.flush();
+	}
+
+	@Override
+	public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+		failAll(new ClosedChannelException());
+		super.close(ctx, promise);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		failAll(new ClosedChannelException());
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) {
+		failAll(new ClosedChannelException());
+	}
+
+	/**
+	 * 큐에는 있지만 아직 채널로 내려보내지 않은 바이트
+	 */
+	public long getQueuedBytes() {
+		long bytes = high == null ? 0 : high.bytes();
+		for (PendingWriteQueue queue : low) {
+			if (queue != null) {
+				bytes += queue.bytes();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * budget 이 남는 동안 높은 우선순위 큐부터 내려보낸다.
+	 * 내려보낸 조각이 채널에 남아 있지 않으면 budget 과 상관없이 하나는 보내서 멈추지 않게 한다.
+	 */
+	private void drain(ChannelHandlerContext ctx, boolean flush) {
+		boolean wrote = false;
+		while (!isEmpty() && (!drainListening || bytesInChannel(ctx) < budgetBytes)) {
+			if (!high.isEmpty()) {
+				writeWhole(ctx, high);
+			} else {
+				writeNextChunk(ctx);
+			}
+			wrote = true;
+		}
+		if (wrote && flush) {
+			ctx.flush();
+		}
+	}
+
+	// 채널의 pending 바이트에서 큐에 있는 바이트를 빼면 내려보냈지만 아직 소켓으로 나가지 않은 바이트다
+	private long bytesInChannel(ChannelHandlerContext ctx) {
+		ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+		return buffer == null ? 0 : buffer.totalPendingWriteBytes() - getQueuedBytes();
+	}
+
+	private void writeWhole(ChannelHandlerContext ctx, PendingWriteQueue queue) {
+		EncodedMessage msg = (EncodedMessage) queue.current();
+		// 청크 단위로 보내던 중 barrier 때문에 옮겨온 비디오는 남은 청크를 한 번에 보낸다
+		while (!msg.isLastPiece()) {
+			msg.writeNext(ctx, ctx.voidPromise());
+		}
+		writeLast(ctx, queue, msg);
+	}
+
+	private void writeNextChunk(ChannelHandlerContext ctx) {
+		PendingWriteQueue queue = null;
+		for (int i = 0; i < low.length && queue == null; i++) {
+			int csid = (lowCursor + i) % low.length;
+			if (low[csid] != null && !low[csid].isEmpty()) {
+				queue = low[csid];
+				lowCursor = csid + 1;
+			}
+		}
+		EncodedMessage msg = (EncodedMessage) queue.current();
+		if (msg.isLastPiece()) {
+			writeLast(ctx, queue, msg);
+		} else {
+			msg.writeNext(ctx, listen(ctx.voidPromise()));
+		}
+	}
+
+	// 마지막 조각은 메시지의 promise 로 쓴다. remove 가 메시지를 release 하므로 쓰는 동안 잡아둔다.
+	private void writeLast(ChannelHandlerContext ctx, PendingWriteQueue queue, EncodedMessage msg) {
+		msg.retain();
+		try {
+			ChannelPromise promise = queue.remove();
+			msg.writeNext(ctx, listen(promise));
+		} finally {
+			msg.release();
+		}
+	}
+
+	private ChannelPromise listen(ChannelPromise promise) {
+		if (drainListening) {
+			return promise;
+		}
+		drainListening = true;
+		ChannelPromise listened = promise.unvoid();
+		listened.addListener(drainListener);
+		return listened;
+	}
+
+	private void moveLowToHigh() {
+		for (PendingWriteQueue queue : low) {
+			while (queue != null && !queue.isEmpty()) {
+				Object msg = ReferenceCountUtil.retain(queue.current());
+				ChannelPromise promise = queue.remove();
+				high.add(msg, promise);
+			}
+		}
+	}
+
+	private boolean isEmpty() {
+		if (!high.isEmpty()) {
+			return false;
+		}
+		for (PendingWriteQueue queue : low) {
+			if (queue != null && !queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void failAll(Throwable cause) {
+		if (high != null) {
+			high.removeAndFailAll(cause);
+		}
+		for (PendingWriteQueue queue : low) {
+			if (queue != null) {
+				queue.removeAndFailAll(cause);
+			}
+		}
+	}
+}
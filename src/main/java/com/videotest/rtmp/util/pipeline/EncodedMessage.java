@@ -0,0 +1,121 @@
+package com.videotest.rtmp.util.pipeline;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AbstractReferenceCounted;
+
+/**
+ * EgressScheduler 를 쓸 때 RtmpEncoder 가 메시지 하나를 인코딩한 결과
+ * interleaved 메시지의 body 는 ChunkWriter.chunkedBody 배치(첫 청크 payload, 이후 fmt3 헤더 + 청크 반복)라
+ * 청크 경계에서 나눠 보낼 수 있다. 나머지는 header 와 body 를 한 번에 보낸다.
+ * 나눠 보낸 조각은 body 의 retained slice 라 복사가 없다.
+ */
+final class EncodedMessage extends AbstractReferenceCounted {
+
+	private final byte typeId;
+	private final int csid;
+	private final boolean interleaved;
+	private final ByteBuf header;
+	private final ByteBuf body;
+	private final int chunkSize;
+	private final int continuationHeaderLength;
+
+	private boolean headerSent;
+	// body 에서 이미 보낸 바이트, 아직 보내지 않은 payload
+	private int bodyOffset;
+	private int payloadRemaining;
+
+	private EncodedMessage(byte typeId, int csid, boolean interleaved, ByteBuf header, ByteBuf body,
+						   int payloadLength, int chunkSize, int continuationHeaderLength) {
+		this.typeId = typeId;
+		this.csid = csid;
+		this.interleaved = interleaved;
+		this.header = header;
+		this.body = body;
+		this.payloadRemaining = payloadLength;
+		this.chunkSize = chunkSize;
+		this.continuationHeaderLength = continuationHeaderLength;
+		this.headerSent = header == null;
+	}
+
+	/**
+	 * 통째로 보내는 메시지, header 는 없으면 null
+	 */
+	static EncodedMessage whole(byte typeId, int csid, ByteBuf header, ByteBuf body) {
+		return new EncodedMessage(typeId, csid, false, header, body, 0, 0, 0);
+	}
+
+	/**
+	 * 청크 단위로 나눠 보낼 수 있는 메시지
+	 * @param continuationHeaderLength 두 번째 청크부터 붙는 fmt3 basic header (+ extended timestamp) 길이
+	 */
+	static EncodedMessage interleaved(byte typeId, int csid, ByteBuf header, ByteBuf body, int payloadLength,
+									  int chunkSize, int continuationHeaderLength) {
+		return new EncodedMessage(typeId, csid, true, header, body, payloadLength, chunkSize, continuationHeaderLength);
+	}
+
+	int getCsid() {
+		return csid;
+	}
+
+	boolean isInterleaved() {
+		return interleaved;
+	}
+
+	/**
+	 * SetChunkSize, Abort 는 앞서 인코딩된 메시지의 청크가 모두 나간 뒤에 나가야 한다.
+	 */
+	boolean isBarrier() {
+		return typeId == 0x01 || typeId == 0x02;
+	}
+
+	// 아직 보내지 않은 바이트
+	int readableBytes() {
+		return (headerSent ? 0 : header.readableBytes()) + body.readableBytes() - bodyOffset;
+	}
+
+	// 다음 writeNext 가 마지막 조각인지
+	boolean isLastPiece() {
+		return !interleaved || payloadRemaining <= chunkSize;
+	}
+
+	/**
+	 * 다음 조각을 write 한다. 첫 조각은 header 도 함께 쓰고, interleaved 가 아니면 남은 전부를 쓴다.
+	 * @param promise 조각의 마지막 write 에 쓸 promise
+	 * @return write 한 바이트 수
+	 */
+	int writeNext(ChannelHandlerContext ctx, ChannelPromise promise) {
+		int written = 0;
+		if (!headerSent) {
+			headerSent = true;
+			written += header.readableBytes();
+			ctx.write(header.retainedDuplicate(), ctx.voidPromise());
+		}
+		int length;
+		if (interleaved) {
+			int payload = Math.min(chunkSize, payloadRemaining);
+			length = payload + (bodyOffset == 0 ? 0 : continuationHeaderLength);
+			payloadRemaining -= payload;
+		} else {
+			length = body.readableBytes() - bodyOffset;
+		}
+		ctx.write(body.retainedSlice(body.readerIndex() + bodyOffset, length), promise);
+		bodyOffset += length;
+		return written + length;
+	}
+
+	@Override
+	protected void deallocate() {
+		if (header != null) {
+			header.release();
+		}
+		body.release();
+	}
+
+	@Override
+	public EncodedMessage touch(Object hint) {
+		body.touch(hint);
+		return this;
+	}
+}
@@ -1,65 +1,65 @@
 package com.videotest.rtmp.util.pipeline;
 
-import com.videotest.rtmp.chunk.HandshakeChunk;
+import com.videotest.rtmp.util.HandshakeDigest;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Slf4j
 public class HandShakeHandler extends ByteToMessageDecoder {
 
+	// handshake 가 끝나면 파이프라인 맨 앞에서부터 보내는 user event
+	public static final Object HANDSHAKE_COMPLETE = "HANDSHAKE_COMPLETE";
+
+	private static final int HANDSHAKE_SIZE = 1536;
+	// 한 방향으로 오가는 handshake 바이트, C0 + C1 + C2 (S0 + S1 + S2)
+	public static final int HANDSHAKE_BYTES = 1 + HANDSHAKE_SIZE * 2;
+	private static final byte RTMP_VERSION = 0x03;
+	// complex handshake 의 s1 version 필드 (FMS 3.5.1.1)
+	private static final int SERVER_VERSION = 0x03050101;
+
 	private boolean isReadingClient = false;
 	private boolean handshakeDone = false;
 
-	private HandshakeChunk handshakeChunk;
-
 	@Override
 	protected void decode(ChannelHandlerContext channelHandler, ByteBuf input, List<Object> output) {
 		if (handshakeDone) {
-			channelHandler.fireChannelRead(input);
 			return;
 		}
 
-		if (handshakeChunk == null) {
-			handshakeChunk = new HandshakeChunk();
-		}
-
-		// Handshake Sequence
+		// Handshake Sequence, c0 + c1 과 c2 가 다 도착할 때까지 읽지 않는다
 		if (!isReadingClient) {
+			if (input.readableBytes() < 1 + HANDSHAKE_SIZE) {
+				return;
+			}
 			this.readClientChunk(input);
-			this.writeSeverChunk(channelHandler);
+			this.writeSeverChunk(channelHandler, input);
+			input.skipBytes(HANDSHAKE_SIZE);
 			isReadingClient = true;
-		} else {
-			this.readChunk(input);
-			handshakeDone = true;
-			channelHandler.channel().pipeline().remove(this); // 핸드쉐이크 종료시 연결도 종료
-			log.info("handshake success from channel: " + channelHandler.channel().id());
 		}
+		if (input.readableBytes() < HANDSHAKE_SIZE) {
+			return;
+		}
+		this.readChunk(input);
+		handshakeDone = true;
+		channelHandler.channel().pipeline().fireUserEventTriggered(HANDSHAKE_COMPLETE);
+		// 남은 바이트는 다음 핸들러(RtmpDecoder)로 넘어간다
+		channelHandler.channel().pipeline().remove(this);
+		log.info("handshake success from channel: " + channelHandler.channel().id());
 	}
 
 	/**
-	 * Handshake Sequence, c0 과 c1을 처리한다.
+	 * Handshake Sequence, c0 를 처리한다. c1 은 s2 로 돌려줄 때까지 input 에 남겨둔다.
 	 * @param input 입력받은 데이터
 	 */
 	private void readClientChunk(ByteBuf input) {
-		if (this.handshakeChunk == null) {
-			log.error("handshakeChunk is null");
-			return;
-		}
-
-		try {
-			handshakeChunk.setClient(Unpooled.buffer(1537));
-			input.readBytes(handshakeChunk.getClient());
-
-			if (handshakeChunk.getClient().array()[0] != 0x03) {
-				throw new Exception();
-			}
-		} catch (Exception e) {
-			log.error("reading data is failed");
+		byte version = input.readByte();
+		if (version != RTMP_VERSION) {
+			log.error("reading data is failed, unexpected rtmp version: " + version);
 		}
 	}
 
@@ -68,46 +68,49 @@ public class HandShakeHandler extends ByteToMessageDecoder {
 	 * @param input 입력받은 데이터
 	 */
 	private void readChunk(ByteBuf input) {
-		if (handshakeChunk.getClient() != null) {
-			return;
-		}
-		handshakeChunk.setClient(Unpooled.buffer(1536));
-		input.readBytes(handshakeChunk.getClient());
+		// c2 는 s1 의 echo 라 검증하지 않고 넘긴다
+		input.skipBytes(HANDSHAKE_SIZE);
 	}
 
 	/**
-	 * Handshake Sequence, s0, s1, s2 의 입력을 처리한다.
+	 * Handshake Sequence, s0, s1, s2 를 채널의 버퍼 하나에 써서 보낸다.
+	 * c1 에 digest 가 있으면 같은 scheme 으로 서명한 s1, s2 를 보내고(complex handshake), 없으면 c1 을 그대로 s2 로 돌려준다.
 	 * @param channelHandler 핸들러
+	 * @param c1 readerIndex 가 c1 시작인 입력
 	 */
-	private void writeSeverChunk(ChannelHandlerContext channelHandler) {
-		if (handshakeChunk.getServer() == null) {
-			handshakeChunk.setServer(Unpooled.buffer(3073));
+	private void writeSeverChunk(ChannelHandlerContext channelHandler, ByteBuf c1) {
+		int scheme = HandshakeDigest.findClientScheme(c1, c1.readerIndex());
+		ByteBuf server = channelHandler.alloc().ioBuffer(1 + HANDSHAKE_SIZE * 2);
+		server.writeByte(RTMP_VERSION);
+		int s1Index = server.writerIndex();
+		server.writeInt((int) (System.nanoTime()/1000));
+		if (scheme < 0) {
+			server.writeInt(0);
+			writeRandomBytes(server, HANDSHAKE_SIZE - 8);
+			server.writeBytes(c1, c1.readerIndex(), HANDSHAKE_SIZE);
 		} else {
-			handshakeChunk.getServer().clear();
-		}
-
-		handshakeChunk.getServer().writeByte(0x03);
-		handshakeChunk.getServer().writeInt((int) (System.nanoTime()/1000));
-		handshakeChunk.getServer().writeInt(0);
-		handshakeChunk.getServer().writeBytes(generateRandomBytes(1528));
-
-		if (handshakeChunk.getClient() != null) {
-			handshakeChunk.getServer().writeBytes(handshakeChunk.getClient(), 1, 1536);
+			server.writeInt(SERVER_VERSION);
+			writeRandomBytes(server, HANDSHAKE_SIZE - 8);
+			HandshakeDigest.signServer(server, s1Index, scheme);
+			int s2Index = server.writerIndex();
+			writeRandomBytes(server, HANDSHAKE_SIZE);
+			HandshakeDigest.signResponse(server, s2Index, c1, c1.readerIndex(), scheme);
+			log.debug("digest handshake, scheme=" + scheme + ", channel: " + channelHandler.channel().id());
 		}
 
-		channelHandler.writeAndFlush(handshakeChunk.getServer());
+		channelHandler.writeAndFlush(server);
 	}
 
-	public static byte[] generateRandomBytes(int size) {
-		byte[] bytes = new byte[size];
-		for (int i = 0; i < size; i++) {
-			bytes[i] = (byte) (Byte.MIN_VALUE + (int)(Math.random()*(Byte.MAX_VALUE-Byte.MIN_VALUE+1)));
+	// 랜덤 바이트를 8 바이트씩 쓴다, 크기는 8 의 배수
+	private static void writeRandomBytes(ByteBuf out, int size) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < size; i += 8) {
+			out.writeLong(random.nextLong());
 		}
-		return bytes;
 	}
 
 	public static int getRandomPortWithin(int smallest, int biggest) {
-		return smallest + (int)(Math.random()*(biggest-smallest+1));
+		return ThreadLocalRandom.current().nextInt(smallest, biggest + 1);
 	}
 
 }
@@ -0,0 +1,182 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpUserControlMsg;
+import com.videotest.rtmp.server.ConnectionMetrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * handshake 가 끝나면 pingIntervalMs 마다 PingRequest 를 보내 RTT 를 재고, ack 진행과 합쳐 대역폭을 추정한다.
+ * RtmpDecoder 뒤에 두며 PingRequest/PingResponse 는 여기서 처리하고 다음 핸들러로 넘기지 않는다.
+ * 파이프라인에서는 RtmpEncoder 와 EgressPacer 사이에 둔다. ping 은 이 핸들러의 ctx 에서 써서 pacer 큐를 거치지 않으므로
+ * RTT 에 송출 속도 제한으로 기다린 시간이 들어가지 않는다. (EgressScheduler 는 채널에 내려보낸 budget 만큼만 기다린다)
+ * <ul>
+ *     <li>RTT: TCP 처럼 1/8 가중치 EWMA (srtt) 와 최소값</li>
+ *     <li>대역폭: 플레이어 ack 로 구한 전달 속도. 채널에 쌓인 바이트가 low watermark 아래이면(bytesBeforeUnwritable 이 넉넉하면)
+ *     링크가 아니라 보낼 것이 없어서 느린 것이므로 추정값을 낮추지 않는다.</li>
+ * </ul>
+ * 플레이어 채널은 다른 이벤트 루프로 옮겨질 수 있어 다음 ping 은 매번 채널의 현재 이벤트 루프에 예약하고,
+ * 옮겨진 뒤(channelRegistered) 이전 루프에 예약해 둔 ping 은 취소하고 새 루프에 다시 예약한다.
+ */
+public class PingHandler extends ChannelInboundHandlerAdapter {
+
+	private static final double RTT_WEIGHT = 0.125;
+
+	private final long pingIntervalMs;
+	private final long startNanos = System.nanoTime();
+
+	private ChannelHandlerContext ctx;
+	private ScheduledFuture<?> pingTimer;
+
+	// 응답을 기다리는 ping 의 timestamp, 없으면 -1
+	private long outstandingPing = -1;
+	private long pingSentNanos;
+
+	private volatile double smoothedRttMs;
+	private volatile long minRttMs = -1;
+	private volatile double bandwidthBytesPerSecond;
+
+	/**
+	 * @param pingIntervalMs 0 이하이면 먼저 ping 을 보내지 않는다 (상대의 ping 에는 답한다)
+	 */
+	public PingHandler(long pingIntervalMs) {
+		this.pingIntervalMs = pingIntervalMs;
+	}
+
+	/**
+	 * 채널의 PingHandler, 파이프라인에 없으면 null
+	 */
+	public static PingHandler of(Channel channel) {
+		return channel.pipeline().get(PingHandler.class);
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+		ScheduledFuture<?> timer = pingTimer;
+		if (timer != null && timer.cancel(false)) {
+			schedulePing(ctx.channel());
+		}
+		super.channelRegistered(ctx);
+	}
+
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt == HandShakeHandler.HANDSHAKE_COMPLETE) {
+			schedulePing(ctx.channel());
+		}
+		super.userEventTriggered(ctx, evt);
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (msg instanceof RtmpUserControlMsg userControl) {
+			if (userControl.getEventType() == RtmpUserControlMsg.PING_REQUEST) {
+				ctx.writeAndFlush(new RtmpUserControlMsg(RtmpUserControlMsg.PING_RESPONSE,
+						userControl.getEventData()), ctx.voidPromise());
+				return;
+			}
+			if (userControl.getEventType() == RtmpUserControlMsg.PING_RESPONSE) {
+				onPingResponse(ctx.channel(), userControl.getEventData());
+				return;
+			}
+		}
+		super.channelRead(ctx, msg);
+	}
+
+	private void schedulePing(Channel channel) {
+		if (pingIntervalMs <= 0 || !channel.isActive()) {
+			return;
+		}
+		pingTimer = channel.eventLoop().schedule(() -> onPingTimer(channel), pingIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void onPingTimer(Channel channel) {
+		// 예약한 사이에 채널이 다른 이벤트 루프로 옮겨졌으면 그 루프에서 보낸다
+		if (!channel.eventLoop().inEventLoop()) {
+			channel.eventLoop().execute(() -> onPingTimer(channel));
+			return;
+		}
+		sendPing();
+		schedulePing(channel);
+	}
+
+	/**
+	 * PingRequest 를 보낸다. 앞의 ping 에 아직 답이 없으면 그 ping 은 버리고 새로 잰다.
+	 */
+	void sendPing() {
+		long now = System.nanoTime();
+		outstandingPing = TimeUnit.NANOSECONDS.toMillis(now - startNanos) & 0xffffffffL;
+		pingSentNanos = now;
+		ctx.writeAndFlush(new RtmpUserControlMsg(RtmpUserControlMsg.PING_REQUEST, (int) outstandingPing),
+				ctx.voidPromise());
+	}
+
+	private void onPingResponse(Channel channel, int timestamp) {
+		if (outstandingPing == -1 || (timestamp & 0xffffffffL) != outstandingPing) {
+			return;
+		}
+		outstandingPing = -1;
+		long rttNanos = System.nanoTime() - pingSentNanos;
+		ConnectionMetrics.onRtt(rttNanos);
+
+		long rttMs = TimeUnit.NANOSECONDS.toMillis(rttNanos);
+		double srtt = smoothedRttMs;
+		smoothedRttMs = minRttMs == -1 ? rttMs : srtt + (rttMs - srtt) * RTT_WEIGHT;
+		if (minRttMs == -1 || rttMs < minRttMs) {
+			minRttMs = rttMs;
+		}
+		updateBandwidth(channel);
+	}
+
+	private void updateBandwidth(Channel channel) {
+		AcknowledgementHandler acknowledgement = AcknowledgementHandler.of(channel);
+		if (acknowledgement == null) {
+			return;
+		}
+		double delivered = acknowledgement.getAckedBytesPerSecond();
+		ChannelConfig config = channel.config();
+		boolean appLimited = channel.bytesBeforeUnwritable()
+				> config.getWriteBufferHighWaterMark() - config.getWriteBufferLowWaterMark();
+		if (delivered > 0 && (!appLimited || delivered > bandwidthBytesPerSecond)) {
+			bandwidthBytesPerSecond = delivered;
+		}
+	}
+
+	/**
+	 * 평활한 RTT, 아직 잰 적이 없으면 0
+	 */
+	public double getRttMs() {
+		return smoothedRttMs;
+	}
+
+	/**
+	 * 지금까지 잰 가장 작은 RTT, 아직 잰 적이 없으면 -1
+	 */
+	public long getMinRttMs() {
+		return minRttMs;
+	}
+
+	/**
+	 * 상대까지의 대역폭 추정값, ack 를 두 번 받기 전에는 0
+	 */
+	public double getBandwidthBytesPerSecond() {
+		return bandwidthBytesPerSecond;
+	}
+
+	/**
+	 * 추정 대역폭과 최소 RTT 로 구한 bandwidth-delay product, 링크에 머물 수 있는 바이트 수
+	 */
+	public long getBandwidthDelayProduct() {
+		return minRttMs <= 0 ? 0 : (long) (bandwidthBytesPerSecond * minRttMs / 1000);
+	}
+}
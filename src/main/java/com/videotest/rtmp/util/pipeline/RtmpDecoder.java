@@ -3,78 +3,305 @@ package com.videotest.rtmp.util.pipeline;
 import com.videotest.rtmp.chunk.message.*;
 import com.videotest.rtmp.chunk.header.MessageHeader;
 import com.videotest.rtmp.chunk.type.AMF0;
-import com.videotest.rtmp.server.MessageHandler;
 import com.videotest.rtmp.util.DecodeState;
 import com.videotest.rtmp.chunk.ChunkFormat;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * RTMP 청크 디코더
+ * 각 단계에서 필요한 바이트 수를 먼저 확인하고, 모자라면 읽지 않고 다음 read 를 기다린다. (replay 없음)
+ * payload 는 청크 단위로 끊어 읽지 않고 들어온 만큼 retained slice 로 이어붙인다.
+ * Aggregate 메시지는 sub-message 마다 payload 의 slice 로 나눠서 내보낸다.
+ */
 @Slf4j
-public class RtmpDecoder extends ReplayingDecoder<DecodeState> {
+public class RtmpDecoder extends ByteToMessageDecoder {
 
+	private static final int EXTENDED_TIMESTAMP = 0xffffff;
+	// fmt 별 message header 길이
+	private static final int[] MESSAGE_HEADER_LENGTH = {11, 7, 3, 0};
+
+	private DecodeState state = DecodeState.BASIC_HEADER;
 	private int chunkSize = 128;
 	private byte curFmt = -1; // format
 	private int curStreamId = -1; // stream id
-	
+
+	// 현재 청크 정보
+	private RtmpData curData;
+	private long curTimestampField; // message header 의 timestamp 필드, fmt3 은 -1
+	private boolean curNewMessage; // 새 메시지의 첫 청크인지
+	private int chunkRemaining; // 현재 청크에서 남은 payload 바이트
+
 	// todo : redis 로 대체 가능 여부 확인
 	private final Map<Integer, RtmpData> streamIdMap = new HashMap<>();
-	// todo : bean 등록 필요
-	private final MessageHandler messageHandler = new MessageHandler();
 
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-		DecodeState state = super.state();
-		if (state == null) {
-			state = DecodeState.READY_TO_DECODE_HEADER;
+		for (;;) {
+			switch (state) {
+				case BASIC_HEADER:
+					if (!readBasicHeader(in)) {
+						return;
+					}
+					state = DecodeState.MESSAGE_HEADER;
+					break;
+				case MESSAGE_HEADER:
+					if (!readMessageHeader(in)) {
+						return;
+					}
+					if (curData.isExtendedTimestamp()) {
+						state = DecodeState.EXTENDED_TIMESTAMP;
+					} else {
+						onHeaderComplete(curTimestampField);
+					}
+					break;
+				case EXTENDED_TIMESTAMP:
+					if (in.readableBytes() < 4) {
+						return;
+					}
+					long extendedTimestamp = in.readUnsignedInt();
+					onHeaderComplete(curTimestampField == -1 ? -1 : extendedTimestamp);
+					break;
+				case PAYLOAD:
+					if (!readPayload(ctx, in, out)) {
+						return;
+					}
+					state = DecodeState.BASIC_HEADER;
+					break;
+				default:
+					throw new IllegalStateException("unknown decode state: " + state);
+			}
+		}
+	}
+
+	/** RtmpData Basic Header */
+	private boolean readBasicHeader(ByteBuf in) {
+		if (!in.isReadable()) {
+			return false;
+		}
+		int firstByte = in.getUnsignedByte(in.readerIndex());
+		int csid = firstByte & 0x3f;
+		int headerLength = csid == 0 ? 2 : (csid == 1 ? 3 : 1);
+		if (in.readableBytes() < headerLength) {
+			return false;
+		}
+
+		in.skipBytes(1);
+		if (csid == 0) {
+			// Basic Header: 2-byte form
+			csid = 64 + in.readUnsignedByte();
+		} else if (csid == 1) {
+			// Basic Header: 3-byte form
+			csid = 64 + in.readUnsignedByte();
+			csid += in.readUnsignedByte() * 256;
+		}
+
+		curFmt = (byte) (firstByte >> 6);
+		curStreamId = csid;
+		return true;
+	}
+
+	/**
+	 * header의 메시지를 읽는다.
+	 * @param in 전달받은 데이터
+	 * @return 헤더를 다 읽었으면 true
+	 * @throws Exception 잘못된 fmt 인 경우
+	 */
+	private boolean readMessageHeader(ByteBuf in) throws Exception {
+		if (in.readableBytes() < MESSAGE_HEADER_LENGTH[curFmt]) {
+			return false;
+		}
+
+		byte fmt = curFmt;
+		int csid = curStreamId;
+		RtmpData rtmpData = streamIdMap.get(csid); // todo : Redis로 대체
+		if (rtmpData == null) {
+			rtmpData = new RtmpData();
+			rtmpData.setCurStreamId(csid);
+			streamIdMap.put(csid, rtmpData);
 		}
-		
-		if (DecodeState.READY_TO_DECODE_HEADER.equals(state)) {
-			this.readHeader(in);
-			this.readHeaderMsg(in);
-			super.checkpoint(DecodeState.READY_TO_DECODE_PAYLOAD);
-		} else if (DecodeState.READY_TO_DECODE_PAYLOAD.equals(state)) {
-			RtmpData rtmpData = streamIdMap.get(curStreamId);
-			if (rtmpData == null || rtmpData.getMessageHeader() == null) {
-				throw new RuntimeException("inner error: rtmpData or rtmpData message header should not be null");
+		MessageHeader msgHeader = rtmpData.getMessageHeader();
+		if (msgHeader == null) {
+			if (fmt == 2 || fmt == 3) {
+				throw new Exception("fresh rtmpData expect fmt=0, actual=" + fmt + ", csid=" + csid);
 			}
-			int payloadLength = rtmpData.getMessageHeader().getPayloadlength();
-			if (0 >= payloadLength) {
-				log.info("ignore a message with no payload");
-				super.checkpoint(DecodeState.READY_TO_DECODE_HEADER);
-				rtmpData.setPayload(null);
-				return;
+			if (fmt == 1) {
+				log.info("fresh rtmpData starts with fmt=1");
 			}
-			ByteBuf payload = rtmpData.getPayload();
-			if (payload == null) {
-				payload = Unpooled.buffer(payloadLength, payloadLength);
-				rtmpData.setPayload(payload);
+			msgHeader = new MessageHeader();
+			rtmpData.setMessageHeader(msgHeader);
+		}
+		rtmpData.setFormat(fmt);
+
+		ChunkFormat msgFormat = ChunkFormat.selectFormatType(fmt);
+		switch (msgFormat) {
+			case FORMAT0 :
+				curTimestampField = in.readUnsignedMedium();
+				msgHeader.setPayloadlength(in.readUnsignedMedium());
+				msgHeader.setTypeId(in.readByte());
+				msgHeader.setMsgStreamId(in.readIntLE());
+				break;
+			case FORMAT1 :
+				curTimestampField = in.readUnsignedMedium();
+				msgHeader.setPayloadlength(in.readUnsignedMedium());
+				msgHeader.setTypeId(in.readByte());
+				break;
+			case FORMAT2 :
+				curTimestampField = in.readUnsignedMedium();
+				break;
+			case FORMAT3 :
+				curTimestampField = -1;
+				break;
+			default:
+				throw new Exception("read rtmp header: invalid fmt=" + fmt);
+		}
+
+		if (fmt != 3) {
+			rtmpData.setExtendedTimestamp(curTimestampField == EXTENDED_TIMESTAMP);
+			if (rtmpData.getPayload() != null) {
+				log.warn("discard incomplete message, csid=" + csid);
+				releasePayload(rtmpData);
 			}
+		}
+		curNewMessage = rtmpData.getPayload() == null;
+		curData = rtmpData;
+		return true;
+	}
 
-			int toReadSize = Math.min(payload.writableBytes(), chunkSize);
-			final byte[] bytes = new byte[toReadSize];
-			in.readBytes(bytes);
-			payload.writeBytes(bytes);
-			super.checkpoint(DecodeState.READY_TO_DECODE_HEADER);
+	/**
+	 * 헤더를 다 읽은 뒤 timestamp 를 반영하고 payload 를 받을 준비를 한다.
+	 * @param timestamp fmt0 은 절대값, fmt1/2 는 delta, fmt3 은 -1 (직전 delta 재사용)
+	 */
+	private void onHeaderComplete(long timestamp) {
+		RtmpData rtmpData = curData;
+		MessageHeader msgHeader = rtmpData.getMessageHeader();
+		if (curNewMessage) {
+			if (curFmt == 0) {
+				// fmt0 뒤에 새 메시지가 fmt3 로 오면 fmt0 의 timestamp 를 delta 로 더한다 (스펙, ffmpeg, librtmp 와 같다)
+				msgHeader.setTimeStamp(timestamp);
+				msgHeader.setTimeStampDelta((int) timestamp);
+			} else {
+				if (timestamp != -1) {
+					msgHeader.setTimeStampDelta((int) timestamp);
+				}
+				msgHeader.setTimeStamp(msgHeader.getTimeStamp() + msgHeader.getTimeStampDelta());
+			}
+			rtmpData.setMsgCount(rtmpData.getMsgCount() + 1);
+		}
 
-			if (payload.isWritable()) {
-				log.debug("payload not complete yet");
-				return;
+		int payloadLength = msgHeader.getPayloadlength();
+		if (0 >= payloadLength) {
+			log.info("ignore a message with no payload");
+			state = DecodeState.BASIC_HEADER;
+			return;
+		}
+		int received = rtmpData.getPayload() == null ? 0 : rtmpData.getPayload().readableBytes();
+		chunkRemaining = Math.min(chunkSize, payloadLength - received);
+		state = DecodeState.PAYLOAD;
+	}
+
+	/**
+	 * 현재 청크의 payload 를 읽을 수 있는 만큼 읽는다.
+	 * @return 청크를 다 읽었으면 true
+	 */
+	private boolean readPayload(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		int toReadSize = Math.min(chunkRemaining, in.readableBytes());
+		if (toReadSize == 0) {
+			return false;
+		}
+
+		RtmpData rtmpData = curData;
+		int payloadLength = rtmpData.getMessageHeader().getPayloadlength();
+		CompositeByteBuf payload = rtmpData.getPayload();
+		if (payload == null) {
+			payload = ctx.alloc().compositeBuffer(payloadLength / chunkSize + 16);
+			rtmpData.setPayload(payload);
+		}
+
+		// 청크를 복사하지 않고 retained slice 로 이어붙인다
+		payload.addComponent(true, in.readRetainedSlice(toReadSize));
+		chunkRemaining -= toReadSize;
+		if (chunkRemaining > 0) {
+			return false;
+		}
+
+		if (payload.readableBytes() < payloadLength) {
+			log.debug("payload not complete yet");
+			return true;
+		}
+
+		rtmpData.setPayload(null);
+		RtmpBaseMsg rtmpBaseMsg;
+		try {
+			if (rtmpData.getMessageHeader().getTypeId() == RtmpAggregateMsg.TYPE_ID) {
+				splitAggregate(ctx, rtmpData.getMessageHeader(), payload, out);
+				return true;
 			}
+			rtmpBaseMsg = this.onRecvCompleteMessage(ctx, rtmpData.getMessageHeader(), payload);
+		} finally {
+			payload.release();
+		}
+		if (rtmpBaseMsg == null) {
+			log.warn("ignore an uninterested message");
+			return true;
+		}
+		out.add(rtmpBaseMsg);
+		return true;
+	}
 
-			rtmpData.setPayload(null);
-			RtmpBaseMsg rtmpBaseMsg = this.onRecvCompleteMessage(ctx, rtmpData.getMessageHeader(), payload);
-			if (rtmpBaseMsg == null) {
-				log.warn("ignore an uninterested message");
+	/**
+	 * Aggregate 를 sub-message 로 나눈다. payload 는 복사하지 않고 retained slice 를 넘긴다.
+	 * 미디어 메시지는 release 될 때 캐시된 청크 본문도 함께 놓아야 하므로, slice 를 컴포넌트 하나짜리 composite 로 감싸
+	 * sub-message 마다 참조 카운트를 따로 둔다. (slice 는 Aggregate payload 와 참조 카운트를 공유한다)
+	 * sub-message timestamp 는 첫 sub-message 기준 차이만큼 Aggregate 의 timestamp 에 더한다.
+	 */
+	private void splitAggregate(ChannelHandlerContext ctx, MessageHeader header, ByteBuf payload, List<Object> out) throws Exception {
+		long firstTimestamp = -1;
+		long previousTimestamp = header.getTimeStamp();
+		while (payload.readableBytes() >= RtmpAggregateMsg.SUB_HEADER_LENGTH) {
+			byte typeId = payload.readByte();
+			int size = payload.readUnsignedMedium();
+			long timestamp = payload.readUnsignedMedium() | ((long) payload.readUnsignedByte() << 24);
+			payload.skipBytes(3); // stream id
+			if (payload.readableBytes() < size + 4) {
+				log.warn("discard truncated aggregate sub-message, type=" + typeId + ", size=" + size);
 				return;
 			}
-			out.add(rtmpBaseMsg);
+			// 오디오, 비디오, AMF0 데이터만 묶일 수 있다
+			if (typeId != 0x08 && typeId != 0x09 && typeId != 0x12) {
+				log.warn("ignore aggregate sub-message, type=" + typeId);
+				payload.skipBytes(size + 4);
+				continue;
+			}
+			ByteBuf data = ctx.alloc().compositeBuffer(1).addComponent(true, payload.readRetainedSlice(size));
+			payload.skipBytes(4); // back pointer
+			if (firstTimestamp == -1) {
+				firstTimestamp = timestamp;
+			}
+
+			MessageHeader subHeader = new MessageHeader();
+			subHeader.setTypeId(typeId);
+			subHeader.setMsgStreamId(header.getMsgStreamId());
+			subHeader.setPayloadlength(size);
+			subHeader.setTimeStamp(header.getTimeStamp() + timestamp - firstTimestamp);
+			subHeader.setTimeStampDelta((int) (subHeader.getTimeStamp() - previousTimestamp));
+			previousTimestamp = subHeader.getTimeStamp();
+			RtmpBaseMsg rtmpBaseMsg;
+			try {
+				rtmpBaseMsg = onRecvCompleteMessage(ctx, subHeader, data);
+			} finally {
+				data.release();
+			}
+			if (rtmpBaseMsg != null) {
+				out.add(rtmpBaseMsg);
+			}
 		}
 	}
 
@@ -96,7 +323,12 @@ public class RtmpDecoder extends ReplayingDecoder<DecodeState> {
 				rtmpBaseMsg = new RtmpChunkMsg(chunkSize);
 				break;
 			case AbortMsg:
-				rtmpBaseMsg = new RtmpAbortMsg(payload.readInt());
+				int abortCsid = payload.readInt();
+				RtmpData aborted = streamIdMap.get(abortCsid);
+				if (aborted != null) {
+					releasePayload(aborted);
+				}
+				rtmpBaseMsg = new RtmpAbortMsg(abortCsid);
 				break;
 			case UserControlMsg:
 				short eventType = payload.readShort();
@@ -113,25 +345,16 @@ public class RtmpDecoder extends ReplayingDecoder<DecodeState> {
 				rtmpBaseMsg = new RtmpPeerBandWidthMsg(payload.readInt(), payload.readByte());
 				break;
 			case AudioMsg:
-				int audioControl = payload.readUnsignedByte();
-				if (audioControl == 175) {
-					log.info("ingnore auido meesage : {}", audioControl);
-					break;
-				}
-				byte[] audioBytes = new byte[payload.readableBytes()];
-				payload.readBytes(audioBytes);
-				rtmpBaseMsg = new RtmpAudioMsg(header.getTimeStamp(), header.getTimeStampDelta(), audioControl, audioBytes);
+				rtmpBaseMsg = new RtmpAudioMsg(header.getTimeStamp(), header.getTimeStampDelta(), payload.retain());
 				// todo : 오디오 데이터를 받을 경우
 				break;
 			case VideoMsg:
-				int control = payload.readUnsignedByte();
+				int control = payload.getUnsignedByte(payload.readerIndex());
 				if (control != 23 && control != 39) {
 					log.info("ingnore video meesage : {}", control);
 					break;
 				}
-				byte[] videoBytes = new byte[payload.readableBytes()];
-				payload.readBytes(videoBytes);
-				rtmpBaseMsg = new RtmpAudioMsg(header.getTimeStamp(), header.getTimeStampDelta(), control, videoBytes);
+				rtmpBaseMsg = new RtmpVideoMsg(header.getTimeStamp(), header.getTimeStampDelta(), payload.retain());
 				// todo : 비디오 데이터를 받을 경우
 				break;
 			case TextMsg:
@@ -163,157 +386,19 @@ public class RtmpDecoder extends ReplayingDecoder<DecodeState> {
 		return rtmpBaseMsg;
 	}
 
-	/** RtmpData Basic Header */
-	private void readChunkBasicHeader(ByteBuf in) {
-		byte firstByte = in.readByte();
-		byte fmt = (byte) ((firstByte & 0xff) >> 6);
-		int csid = firstByte & 0x3f;
-		if (csid == 0) {
-			// Basic Header: 2-byte form
-			csid = 64 + in.readByte() & 0xff;
-		} else if (csid == 1) {
-			// Basic Header: 3-byte form
-			csid = 64;
-			csid += in.readByte() & 0xff;
-			csid += (in.readByte() & 0xff) * 256;
-		}
-
-		curFmt = fmt;
-		curStreamId = csid;
-	}
-
-	/**
-	 * header의 데이터를 읽는다.
-	 * @param in 전달받은 데이터
-	 */
-	private void readHeader(ByteBuf in) {
-		byte headerByte = in.readByte();
-		byte fmt = (byte) ((headerByte & 0xff) >> 6);
-		int csid = headerByte & 0x3f;
-		if (csid == 0) {
-			csid = 64 + headerByte & 0xff;
-		} else {
-			csid = 64;
-			csid += headerByte & 0xff;
-			csid += (headerByte & 0xff) * 256;
+	private static void releasePayload(RtmpData rtmpData) {
+		if (rtmpData.getPayload() != null) {
+			rtmpData.getPayload().release();
+			rtmpData.setPayload(null);
 		}
-		curFmt = fmt;
-		curStreamId = csid;
 	}
 
-	/**
-	 * header의 메시지를 읽는다.
-	 * @param in
-	 * @throws Exception
-	 */
-	private void readHeaderMsg(ByteBuf in) throws Exception {
-		byte fmt = curFmt;
-		int csid = curStreamId;
-
-		RtmpData rtmpData = streamIdMap.get(csid); // todo : Redis로 대체
-		boolean isFirstMsg;
-		if (rtmpData == null) {
-			rtmpData = new RtmpData();
-			streamIdMap.put(csid, rtmpData);
-			isFirstMsg = true;
-		} else {
-			isFirstMsg = false;
-		}
-		rtmpData.setFormat(fmt);
-		rtmpData.setCurStreamId(csid);
-
-		int timestampDelta;
-		int payloadLength;
-		byte msgTypeId;
-		MessageHeader msgHeader;
-		ChunkFormat msgFormat = ChunkFormat.selectFormatType(fmt);
-		switch (msgFormat) {
-			case FORMAT0 :
-				if (!isFirstMsg) {
-					throw new Exception("for existed rtmpData, fmt should not be 0");
-				}
-				timestampDelta = in.readMedium();
-				payloadLength = in.readMedium();
-				msgTypeId = (byte) (in.readByte() & 0xff);
-				int msgStreamId = in.readIntLE();
-				msgHeader = rtmpData.getMessageHeader();
-				if (msgHeader == null) {
-					msgHeader = new MessageHeader();
-				}
-				msgHeader.setPayloadlength(payloadLength);
-				msgHeader.setMsgStreamId(msgTypeId);
-				msgHeader.setMsgStreamId(msgStreamId);
-				msgHeader.setTimeStampDelta(timestampDelta);
-				if (timestampDelta >= 0xffffff) {
-					msgHeader.setTimeStamp(in.readInt());
-				} else {
-					msgHeader.setTimeStamp(timestampDelta);
-				}
-
-				rtmpData.setMessageHeader(msgHeader);
-				rtmpData.setPayload(Unpooled.buffer(payloadLength, payloadLength));
-				break;
-			case FORMAT1 :
-				if (rtmpData.getMsgCount() == 0) {
-					log.info("fresh rtmpData starts with fmt=1");
-				}
-				timestampDelta = in.readMedium();
-				payloadLength = in.readMedium();
-				msgTypeId = (byte) (in.readByte() & 0xff);
-				msgHeader = rtmpData.getMessageHeader();
-				if (msgHeader == null) {
-					msgHeader = new MessageHeader();
-				}
-				if (isFirstMsg) {
-					msgHeader.setPayloadlength(payloadLength);
-				} else if (msgHeader.getPayloadlength() != payloadLength) {
-					throw new Exception("msg in rtmpData cache, size="+ msgHeader.getPayloadlength() + " cannot change to " + payloadLength);
-				}
-				msgHeader.setTypeId(msgTypeId);
-				msgHeader.setMsgStreamId(msgHeader.getMsgStreamId());
-				msgHeader.setTimeStampDelta(timestampDelta);
-				if (timestampDelta >= 0xffffff) {
-					int extendedTimestamp = in.readInt();
-					if (isFirstMsg) {
-						msgHeader.setTimeStamp(extendedTimestamp);
-					} else {
-						msgHeader.setTimeStamp(msgHeader.getTimeStamp() + extendedTimestamp);
-					}
-				} else {
-					msgHeader.setTimeStamp(msgHeader.getTimeStamp() + timestampDelta);
-				}
-
-				rtmpData.setMessageHeader(msgHeader);
-				if (isFirstMsg) {
-					rtmpData.setPayload(Unpooled.buffer(payloadLength, payloadLength));
-				}
-				break;
-			case FORMAT2 :
-				if (rtmpData.getMsgCount() == 0) {
-					throw new Exception("fresh rtmpData expect fmt=0, actual=" + fmt + ", csid=" + csid);
-				}
-				timestampDelta = in.readMedium();
-				msgHeader = rtmpData.getMessageHeader();
-				if (msgHeader == null) {
-					msgHeader = new MessageHeader();
-				}
-				msgHeader.setTimeStampDelta(timestampDelta);
-				if (timestampDelta >= 0xffffff) {
-					msgHeader.setTimeStamp(msgHeader.getTimeStamp() + in.readInt());
-				} else {
-					msgHeader.setTimeStamp(msgHeader.getTimeStamp() + timestampDelta);
-				}
-				rtmpData.setMessageHeader(msgHeader);
-				break;
-			case FORMAT3 :
-				if (rtmpData.getMsgCount() == 0) {
-					throw new Exception("fresh rtmpData expect fmt=0, actual="+fmt+", csid="+csid);
-				}
-				break;
-			default:
-				throw new Exception("read rtmp header: invalid fmt=" + fmt);
+	@Override
+	protected void handlerRemoved0(ChannelHandlerContext ctx) {
+		// 조립중이던 payload 를 해제한다
+		for (RtmpData rtmpData : streamIdMap.values()) {
+			releasePayload(rtmpData);
 		}
-
-		rtmpData.setMsgCount(rtmpData.getMsgCount() + 1);
+		streamIdMap.clear();
 	}
 }
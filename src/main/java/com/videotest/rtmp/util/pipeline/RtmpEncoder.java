@@ -2,264 +2,218 @@ package com.videotest.rtmp.util.pipeline;
 
 import com.videotest.rtmp.chunk.message.*;
 import com.videotest.rtmp.chunk.type.AMF0;
+import com.videotest.rtmp.util.ChunkHeaderState;
+import com.videotest.rtmp.util.ChunkWriter;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
-public class RtmpEncoder extends MessageToByteEncoder<RtmpBaseMsg> {
+import java.util.List;
+
+/**
+ * 미디어 메시지는 헤더만 채널마다 만들고, 청크로 나눈 본문은 메시지에 캐시된 것을 retainedDuplicate() 로 공유한다.
+ * 첫 청크의 헤더는 chunk stream 마다 직전 헤더와 비교해 가장 짧은 fmt 로 쓴다. (ChunkHeaderState)
+ * EgressScheduler 와 함께 쓸 때는 ByteBuf 대신 메시지마다 EncodedMessage 하나를 내보낸다.
+ */
+public class RtmpEncoder extends MessageToMessageEncoder<RtmpBaseMsg> {
+
+	private static final int CONTROL_CSID = 2;
+	private static final int COMMAND_CSID = 3;
+	private static final int DATA_CSID = 5;
+	private static final int AUDIO_CSID = 10;
+	private static final int VIDEO_CSID = 12;
+	private static final int TEXT_CSID = 14;
+
+	// fmt0 message header 11 바이트 + extended timestamp 4 바이트
+	private static final int MAX_MESSAGE_HEADER_LENGTH = 15;
 
 	// The output chunk size, default to min, set by peer
 	private int outChunkSize = 128;
 
-	private boolean firstVideo = true;
-	private boolean firstAudio = true;
-	private boolean firstText = true;
-	private long firstVideoTimestamp = System.nanoTime();
-	private long firstAudioTimestamp = System.nanoTime();
-	private long firstTextTimestamp = System.nanoTime();
+	// csid 별 마지막으로 보낸 헤더, 쓰는 csid 는 모두 63 이하다
+	private final ChunkHeaderState[] headerStates = new ChunkHeaderState[64];
+
+	// EgressScheduler 앞에 두었는지
+	private final boolean scheduled;
+
+	public RtmpEncoder() {
+		this(false);
+	}
+
+	/**
+	 * @param scheduled true 이면 EgressScheduler 가 청크 단위로 섞어 보낼 수 있도록 EncodedMessage 를 내보낸다
+	 */
+	public RtmpEncoder(boolean scheduled) {
+		this.scheduled = scheduled;
+	}
 
 	// todo : instaceof 말고 다른 방법 찾아보기
 	@Override
-	protected void encode(ChannelHandlerContext ctx, RtmpBaseMsg msg, ByteBuf out) throws Exception {
+	protected void encode(ChannelHandlerContext ctx, RtmpBaseMsg msg, List<Object> out) throws Exception {
+		if (msg instanceof RtmpMediaMsg) {
+			encodeMedia(ctx, (RtmpMediaMsg) msg, out);
+			return;
+		}
+		if (msg instanceof RtmpAMF0EncodedMsg) {
+			encodeEncodedAmf(ctx, (RtmpAMF0EncodedMsg) msg, out);
+			return;
+		}
+
+		ByteBuf buf = ctx.alloc().ioBuffer();
+		try {
+			encodeMessage(msg, buf);
+		} catch (Exception e) {
+			buf.release();
+			throw e;
+		}
+		out.add(scheduled ? EncodedMessage.whole(msg.getMessageTypeId(), csidOf(msg), null, buf) : buf);
+	}
+
+	private static int csidOf(RtmpBaseMsg msg) {
+		if (msg instanceof RtmpAMF0CmdMsg) {
+			return COMMAND_CSID;
+		}
+		if (msg instanceof RtmpAMF0DataMsg) {
+			return DATA_CSID;
+		}
+		if (msg instanceof RtmpTextMsg) {
+			return TEXT_CSID;
+		}
+		return CONTROL_CSID;
+	}
+
+	private void encodeMessage(RtmpBaseMsg msg, ByteBuf buf) throws Exception {
 		if (msg instanceof RtmpChunkMsg) {
 			RtmpChunkMsg rtmpChunkMsg = (RtmpChunkMsg) msg;
-			out.writeByte(2); // fmt + csid
-
-			// timeStamp, message length, type Id 등 헤더의 값
-			out.writeMedium(0)
-				.writeMedium(4)
-				.writeByte(rtmpChunkMsg.getMessageTypeId())
-				.writeInt(0)
-				.writeInt(rtmpChunkMsg.getChunkSize());
+			writeControlHeader(buf, msg, 4);
+			buf.writeInt(rtmpChunkMsg.getChunkSize());
 
-			// body
+			// 이후 메시지부터 새 청크 크기로 나눈다
 			outChunkSize = rtmpChunkMsg.getChunkSize();
+		} else if (msg instanceof RtmpAckMsg) {
+			RtmpAckMsg rtmpAckMsg = (RtmpAckMsg) msg;
+			writeControlHeader(buf, msg, 4);
+			buf.writeInt(rtmpAckMsg.getSequnceNumber());
 		} else if (msg instanceof RtmpWinAckMsg) {
 			RtmpWinAckMsg rtmpWinAckMsg = (RtmpWinAckMsg) msg;
-			out.writeByte(2); // fmt + csid
-
-			// timeStamp, message length, type Id 등 헤더의 값
-			out.writeMedium(0)
-				.writeMedium(4)
-				.writeByte(rtmpWinAckMsg.getMessageTypeId())
-				.writeInt(0);
-
-			// body
-			out.writeInt(rtmpWinAckMsg.getAcknowledgementSize());
+			writeControlHeader(buf, msg, 4);
+			buf.writeInt(rtmpWinAckMsg.getAcknowledgementSize());
 		} else if (msg instanceof RtmpPeerBandWidthMsg) {
 			RtmpPeerBandWidthMsg peerBandWidthMsg = (RtmpPeerBandWidthMsg) msg;
-
-			out.writeByte(2); // fmt + csid
-
-			// timeStamp, message length, type Id 등 헤더의 값
-			out.writeMedium(0)
-					.writeMedium(5)
-					.writeByte(peerBandWidthMsg.getMessageTypeId())
-					.writeInt(0);
-
-			// body
-			out.writeInt(peerBandWidthMsg.getAckSize())
-				.writeInt(peerBandWidthMsg.getLimitType());
+			writeControlHeader(buf, msg, 5);
+			buf.writeInt(peerBandWidthMsg.getAckSize())
+				.writeByte(peerBandWidthMsg.getLimitType());
 		} else if (msg instanceof RtmpUserControlMsg) {
 			RtmpUserControlMsg rtmpUserControlMsg = (RtmpUserControlMsg) msg;
-
-			out.writeByte(2); // fmt + csid
-
-			// timeStamp, message length, type Id 등 헤더의 값
-			out.writeMedium(0)
-					.writeMedium(6)
-					.writeByte(rtmpUserControlMsg.getMessageTypeId())
-					.writeInt(rtmpUserControlMsg.getMsgStreamID());
-
-			// body
-			out.writeInt(rtmpUserControlMsg.getEventType())
+			writeControlHeader(buf, msg, 6);
+			buf.writeShort(rtmpUserControlMsg.getEventType())
 				.writeInt(rtmpUserControlMsg.getEventData());
 		} else if (msg instanceof RtmpAMF0CmdMsg) {
 			RtmpAMF0CmdMsg rtmpAMF0CmdMsg = (RtmpAMF0CmdMsg) msg;
-
-			out.writeByte(2); // fmt + csid
-			ByteBuf amfEncode = AMF0.encodeAll(rtmpAMF0CmdMsg.getObjectList());
-			if (amfEncode != null) {
-				out.writeInt(rtmpAMF0CmdMsg.getCurStreamId());
-				out.writeMedium(0)
-					.writeMedium(amfEncode.writerIndex())
-					.writeByte(rtmpAMF0CmdMsg.getMessageTypeId())
-					.writeInt(0);
-				out.writeBytes(amfEncode);
-			}
+			writeAmf(buf, msg, rtmpAMF0CmdMsg.getObjectList(), COMMAND_CSID);
 		} else if (msg instanceof RtmpAMF0DataMsg) {
 			RtmpAMF0DataMsg rtmpAMF0DataMsg = (RtmpAMF0DataMsg) msg;
-
-			ByteBuf amfEncode = AMF0.encodeAll(rtmpAMF0DataMsg.getDataList());
-			if (amfEncode != null) {
-				out.writeInt(rtmpAMF0DataMsg.getCurStreamId());
-				out.writeMedium(0)
-						.writeMedium(amfEncode.writerIndex())
-						.writeByte(rtmpAMF0DataMsg.getMessageTypeId())
-						.writeInt(0);
-				out.writeBytes(amfEncode);
-			}
-		} else if (msg instanceof RtmpVideoMsg) {
-			RtmpVideoMsg rtmpVideoMsg = (RtmpVideoMsg) msg;
-
-			if (firstVideo) {
-				firstVideoTimestamp = System.nanoTime();
-				encodeWithFmt0And3(msg, out);
-				firstVideo = false;
-			} else {
-				encodeWithFmt1And3(msg, out);
-			}
-		} else if (msg instanceof RtmpAudioMsg) {
-			RtmpAudioMsg rtmpAudioMsg = (RtmpAudioMsg) msg;
-
-			if (firstAudio) {
-				firstAudioTimestamp = System.nanoTime();
-				encodeWithFmt0And3(msg, out);
-				firstAudio = false;
-			} else {
-				encodeWithFmt1And3(msg, out);
-			}
+			writeAmf(buf, msg, rtmpAMF0DataMsg.getDataList(), DATA_CSID);
 		} else if (msg instanceof RtmpTextMsg) {
 			RtmpTextMsg rtmpTextMsg = (RtmpTextMsg) msg;
-
-			if (firstText) {
-				firstTextTimestamp = System.nanoTime();
-				encodeWithFmt0And3(msg, out);
-				firstText = false;
-			} else {
-				encodeWithFmt1And3(msg, out);
-			}
+			ByteBuf payload = Unpooled.wrappedBuffer(rtmpTextMsg.getTextBytes());
+			long extendedTimestamp = headerState(TEXT_CSID).writeHeader(buf, rtmpTextMsg.getTimeStamp(),
+					payload.readableBytes(), msg.getMessageTypeId(), 0);
+			ChunkWriter.writeChunkedBody(buf, payload, outChunkSize, TEXT_CSID, extendedTimestamp);
 		}
 	}
 
-	private static byte[] encodeBasicHeader(final int fmt, final int csid) {
-		if (csid <= 63) {
-			return new byte[] { (byte) ((fmt << 6) + csid) };
-		} else if (csid <= 320) {
-			return new byte[] { (byte) (fmt << 6), (byte) (csid - 64) };
-		} else {
-			return new byte[] { (byte) ((fmt << 6) | 1), (byte) ((csid - 64) & 0xff), (byte) ((csid - 64) >> 8) };
+	private ChunkHeaderState headerState(int csid) {
+		ChunkHeaderState state = headerStates[csid];
+		if (state == null) {
+			state = new ChunkHeaderState(csid);
+			headerStates[csid] = state;
 		}
+		return state;
 	}
 
-	private void encodeWithFmt0And3(final RtmpBaseMsg msg, final ByteBuf out) {
-		int outCsid;
-		int payloadLength;
-		ByteBuf payload;
-		long firstMediaTimestamp;
-
-		if (msg instanceof RtmpAudioMsg) {
-			outCsid = 10;
-			payloadLength = 1 + ((RtmpAudioMsg) msg).getAudioBytes().length; // control + audio data
-			payload = Unpooled.buffer(payloadLength, payloadLength); // message payload
-			payload.writeByte(((RtmpAudioMsg) msg).getControl());
-			payload.writeBytes(((RtmpAudioMsg) msg).getAudioBytes());
-			firstMediaTimestamp = firstAudioTimestamp;
-		} else if (msg instanceof RtmpVideoMsg) {
-			outCsid = 12;
-			payloadLength = 1 + ((RtmpVideoMsg) msg).getVideoBytes().length; // control + video data
-			payload = Unpooled.buffer(payloadLength, payloadLength); // message payload
-			payload.writeByte(((RtmpVideoMsg) msg).getControl());
-			payload.writeBytes(((RtmpVideoMsg) msg).getVideoBytes());
-			firstMediaTimestamp = firstVideoTimestamp;
-		} else if (msg instanceof RtmpTextMsg) {
-			outCsid = 14;
-			payloadLength = ((RtmpTextMsg) msg).getTextBytes().length;
-			payload = Unpooled.buffer(payloadLength, payloadLength);
-			payload.writeBytes(((RtmpTextMsg) msg).getTextBytes());
-			firstMediaTimestamp = firstTextTimestamp;
-		} else {
-			return; // do nothing
-		}
+	// protocol control / user control 메시지는 csid 2, message stream 0 에 한 청크로 보낸다
+	private void writeControlHeader(ByteBuf buf, RtmpBaseMsg msg, int payloadLength) {
+		headerState(CONTROL_CSID).writeHeader(buf, 0, payloadLength, msg.getMessageTypeId(), 0);
+	}
 
-		ByteBuf tmpOut = Unpooled.buffer();
-		byte[] basicHeader = encodeBasicHeader(0, outCsid);
-		tmpOut.writeBytes(basicHeader); // basic header
-		boolean needExtendedTimestamp = false;
-		long timestamp = System.nanoTime() - firstMediaTimestamp;
-		if (timestamp >= 0xffffff) { // timestamp
-			needExtendedTimestamp = true;
-			tmpOut.writeMedium(0xffffff);
-		} else {
-			tmpOut.writeMedium((int) timestamp);
-		}
-		tmpOut.writeMedium(payloadLength); // message length
-		tmpOut.writeByte(msg.getMessageTypeId()); // message type id
-		tmpOut.writeIntLE(0); // stream id default to 0
-		if (needExtendedTimestamp) { // extended timestamp if necessary
-			tmpOut.writeInt((int) timestamp);
+	/**
+	 * 헤더 자리를 최대 길이만큼 비워두고 AMF 를 바로 인코딩한 뒤, 길이가 정해지면 payload 바로 앞에 헤더를 채운다.
+	 * 한 청크를 넘는 경우에만 payload 를 떼어내 fmt3 헤더를 끼워 다시 쓴다.
+	 */
+	private void writeAmf(ByteBuf buf, RtmpBaseMsg msg, List<Object> objects, int csid) throws Exception {
+		if (objects == null) {
+			return;
 		}
-
-		if (payloadLength <= outChunkSize) {
-			tmpOut.writeBytes(payload);
-			out.writeBytes(tmpOut);
+		int payloadIndex = buf.writerIndex() + ChunkWriter.basicHeaderLength(csid) + MAX_MESSAGE_HEADER_LENGTH;
+		buf.writerIndex(payloadIndex);
+		AMF0.encodeAll(buf, objects);
+		int end = buf.writerIndex();
+		int length = end - payloadIndex;
+
+		ChunkHeaderState state = headerState(csid);
+		int headerIndex = payloadIndex - state.headerLength(0, length, msg.getMessageTypeId(), 0);
+		buf.writerIndex(headerIndex);
+		state.writeHeader(buf, 0, length, msg.getMessageTypeId(), 0);
+		buf.readerIndex(headerIndex).writerIndex(end);
+		if (length <= outChunkSize) {
 			return;
 		}
 
-		tmpOut.writeBytes(payload, outChunkSize);
-		while (payload.isReadable()) {
-			int remainSize = payload.readableBytes();
-			int chunkSize = Math.min(outChunkSize, remainSize);
-			byte[] fm3BasicHeader = encodeBasicHeader(3, outCsid);
-			tmpOut.writeBytes(fm3BasicHeader);
-			tmpOut.writeBytes(payload, chunkSize);
+		ByteBuf payload = buf.alloc().ioBuffer(length).writeBytes(buf, payloadIndex, length);
+		try {
+			buf.writerIndex(payloadIndex);
+			ChunkWriter.writeChunkedBody(buf, payload, outChunkSize, csid, -1);
+		} finally {
+			payload.release();
 		}
-		out.writeBytes(tmpOut);
 	}
 
-	private void encodeWithFmt1And3(final RtmpBaseMsg msg, final ByteBuf out) {
-		int outCsid;
-		int payloadLength;
-		ByteBuf payload;
-		int timestampDelta;
-
-		if (msg instanceof RtmpAudioMsg) {
-			outCsid = 10;
-			payloadLength = 1 + ((RtmpAudioMsg) msg).getAudioBytes().length; // control + audio data
-			payload = Unpooled.buffer(payloadLength, payloadLength); // message payload
-			payload.writeByte(((RtmpAudioMsg) msg).getControl());
-			payload.writeBytes(((RtmpAudioMsg) msg).getAudioBytes());
-			timestampDelta = ((RtmpAudioMsg) msg).getTimeStampDelta();
-		} else if (msg instanceof RtmpVideoMsg) {
-			outCsid = 12;
-			payloadLength = 1 + ((RtmpVideoMsg) msg).getVideoBytes().length; // control + video data
-			payload = Unpooled.buffer(payloadLength, payloadLength); // message payload
-			payload.writeByte(((RtmpVideoMsg) msg).getControl());
-			payload.writeBytes(((RtmpVideoMsg) msg).getVideoBytes());
-			timestampDelta = ((RtmpVideoMsg) msg).getTimeStampDelta();
-		} else if (msg instanceof RtmpTextMsg) {
-			outCsid = 14;
-			payloadLength = ((RtmpTextMsg) msg).getTextBytes().length;
-			payload = Unpooled.buffer(payloadLength, payloadLength);
-			payload.writeBytes(((RtmpTextMsg) msg).getTextBytes());
-			timestampDelta = ((RtmpTextMsg) msg).getTimeStampDelta();
-		} else {
-			return;
-		}
-
-		ByteBuf tmpOut = Unpooled.buffer();
-		byte[] basicHeader = encodeBasicHeader(1, outCsid);
-		tmpOut.writeBytes(basicHeader); // basic header
-		tmpOut.writeMedium(timestampDelta); // timestamp delta
-		tmpOut.writeMedium(payloadLength); // message length
-		tmpOut.writeByte(msg.getMessageTypeId()); // message type id
-
-		if (payloadLength <= outChunkSize) {
-			tmpOut.writeBytes(payload);
-			out.writeBytes(tmpOut);
+	/**
+	 * 미리 인코딩된 AMF 는 한 청크에 들어가면 헤더 뒤에 payload 를 그대로 붙인다.
+	 * 메시지는 encode 후 release 되므로 payload 는 retain 해서 넘긴다.
+	 */
+	private void encodeEncodedAmf(ChannelHandlerContext ctx, RtmpAMF0EncodedMsg msg, List<Object> out) {
+		int csid = msg.isCommand() ? COMMAND_CSID : DATA_CSID;
+		ByteBuf payload = msg.getPayload();
+		int length = payload.readableBytes();
+		ByteBuf header = ctx.alloc().ioBuffer(length <= outChunkSize ? 16 : 16 + length + length / outChunkSize * 3);
+		headerState(csid).writeHeader(header, 0, length, msg.getMessageTypeId(), 0);
+		if (length <= outChunkSize) {
+			if (scheduled) {
+				out.add(EncodedMessage.whole(msg.getMessageTypeId(), csid, header, payload.retainedDuplicate()));
+				return;
+			}
+			out.add(header);
+			out.add(payload.retainedDuplicate());
 			return;
 		}
+		ChunkWriter.writeChunkedBody(header, payload, outChunkSize, csid, -1);
+		out.add(scheduled ? EncodedMessage.whole(msg.getMessageTypeId(), csid, null, header) : header);
+	}
 
-		tmpOut.writeBytes(payload, outChunkSize);
-		while (payload.isReadable()) {
-			int remainSize = payload.readableBytes();
-			int chunkSize = Math.min(outChunkSize, remainSize);
-			byte[] fm3BasicHeader = encodeBasicHeader(3, outCsid);
-			tmpOut.writeBytes(fm3BasicHeader);
-			tmpOut.writeBytes(payload, chunkSize);
+	/**
+	 * 헤더는 채널의 chunk stream 상태로 새로 쓰고, 나머지 청크는 공유 본문을 쓴다.
+	 * 본문의 fmt3 청크는 첫 헤더의 fmt 와 무관하고 extended timestamp 만 같으면 되므로 공유 키는 그대로다.
+	 * Aggregate 는 대부분 비디오라 비디오 csid 로 보낸다.
+	 * 스케줄러로 보낼 때 오디오는 통째로, 비디오와 Aggregate 는 청크 단위로 나눠 보낼 수 있게 한다.
+	 */
+	private void encodeMedia(ChannelHandlerContext ctx, RtmpMediaMsg msg, List<Object> out) {
+		int outCsid = msg instanceof RtmpAudioMsg ? AUDIO_CSID : VIDEO_CSID;
+		ByteBuf header = ctx.alloc().ioBuffer(16);
+		long extendedTimestamp = headerState(outCsid).writeHeader(header, msg.getTimeStamp(),
+				msg.getPayloadLength(), msg.getMessageTypeId(), 0);
+		ByteBuf body = msg.chunkedBody(ctx.alloc(), outChunkSize, outCsid, extendedTimestamp).retainedDuplicate();
+		if (!scheduled) {
+			out.add(header);
+			out.add(body);
+		} else if (outCsid == AUDIO_CSID) {
+			out.add(EncodedMessage.whole(msg.getMessageTypeId(), outCsid, header, body));
+		} else {
+			int continuationHeaderLength = ChunkWriter.basicHeaderLength(outCsid) + (extendedTimestamp >= 0 ? 4 : 0);
+			out.add(EncodedMessage.interleaved(msg.getMessageTypeId(), outCsid, header, body, msg.getPayloadLength(),
+					outChunkSize, continuationHeaderLength));
 		}
-		out.writeBytes(tmpOut);
 	}
 }
-
@@ -0,0 +1,64 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.*;
+import com.videotest.rtmp.server.ConnectionMetrics;
+import com.videotest.rtmp.server.EventLoopAffinity;
+import com.videotest.rtmp.server.MessageHandler;
+import com.videotest.rtmp.server.RtmpProperties;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 디코딩된 메시지를 MessageHandler 로 넘긴다.
+ * 메시지는 처리 후 자동으로 release 되므로 보관이 필요하면 받는 쪽에서 retain 해야 한다.
+ */
+@Slf4j
+public class RtmpMessageDispatcher extends SimpleChannelInboundHandler<RtmpBaseMsg> {
+
+	// todo : bean 등록 필요
+	private final MessageHandler messageHandler;
+
+	public RtmpMessageDispatcher(RtmpProperties properties, EventLoopAffinity affinity) {
+		this.messageHandler = new MessageHandler(properties, affinity);
+	}
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, RtmpBaseMsg msg) {
+		if (msg instanceof RtmpVideoMsg videoMsg) {
+			messageHandler.handleVideo(videoMsg);
+		} else if (msg instanceof RtmpAudioMsg audioMsg) {
+			messageHandler.handleAudio(audioMsg);
+		} else if (msg instanceof RtmpTextMsg textMsg) {
+			messageHandler.handleText(textMsg);
+		} else if (msg instanceof RtmpAMF0CmdMsg cmdMsg) {
+			messageHandler.handleAMF0Command(ctx, cmdMsg);
+		} else if (msg instanceof RtmpAMF0DataMsg dataMsg) {
+			messageHandler.handleAMF0Data(ctx, dataMsg);
+		} else if (msg instanceof RtmpAckMsg ackMsg) {
+			messageHandler.handleAck(ctx, ackMsg);
+		} else if (msg instanceof RtmpWinAckMsg winAckMsg) {
+			messageHandler.handleWindowAckSize(ctx, winAckMsg);
+		}
+	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		messageHandler.handleReadComplete();
+		super.channelReadComplete(ctx);
+	}
+
+	// AdmissionControlHandler 가 handshake 뒤에 둔 IdleStateHandler 의 이벤트
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt instanceof IdleStateEvent idle) {
+			ConnectionMetrics.onTimeout("idle");
+			log.info("idle timeout(" + idle.state() + "), close channel: " + ctx.channel().id());
+			ctx.close();
+			return;
+		}
+		super.userEventTriggered(ctx, evt);
+	}
+
+}
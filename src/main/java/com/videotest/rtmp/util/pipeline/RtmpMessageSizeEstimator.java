@@ -0,0 +1,36 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
+import io.netty.channel.DefaultMessageSizeEstimator;
+import io.netty.channel.MessageSizeEstimator;
+
+/**
+ * 인코딩 전 미디어 메시지도 payload 크기만큼 pending 바이트로 잡히도록 한다.
+ * 기본 estimator 는 ByteBuf 가 아닌 메시지를 8바이트로 보기 때문에,
+ * 다른 스레드에서 쌓인 write 가 writability 에 반영되지 않는다.
+ * EgressScheduler 의 큐에 있는 EncodedMessage 도 아직 보내지 않은 바이트만큼 잡는다.
+ */
+public final class RtmpMessageSizeEstimator implements MessageSizeEstimator {
+
+	public static final RtmpMessageSizeEstimator INSTANCE = new RtmpMessageSizeEstimator();
+
+	private static final Handle DEFAULT_HANDLE = DefaultMessageSizeEstimator.DEFAULT.newHandle();
+
+	private static final Handle HANDLE = msg -> {
+		if (msg instanceof RtmpMediaMsg) {
+			return ((RtmpMediaMsg) msg).getPayloadLength();
+		}
+		if (msg instanceof EncodedMessage) {
+			return ((EncodedMessage) msg).readableBytes();
+		}
+		return DEFAULT_HANDLE.size(msg);
+	};
+
+	private RtmpMessageSizeEstimator() {
+	}
+
+	@Override
+	public Handle newHandle() {
+		return HANDLE;
+	}
+}
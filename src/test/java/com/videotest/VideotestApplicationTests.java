@@ -3,7 +3,8 @@ package com.videotest;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+// RTMP 서버는 임의 포트로 띄워서 다른 프로세스의 1935 와 겹치지 않게 한다
+@SpringBootTest(properties = "rtmp.port=0")
 class VideotestApplicationTests {
 
 	@Test
@@ -0,0 +1,253 @@
+package com.videotest.rtmp;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.videotest.rtmp.chunk.message.RtmpAMF0CmdMsg;
+import com.videotest.rtmp.chunk.message.RtmpAMF0DataMsg;
+import com.videotest.rtmp.chunk.message.RtmpAggregateMsg;
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.server.EventLoopAffinity;
+import com.videotest.rtmp.server.RtmpProperties;
+import com.videotest.rtmp.server.stream.StreamId;
+import com.videotest.rtmp.server.stream.StreamManager;
+import com.videotest.rtmp.util.pipeline.HandShakeHandler;
+import com.videotest.rtmp.util.pipeline.RtmpDecoder;
+import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import com.videotest.rtmp.util.pipeline.RtmpMessageDispatcher;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ResourceLeakDetector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * publish / play 경로를 paranoid leak detector 로 돌려서 release 되지 않은 버퍼가 없는지 확인한다.
+ * 서버 파이프라인은 EmbeddedChannel 로, 클라이언트는 같은 RtmpEncoder/RtmpDecoder 로 흉내낸다.
+ */
+class RtmpLeakDetectionTest {
+
+	private static final String STREAM_NAME = "leak-test";
+
+	private ResourceLeakDetector.Level previousLevel;
+	private ListAppender<ILoggingEvent> leakReports;
+	private Logger leakLogger;
+
+	private final RtmpProperties properties = new RtmpProperties();
+	private final DefaultEventLoopGroup workerGroup = new DefaultEventLoopGroup(1);
+	private final EventLoopAffinity affinity = new EventLoopAffinity(workerGroup, properties);
+
+	@BeforeEach
+	void setUp() {
+		previousLevel = ResourceLeakDetector.getLevel();
+		ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+		leakLogger = (Logger) LoggerFactory.getLogger(ResourceLeakDetector.class);
+		leakReports = new ListAppender<>();
+		leakReports.start();
+		leakLogger.addAppender(leakReports);
+	}
+
+	@AfterEach
+	void tearDown() {
+		leakLogger.detachAppender(leakReports);
+		ResourceLeakDetector.setLevel(previousLevel);
+		workerGroup.shutdownGracefully();
+	}
+
+	@Test
+	void publishAndPlayReleaseAllBuffers() throws Exception {
+		EmbeddedChannel publisher = newServerChannel();
+		EmbeddedChannel publisherClient = newClientChannel();
+		EmbeddedChannel player = newServerChannel();
+		EmbeddedChannel playerClient = newClientChannel();
+
+		handshake(publisher);
+		send(publisherClient, publisher, new RtmpChunkMsg(4096));
+		send(publisherClient, publisher, command("connect", 1, connectObject()));
+		send(publisherClient, publisher, command("createStream", 2));
+		send(publisherClient, publisher, command("publish", 3, STREAM_NAME, "kyu"));
+		LinkedHashMap<String, Object> metaData = new LinkedHashMap<>();
+		metaData.put("width", 1280.0);
+		metaData.put("height", 720.0);
+		send(publisherClient, publisher, new RtmpAMF0DataMsg(0, Arrays.asList("@setDataFrame", "onMetaData", metaData)));
+		sendGop(publisherClient, publisher, 0);
+
+		// GOP 캐시를 받으며 입장한 뒤 브로드캐스트도 받는다
+		handshake(player);
+		send(playerClient, player, command("connect", 1, connectObject()));
+		send(playerClient, player, command("createStream", 2));
+		send(playerClient, player, command("play", 3, STREAM_NAME));
+		sendGop(publisherClient, publisher, 1);
+
+		List<RtmpBaseMsg> received = receive(player, playerClient);
+		assertThat(received).anyMatch(msg -> msg instanceof RtmpVideoMsg);
+		received.forEach(ReferenceCountUtil::release);
+		receive(publisher, publisherClient).forEach(ReferenceCountUtil::release);
+
+		player.finishAndReleaseAll();
+		publisher.finishAndReleaseAll();
+		playerClient.finishAndReleaseAll();
+		publisherClient.finishAndReleaseAll();
+		StreamManager.deleteStream(new StreamId("kyu", STREAM_NAME));
+
+		assertThat(collectLeaks()).isEmpty();
+	}
+
+	/**
+	 * Aggregate 로 받은 sub-message 는 각자 캐시된 청크 본문을 가지므로, 플레이어에게 보낸 뒤에도 모두 놓아야 한다.
+	 */
+	@Test
+	void aggregateIngestAndFanOutReleaseAllBuffers() throws Exception {
+		EmbeddedChannel publisher = newServerChannel();
+		EmbeddedChannel publisherClient = newClientChannel();
+		EmbeddedChannel player = newServerChannel();
+		EmbeddedChannel playerClient = newClientChannel();
+
+		handshake(publisher);
+		send(publisherClient, publisher, new RtmpChunkMsg(4096));
+		send(publisherClient, publisher, command("connect", 1, connectObject()));
+		send(publisherClient, publisher, command("createStream", 2));
+		send(publisherClient, publisher, command("publish", 3, STREAM_NAME, "kyu"));
+		sendAggregateGop(publisherClient, publisher, 0);
+
+		handshake(player);
+		send(playerClient, player, command("connect", 1, connectObject()));
+		send(playerClient, player, command("createStream", 2));
+		send(playerClient, player, command("play", 3, STREAM_NAME));
+		sendAggregateGop(publisherClient, publisher, 1);
+
+		List<RtmpBaseMsg> received = receive(player, playerClient);
+		assertThat(received).filteredOn(msg -> msg instanceof RtmpVideoMsg).hasSizeGreaterThan(30);
+		received.forEach(ReferenceCountUtil::release);
+		receive(publisher, publisherClient).forEach(ReferenceCountUtil::release);
+
+		player.finishAndReleaseAll();
+		publisher.finishAndReleaseAll();
+		playerClient.finishAndReleaseAll();
+		publisherClient.finishAndReleaseAll();
+		StreamManager.deleteStream(new StreamId("kyu", STREAM_NAME));
+
+		assertThat(collectLeaks()).isEmpty();
+	}
+
+	private EmbeddedChannel newServerChannel() {
+		return new EmbeddedChannel(new HandShakeHandler(), new RtmpDecoder(), new RtmpEncoder(),
+				new RtmpMessageDispatcher(properties, affinity));
+	}
+
+	private static EmbeddedChannel newClientChannel() {
+		return new EmbeddedChannel(new RtmpDecoder(), new RtmpEncoder());
+	}
+
+	private static void handshake(EmbeddedChannel server) {
+		ByteBuf c0c1 = ByteBufAllocator.DEFAULT.buffer(1537);
+		c0c1.writeByte(0x03).writeZero(1536);
+		server.writeInbound(c0c1);
+		ByteBuf s0s1s2 = server.readOutbound();
+		assertThat(s0s1s2.readableBytes()).isEqualTo(3073);
+		// c2 는 s1 의 echo
+		server.writeInbound(s0s1s2.retainedSlice(1, 1536));
+		s0s1s2.release();
+	}
+
+	// 클라이언트 인코더로 만든 바이트를 서버에 넣는다
+	private static void send(EmbeddedChannel client, EmbeddedChannel server, RtmpBaseMsg msg) {
+		client.writeOutbound(msg);
+		for (Object encoded; (encoded = client.readOutbound()) != null; ) {
+			server.writeInbound(encoded);
+		}
+	}
+
+	// 서버가 보낸 바이트를 클라이언트 디코더로 읽는다
+	private static List<RtmpBaseMsg> receive(EmbeddedChannel server, EmbeddedChannel client) {
+		for (Object encoded; (encoded = server.readOutbound()) != null; ) {
+			client.writeInbound(encoded);
+		}
+		List<RtmpBaseMsg> messages = new ArrayList<>();
+		for (Object msg; (msg = client.readInbound()) != null; ) {
+			messages.add((RtmpBaseMsg) msg);
+		}
+		return messages;
+	}
+
+	private static void sendGop(EmbeddedChannel client, EmbeddedChannel server, int gop) {
+		long base = gop * 1000L;
+		if (gop == 0) {
+			send(client, server, new RtmpVideoMsg(0, 0, videoPayload(0x17, 0x00, 64))); // AVC sequence header
+		}
+		for (int i = 0; i < 30; i++) {
+			boolean keyFrame = i == 0;
+			// 키프레임은 여러 청크로 나뉘도록 크게 만든다
+			send(client, server, new RtmpVideoMsg(base + i * 33L, 33,
+					videoPayload(keyFrame ? 0x17 : 0x27, 0x01, keyFrame ? 20_000 : 2_000)));
+		}
+	}
+
+	// GOP 를 Aggregate 여러 개로 묶어 보낸다
+	private static void sendAggregateGop(EmbeddedChannel client, EmbeddedChannel server, int gop) {
+		long base = gop * 1000L;
+		List<RtmpMediaMsg> frames = new ArrayList<>();
+		if (gop == 0) {
+			frames.add(new RtmpVideoMsg(0, 0, videoPayload(0x17, 0x00, 64)));
+		}
+		for (int i = 0; i < 30; i++) {
+			boolean keyFrame = i == 0;
+			frames.add(new RtmpVideoMsg(base + i * 33L, 33,
+					videoPayload(keyFrame ? 0x17 : 0x27, 0x01, keyFrame ? 20_000 : 2_000)));
+		}
+		for (RtmpBaseMsg msg : RtmpAggregateMsg.pack(ByteBufAllocator.DEFAULT, frames, 16 * 1024)) {
+			send(client, server, msg);
+		}
+	}
+
+	private static ByteBuf videoPayload(int control, int packetType, int size) {
+		return ByteBufAllocator.DEFAULT.buffer(size).writeByte(control).writeByte(packetType).writeZero(size - 2);
+	}
+
+	private static RtmpAMF0CmdMsg command(String name, int transactionId, Object... args) {
+		List<Object> objects = new ArrayList<>();
+		objects.add(name);
+		objects.add((double) transactionId);
+		objects.add(null);
+		objects.addAll(Arrays.asList(args));
+		return new RtmpAMF0CmdMsg(0, objects);
+	}
+
+	private static LinkedHashMap<String, Object> connectObject() {
+		LinkedHashMap<String, Object> connect = new LinkedHashMap<>();
+		connect.put("app", "kyu");
+		connect.put("tcUrl", "rtmp://localhost/kyu");
+		return connect;
+	}
+
+	/**
+	 * leak 은 버퍼가 GC 된 뒤 다음 할당 때 보고되므로, GC 와 할당을 몇 번 반복한다.
+	 */
+	private List<String> collectLeaks() throws InterruptedException {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(50);
+			ByteBufAllocator.DEFAULT.buffer(1).release();
+		}
+		return leakReports.list.stream()
+				.map(ILoggingEvent::getFormattedMessage)
+				.filter(message -> message.contains("LEAK"))
+				.collect(Collectors.toList());
+	}
+}
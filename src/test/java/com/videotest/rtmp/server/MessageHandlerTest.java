@@ -0,0 +1,42 @@
+package com.videotest.rtmp.server;
+
+import com.videotest.rtmp.chunk.message.RtmpAMF0CmdMsg;
+import com.videotest.rtmp.util.pipeline.RtmpDecoder;
+import com.videotest.rtmp.util.pipeline.RtmpEncoder;
+import com.videotest.rtmp.util.pipeline.RtmpMessageDispatcher;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 명령 응답을 인코딩한 바이트를 다시 디코딩해 클라이언트가 받는 그대로 확인한다.
+ */
+class MessageHandlerTest {
+
+	private final EmbeddedChannel server = new EmbeddedChannel(new RtmpEncoder(),
+			new RtmpMessageDispatcher(new RtmpProperties(), null));
+	private final EmbeddedChannel client = new EmbeddedChannel(new RtmpDecoder());
+
+	@AfterEach
+	void tearDown() {
+		server.finishAndReleaseAll();
+		client.finishAndReleaseAll();
+	}
+
+	@Test
+	void createStreamResultCarriesStreamId() {
+		server.writeInbound(new RtmpAMF0CmdMsg(0, Arrays.asList("createStream", 4.0, null)));
+
+		for (ByteBuf encoded; (encoded = server.readOutbound()) != null; ) {
+			client.writeInbound(encoded);
+		}
+		RtmpAMF0CmdMsg result = client.readInbound();
+		// _result, transaction id, command object, stream id
+		assertThat(result.getObjectList()).containsExactly("_result", 4.0, null, 1.0);
+	}
+}
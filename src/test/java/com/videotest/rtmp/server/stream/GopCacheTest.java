@@ -0,0 +1,45 @@
+package com.videotest.rtmp.server.stream;
+
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 큰 버퍼의 작은 slice 는 복사해서 보관하고, 바이트 한도는 붙잡고 있는 버퍼 크기로 세는지 확인한다.
+ */
+class GopCacheTest {
+
+    private final GopCache cache = new GopCache(1024 * 1024, 10_000, GopEvictionPolicy.KEEP_KEY_FRAME);
+
+    @Test
+    void copiesSmallSliceOfLargeBuffer() {
+        ByteBuf readBuffer = Unpooled.buffer(64 * 1024).writeByte(0xaf).writeZero(64 * 1024 - 1);
+        RtmpAudioMsg audio = new RtmpAudioMsg(0, 23, readBuffer.retainedSlice(0, 100));
+        readBuffer.release();
+
+        cache.add(audio);
+        audio.release();
+
+        assertThat(readBuffer.refCnt()).isZero();
+        assertThat(cache.getBytes()).isEqualTo(100);
+        assertThat(cache.iterator().next().getPayloadLength()).isEqualTo(100);
+        cache.clear();
+    }
+
+    @Test
+    void keepsPayloadThatFillsItsBuffer() {
+        RtmpVideoMsg video = new RtmpVideoMsg(0, 33, Unpooled.buffer(100).writeByte(0x17).writeZero(99));
+
+        cache.add(video);
+
+        assertThat(cache.iterator().next()).isSameAs(video);
+        assertThat(video.refCnt()).isEqualTo(2);
+        assertThat(cache.getBytes()).isEqualTo(100);
+        cache.clear();
+        video.release();
+    }
+}
@@ -0,0 +1,72 @@
+package com.videotest.rtmp.server.stream;
+
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.server.RtmpProperties;
+import com.videotest.rtmp.util.pipeline.RtmpMessageSizeEstimator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * unwritable 인 동안 키프레임이 아닌 비디오는 버리고, 키프레임이 오면 바로 다시 보내는지 확인한다.
+ */
+class PlayerTest {
+
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+    private Player player;
+
+    @BeforeEach
+    void setUp() {
+        // flush 하지 않은 write 가 64 바이트를 넘으면 unwritable
+        channel.config().setMessageSizeEstimator(RtmpMessageSizeEstimator.INSTANCE);
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(32, 64));
+        player = new Player(channel, new RtmpProperties(), new StreamStats());
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void dropsUntilNextKeyFrameWhileUnwritable() {
+        assertThat(send(0x17)).isTrue();
+        assertThat(channel.isWritable()).isFalse();
+
+        assertThat(send(0x27)).isFalse();
+        assertThat(player.isAwaitingKeyFrame()).isTrue();
+
+        // 아직 unwritable 이어도 키프레임은 나가고 그 뒤로 다시 보낸다
+        assertThat(send(0x17)).isTrue();
+        assertThat(player.isAwaitingKeyFrame()).isFalse();
+        channel.flush();
+        assertThat(send(0x27)).isTrue();
+        assertThat(player.getDroppedFrames()).isEqualTo(1);
+    }
+
+    @Test
+    void dropsKeyFrameOverMaxPendingBytes() {
+        RtmpProperties properties = new RtmpProperties();
+        properties.setPlayerMaxPendingBytes(150);
+        player = new Player(channel, properties, new StreamStats());
+
+        assertThat(send(0x17)).isTrue();
+        assertThat(send(0x17)).isTrue();
+        assertThat(send(0x17)).isFalse();
+        assertThat(player.isAwaitingKeyFrame()).isTrue();
+    }
+
+    private boolean send(int control) {
+        RtmpVideoMsg video = new RtmpVideoMsg(0, 33, Unpooled.buffer(100).writeByte(control).writeByte(0x01).writeZero(98));
+        try {
+            return player.send(video);
+        } finally {
+            video.release();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpAckMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 받은 바이트로 보내는 Acknowledgement 와 상대의 ack 로 구한 in flight 바이트를 확인한다.
+ * 카운터는 handshake 바이트부터 센다.
+ */
+class AcknowledgementHandlerTest {
+
+	// S0 + S1 + S2, 상대의 sequence number 는 handshake 부터 센다
+	private static final long HANDSHAKE = 3073;
+
+	private final AcknowledgementHandler acknowledgement = new AcknowledgementHandler(100);
+	private final EmbeddedChannel channel = new EmbeddedChannel(acknowledgement, new RtmpEncoder());
+	private final EmbeddedChannel decoder = new EmbeddedChannel(new RtmpDecoder());
+
+	@AfterEach
+	void tearDown() {
+		channel.finishAndReleaseAll();
+		decoder.finishAndReleaseAll();
+	}
+
+	@Test
+	void acksAfterEachWindow() {
+		receive(60);
+		assertThat(channel.outboundMessages()).isEmpty();
+
+		receive(60);
+		assertThat(readAck()).isEqualTo(HANDSHAKE + 120);
+
+		receive(90);
+		assertThat(channel.outboundMessages()).isEmpty();
+		receive(10);
+		assertThat(readAck()).isEqualTo(HANDSHAKE + 220);
+	}
+
+	@Test
+	void peerWindowReplacesDefault() {
+		acknowledgement.onWindowAckSize(1000);
+		receive(500);
+		assertThat(channel.outboundMessages()).isEmpty();
+		receive(500);
+		assertThat(readAck()).isEqualTo(HANDSHAKE + 1000);
+	}
+
+	@Test
+	void bytesInFlightFollowsPeerAcks() {
+		channel.writeOutbound(Unpooled.wrappedBuffer(new byte[1000]));
+		assertThat(acknowledgement.getBytesSent()).isEqualTo(HANDSHAKE + 1000);
+		assertThat(acknowledgement.getBytesInFlight()).isEqualTo(HANDSHAKE + 1000);
+
+		acknowledgement.onAcknowledgement(HANDSHAKE + 600);
+		assertThat(acknowledgement.getBytesInFlight()).isEqualTo(400);
+
+		acknowledgement.onAcknowledgement(HANDSHAKE + 1000);
+		assertThat(acknowledgement.getBytesInFlight()).isZero();
+	}
+
+	@Test
+	void sequenceNumberWrapsAround() {
+		acknowledgement.onAcknowledgement(0xfffffff0);
+		acknowledgement.onAcknowledgement(0x10);
+		assertThat(acknowledgement.getBytesAcked()).isEqualTo(0x1_0000_0010L);
+	}
+
+	private void receive(int bytes) {
+		channel.writeInbound(Unpooled.wrappedBuffer(new byte[bytes]));
+	}
+
+	private long readAck() {
+		ByteBuf encoded = channel.readOutbound();
+		assertThat(channel.outboundMessages()).isEmpty();
+		decoder.writeInbound(encoded);
+		RtmpAckMsg ack = decoder.readInbound();
+		return ack.getSequnceNumber() & 0xffffffffL;
+	}
+}
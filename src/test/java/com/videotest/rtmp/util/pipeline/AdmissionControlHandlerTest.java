@@ -0,0 +1,95 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.server.ConnectionLimiter;
+import com.videotest.rtmp.server.RtmpProperties;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateHandler;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * IP 별 handshake 한도, handshake timeout 후 자리 반환, handshake 뒤 idle 로 닫는 것을 확인한다.
+ */
+class AdmissionControlHandlerTest {
+
+	private final RtmpProperties properties = new RtmpProperties();
+	private final ConnectionLimiter limiter = new ConnectionLimiter(properties);
+
+	@Test
+	void rejectsOverPerIpLimit() throws Exception {
+		properties.setMaxHandshakesPerIp(1);
+
+		EmbeddedChannel first = connect("10.0.0.1");
+		EmbeddedChannel second = connect("10.0.0.1");
+		EmbeddedChannel other = connect("10.0.0.2");
+
+		assertThat(first.isOpen()).isTrue();
+		assertThat(second.isOpen()).isFalse();
+		assertThat(other.isOpen()).isTrue();
+		assertThat(limiter.getHandshakes()).isEqualTo(2);
+
+		// 닫히면 자리를 돌려주고 같은 IP 가 다시 들어올 수 있다
+		first.close();
+		assertThat(connect("10.0.0.1").isOpen()).isTrue();
+	}
+
+	@Test
+	void handshakeTimeoutReleasesSlot() throws Exception {
+		properties.setHandshakeTimeoutMs(10);
+		EmbeddedChannel channel = connect("10.0.0.1");
+		assertThat(limiter.getHandshakes()).isEqualTo(1);
+
+		for (int i = 0; i < 20 && channel.isOpen(); i++) {
+			Thread.sleep(5);
+			channel.runScheduledPendingTasks();
+		}
+
+		assertThat(channel.isOpen()).isFalse();
+		assertThat(limiter.getHandshakes()).isZero();
+	}
+
+	@Test
+	void closesOnIdleAfterHandshake() throws Exception {
+		properties.setReadIdleTimeoutMs(10);
+		EmbeddedChannel channel = connect("10.0.0.1", new RtmpMessageDispatcher(properties, null));
+
+		channel.pipeline().fireUserEventTriggered(HandShakeHandler.HANDSHAKE_COMPLETE);
+		assertThat(limiter.getHandshakes()).isZero();
+		assertThat(channel.pipeline().get(AdmissionControlHandler.IDLE_HANDLER_NAME)).isInstanceOf(IdleStateHandler.class);
+
+		for (int i = 0; i < 20 && channel.isOpen(); i++) {
+			Thread.sleep(5);
+			channel.runScheduledPendingTasks();
+		}
+
+		assertThat(channel.isOpen()).isFalse();
+	}
+
+	private EmbeddedChannel connect(String ip, ChannelHandler... next) throws Exception {
+		EmbeddedChannel channel = new RemoteChannel(new InetSocketAddress(ip, 50_000));
+		channel.pipeline().addLast(new AdmissionControlHandler(properties, limiter)).addLast(next);
+		// 핸들러를 붙인 뒤 등록해야 channelActive 를 받는다
+		channel.register();
+		return channel;
+	}
+
+	// EmbeddedChannel 의 원격 주소는 InetSocketAddress 가 아니라 IP 별 제한을 받지 않는다
+	private static final class RemoteChannel extends EmbeddedChannel {
+		private final SocketAddress remoteAddress;
+
+		private RemoteChannel(SocketAddress remoteAddress) {
+			super(false, false);
+			this.remoteAddress = remoteAddress;
+		}
+
+		@Override
+		protected SocketAddress remoteAddress0() {
+			return remoteAddress;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * fast start 이후에는 토큰만큼만 미디어를 내보내고, 나머지는 이벤트 루프 타이머로 내보내는지 확인한다.
+ * 제어 메시지는 토큰을 기다리지 않는다.
+ */
+class EgressPacerTest {
+
+	private EmbeddedChannel channel;
+
+	@AfterEach
+	void tearDown() {
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void holdsMediaBeyondFastStart() {
+		// 10 B/s 라 테스트 동안 채워지는 토큰은 없다
+		EgressPacer pacer = new EgressPacer(1.0, 0.08, 1000, 150);
+		channel = new EmbeddedChannel(pacer);
+
+		channel.write(video(100));
+		channel.write(video(100));
+		channel.write(video(100));
+		channel.flush();
+
+		assertThat(channel.outboundMessages()).hasSize(2);
+		assertThat(pacer.getQueuedBytes()).isEqualTo(100);
+	}
+
+	@Test
+	void controlBypassesQueuedMedia() {
+		EgressPacer pacer = new EgressPacer(1.0, 0.08, 1000, 0);
+		channel = new EmbeddedChannel(pacer);
+
+		channel.write(video(100));
+		channel.write(video(100));
+		channel.writeAndFlush(new RtmpChunkMsg(4096));
+
+		assertThat(channel.outboundMessages()).hasSize(1);
+		assertThat(channel.outboundMessages().peek()).isInstanceOf(RtmpChunkMsg.class);
+		assertThat(pacer.getQueuedBytes()).isEqualTo(200);
+	}
+
+	@Test
+	void rawBufferWaitsForQueuedMedia() {
+		EgressPacer pacer = new EgressPacer(1.0, 0.08, 1000, 0);
+		channel = new EmbeddedChannel(pacer);
+
+		channel.write(video(100));
+		channel.write(video(100));
+		ChannelFuture drained = channel.writeAndFlush(Unpooled.EMPTY_BUFFER);
+		assertThat(drained.isDone()).isFalse();
+
+		pacer.stopPacing();
+		channel.runPendingTasks();
+
+		assertThat(drained.isSuccess()).isTrue();
+		assertThat(channel.outboundMessages().peekLast()).isSameAs(Unpooled.EMPTY_BUFFER);
+		assertThat(pacer.getQueuedBytes()).isZero();
+	}
+
+	@Test
+	void queuedMediaKeepsChannelWritable() {
+		EgressPacer pacer = new EgressPacer(1.0, 0.08, 1000, 0);
+		channel = new EmbeddedChannel(pacer);
+		channel.config().setMessageSizeEstimator(RtmpMessageSizeEstimator.INSTANCE);
+		channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(100, 200));
+
+		channel.write(video(100));
+		channel.writeAndFlush(video(1000));
+
+		assertThat(pacer.getQueuedBytes()).isEqualTo(1100);
+		assertThat(channel.isWritable()).isTrue();
+	}
+
+	@Test
+	void timerReleasesQueuedWrites() throws InterruptedException {
+		// 1 MB/s
+		EgressPacer pacer = new EgressPacer(1.0, 8_000, 100, 100);
+		channel = new EmbeddedChannel(pacer);
+
+		channel.write(video(100));
+		channel.write(video(1000));
+		channel.write(video(100));
+		channel.flush();
+		for (int i = 0; i < 10 && pacer.getQueuedBytes() > 0; i++) {
+			Thread.sleep(5);
+			channel.runScheduledPendingTasks();
+		}
+
+		assertThat(channel.outboundMessages()).hasSize(3);
+		assertThat(pacer.getQueuedBytes()).isZero();
+	}
+
+	@Test
+	void bitrateSourceSetsRate() {
+		EgressPacer pacer = new EgressPacer(1.5, 1_000, 100, 0);
+		channel = new EmbeddedChannel(pacer);
+		assertThat(pacer.getRateBytesPerSecond()).isEqualTo(1_000 * 1.5 * 125);
+
+		pacer.setBitrateSource(() -> 4_000);
+		assertThat(pacer.getRateBytesPerSecond()).isEqualTo(4_000 * 1.5 * 125);
+	}
+
+	@Test
+	void closeFailsQueuedWrites() {
+		channel = new EmbeddedChannel(new EgressPacer(1.0, 0.08, 1000, 0));
+		channel.writeAndFlush(video(100));
+		ByteBuf payload = payload(100);
+		ChannelFuture future = channel.writeAndFlush(new RtmpVideoMsg(33, 33, payload));
+		channel.close();
+
+		assertThat(future.isSuccess()).isFalse();
+		assertThat(payload.refCnt()).isZero();
+	}
+
+	private static RtmpVideoMsg video(int size) {
+		return new RtmpVideoMsg(0, 33, payload(size));
+	}
+
+	private static ByteBuf payload(int size) {
+		return Unpooled.buffer(size).writeByte(0x27).writeZero(size - 1);
+	}
+}
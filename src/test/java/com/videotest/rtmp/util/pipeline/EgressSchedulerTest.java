@@ -0,0 +1,140 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * EgressScheduler 가 오디오를 큐에 있던 비디오보다 먼저 보내고, 청크를 섞어도 RtmpDecoder 가 원래 메시지로 읽는지 확인한다.
+ */
+class EgressSchedulerTest {
+
+	private final EgressScheduler scheduler = new EgressScheduler(256);
+	private final EmbeddedChannel channel = new EmbeddedChannel();
+	private final EmbeddedChannel decoder = new EmbeddedChannel(new RtmpDecoder());
+
+	@BeforeEach
+	void setUp() {
+		// 서버와 같이 큐에 있는 메시지를 실제 바이트 수로 잡는다
+		channel.config().setMessageSizeEstimator(RtmpMessageSizeEstimator.INSTANCE);
+		channel.pipeline().addLast(scheduler, new RtmpEncoder(true));
+	}
+
+	@AfterEach
+	void tearDown() {
+		channel.finishAndReleaseAll();
+		decoder.finishAndReleaseAll();
+	}
+
+	@Test
+	void audioOvertakesQueuedKeyFrame() {
+		ByteBuf video = payload(0x17, 2000);
+		ByteBuf audio = payload(0xaf, 50);
+		channel.write(new RtmpVideoMsg(0, 33, video.retainedDuplicate()));
+		channel.write(new RtmpAudioMsg(10, 23, audio.retainedDuplicate()));
+		assertThat(scheduler.getQueuedBytes()).isGreaterThan(2000);
+		channel.flush();
+		channel.runPendingTasks();
+
+		List<RtmpBaseMsg> decoded = decode();
+		assertThat(decoded).extracting(Object::getClass).containsExactly(RtmpAudioMsg.class, RtmpVideoMsg.class);
+		assertPayload(decoded.get(0), audio);
+		assertPayload(decoded.get(1), video);
+		assertThat(scheduler.getQueuedBytes()).isZero();
+		decoded.forEach(ReferenceCountUtil::release);
+		video.release();
+		audio.release();
+	}
+
+	@Test
+	void setChunkSizeWaitsForQueuedVideo() {
+		ByteBuf first = payload(0x17, 1000);
+		ByteBuf second = payload(0x27, 1000);
+		channel.write(new RtmpVideoMsg(0, 33, first.retainedDuplicate()));
+		channel.write(new RtmpChunkMsg(4096));
+		channel.write(new RtmpVideoMsg(33, 33, second.retainedDuplicate()));
+		channel.flush();
+		channel.runPendingTasks();
+
+		List<RtmpBaseMsg> decoded = decode();
+		assertThat(decoded).extracting(Object::getClass)
+				.containsExactly(RtmpVideoMsg.class, RtmpChunkMsg.class, RtmpVideoMsg.class);
+		assertPayload(decoded.get(0), first);
+		assertPayload(decoded.get(2), second);
+		decoded.forEach(ReferenceCountUtil::release);
+		first.release();
+		second.release();
+	}
+
+	@Test
+	void rawBufferWaitsForQueuedVideo() {
+		channel.write(new RtmpVideoMsg(0, 33, payload(0x17, 2000)));
+		ByteBuf marker = Unpooled.wrappedBuffer(new byte[]{(byte) 0xee});
+		ChannelFuture drained = channel.write(marker.retain());
+		assertThat(drained.isDone()).isFalse();
+		channel.flush();
+		channel.runPendingTasks();
+
+		ByteBuf last = null;
+		for (ByteBuf buf; (buf = channel.readOutbound()) != null; ) {
+			if (last != null) {
+				last.release();
+			}
+			last = buf;
+		}
+		assertThat(drained.isSuccess()).isTrue();
+		assertThat(ByteBufUtil.equals(last, marker)).isTrue();
+		last.release();
+		marker.release();
+	}
+
+	@Test
+	void closeFailsQueuedWrites() {
+		ByteBuf video = payload(0x17, 2000);
+		ChannelFuture future = channel.write(new RtmpVideoMsg(0, 33, video));
+		channel.close();
+
+		assertThat(future.isSuccess()).isFalse();
+		assertThat(video.refCnt()).isZero();
+	}
+
+	private List<RtmpBaseMsg> decode() {
+		for (ByteBuf buf; (buf = channel.readOutbound()) != null; ) {
+			decoder.writeInbound(buf);
+		}
+		List<RtmpBaseMsg> messages = new ArrayList<>();
+		for (Object msg; (msg = decoder.readInbound()) != null; ) {
+			messages.add((RtmpBaseMsg) msg);
+		}
+		return messages;
+	}
+
+	private static void assertPayload(RtmpBaseMsg msg, ByteBuf expected) {
+		assertThat(ByteBufUtil.equals(((RtmpMediaMsg) msg).getPayload(), expected)).isTrue();
+	}
+
+	private static ByteBuf payload(int control, int size) {
+		ByteBuf payload = ByteBufAllocator.DEFAULT.buffer(size).writeByte(control).writeByte(0x01);
+		for (int i = 2; i < size; i++) {
+			payload.writeByte(i);
+		}
+		return payload;
+	}
+}
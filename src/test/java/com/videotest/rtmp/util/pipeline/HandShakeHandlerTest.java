@@ -0,0 +1,139 @@
+package com.videotest.rtmp.util.pipeline;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * simple / digest handshake 응답을 클라이언트 입장에서 검증한다.
+ * c0 + c1, c2 가 나뉘어 와도 다 모일 때까지 기다리고, c2 뒤의 바이트는 다음 핸들러로 넘기는지 확인한다.
+ */
+class HandShakeHandlerTest {
+
+	private static final int HANDSHAKE_SIZE = 1536;
+	private static final byte[] KEY_SUFFIX = {
+			(byte) 0xF0, (byte) 0xEE, (byte) 0xC2, (byte) 0x4A, (byte) 0x80, (byte) 0x68, (byte) 0xBE, (byte) 0xE8,
+			(byte) 0x2E, (byte) 0x00, (byte) 0xD0, (byte) 0xD1, (byte) 0x02, (byte) 0x9E, (byte) 0x7E, (byte) 0x57,
+			(byte) 0x6E, (byte) 0xEC, (byte) 0x5D, (byte) 0x2D, (byte) 0x29, (byte) 0x80, (byte) 0x6F, (byte) 0xAB,
+			(byte) 0x93, (byte) 0xB8, (byte) 0xE6, (byte) 0x36, (byte) 0xCF, (byte) 0xEB, (byte) 0x31, (byte) 0xAE,
+	};
+	private static final byte[] FP_KEY = "Genuine Adobe Flash Player 001".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FMS_KEY = "Genuine Adobe Flash Media Server 001".getBytes(StandardCharsets.US_ASCII);
+
+	@Test
+	void simpleHandshakeEchoesC1() {
+		byte[] c1 = randomBytes(HANDSHAKE_SIZE);
+		Arrays.fill(c1, 4, 8, (byte) 0);
+
+		byte[] s0s1s2 = handshake(c1);
+
+		assertThat(s0s1s2[0]).isEqualTo((byte) 0x03);
+		assertThat(Arrays.copyOfRange(s0s1s2, 1 + HANDSHAKE_SIZE, s0s1s2.length)).isEqualTo(c1);
+	}
+
+	@Test
+	void digestHandshakeSignsS1AndS2() throws Exception {
+		for (int scheme = 0; scheme <= 1; scheme++) {
+			byte[] c1 = randomBytes(HANDSHAKE_SIZE);
+			c1[4] = 9; // flash player version
+			int c1DigestOffset = digestOffset(c1, scheme);
+			byte[] c1Digest = hmac(FP_KEY, withoutDigest(c1, c1DigestOffset));
+			System.arraycopy(c1Digest, 0, c1, c1DigestOffset, 32);
+
+			byte[] s0s1s2 = handshake(c1);
+
+			byte[] s1 = Arrays.copyOfRange(s0s1s2, 1, 1 + HANDSHAKE_SIZE);
+			int s1DigestOffset = digestOffset(s1, scheme);
+			assertThat(Arrays.copyOfRange(s1, s1DigestOffset, s1DigestOffset + 32))
+					.isEqualTo(hmac(FMS_KEY, withoutDigest(s1, s1DigestOffset)));
+
+			byte[] s2 = Arrays.copyOfRange(s0s1s2, 1 + HANDSHAKE_SIZE, s0s1s2.length);
+			byte[] s2Key = hmac(concat(FMS_KEY, KEY_SUFFIX), c1Digest);
+			assertThat(Arrays.copyOfRange(s2, HANDSHAKE_SIZE - 32, HANDSHAKE_SIZE))
+					.isEqualTo(hmac(s2Key, Arrays.copyOf(s2, HANDSHAKE_SIZE - 32)));
+		}
+	}
+
+	@Test
+	void waitsForWholeC0C1AndC2() {
+		EmbeddedChannel channel = new EmbeddedChannel(new HandShakeHandler());
+		try {
+			byte[] c1 = randomBytes(HANDSHAKE_SIZE);
+			Arrays.fill(c1, 4, 8, (byte) 0);
+			ByteBuf c0c1 = Unpooled.buffer(1 + HANDSHAKE_SIZE).writeByte(0x03).writeBytes(c1);
+
+			channel.writeInbound(c0c1.readRetainedSlice(1000));
+			assertThat((Object) channel.readOutbound()).isNull();
+			channel.writeInbound(c0c1);
+			ByteBuf s0s1s2 = channel.readOutbound();
+			assertThat(s0s1s2.readableBytes()).isEqualTo(HandShakeHandler.HANDSHAKE_BYTES);
+			s0s1s2.release();
+
+			channel.writeInbound(Unpooled.buffer().writeZero(1000));
+			assertThat(channel.pipeline().get(HandShakeHandler.class)).isNotNull();
+			assertThat((Object) channel.readInbound()).isNull();
+
+			// c2 의 나머지와 함께 온 첫 청크 바이트는 RtmpDecoder 로 넘어가야 한다
+			channel.writeInbound(Unpooled.buffer().writeZero(HANDSHAKE_SIZE - 1000).writeBytes(new byte[]{1, 2, 3}));
+			assertThat(channel.pipeline().get(HandShakeHandler.class)).isNull();
+			ByteBuf rest = channel.readInbound();
+			assertThat(ByteBufUtil.getBytes(rest)).isEqualTo(new byte[]{1, 2, 3});
+			rest.release();
+		} finally {
+			channel.finishAndReleaseAll();
+		}
+	}
+
+	private static byte[] handshake(byte[] c1) {
+		EmbeddedChannel channel = new EmbeddedChannel(new HandShakeHandler());
+		try {
+			channel.writeInbound(Unpooled.buffer(1 + HANDSHAKE_SIZE).writeByte(0x03).writeBytes(c1));
+			ByteBuf s0s1s2 = channel.readOutbound();
+			byte[] bytes = new byte[s0s1s2.readableBytes()];
+			s0s1s2.readBytes(bytes);
+			s0s1s2.release();
+			assertThat(bytes).hasSize(1 + HANDSHAKE_SIZE * 2);
+			return bytes;
+		} finally {
+			channel.finishAndReleaseAll();
+		}
+	}
+
+	private static int digestOffset(byte[] buf, int scheme) {
+		int base = scheme == 0 ? 8 : 772;
+		int sum = (buf[base] & 0xff) + (buf[base + 1] & 0xff) + (buf[base + 2] & 0xff) + (buf[base + 3] & 0xff);
+		return sum % 728 + base + 4;
+	}
+
+	private static byte[] withoutDigest(byte[] buf, int offset) {
+		return concat(Arrays.copyOf(buf, offset), Arrays.copyOfRange(buf, offset + 32, buf.length));
+	}
+
+	private static byte[] hmac(byte[] key, byte[] data) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(data);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] joined = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, joined, a.length, b.length);
+		return joined;
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,77 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpUserControlMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * PingRequest 응답과 PingResponse 로 잰 RTT 를 확인한다.
+ * ping 은 EgressPacer 큐를 거치지 않고 바로 인코딩되어 나가야 한다.
+ */
+class PingHandlerTest {
+
+	private final PingHandler ping = new PingHandler(0);
+	private final EmbeddedChannel channel = new EmbeddedChannel(ping);
+
+	@AfterEach
+	void tearDown() {
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void answersPingRequest() {
+		channel.writeInbound(new RtmpUserControlMsg(RtmpUserControlMsg.PING_REQUEST, 1234));
+
+		RtmpUserControlMsg response = channel.readOutbound();
+		assertThat(response.getEventType()).isEqualTo(RtmpUserControlMsg.PING_RESPONSE);
+		assertThat(response.getEventData()).isEqualTo(1234);
+		assertThat(channel.inboundMessages()).isEmpty();
+	}
+
+	@Test
+	void measuresRttFromMatchingResponse() {
+		ping.sendPing();
+		RtmpUserControlMsg request = channel.readOutbound();
+		assertThat(request.getEventType()).isEqualTo(RtmpUserControlMsg.PING_REQUEST);
+
+		channel.writeInbound(new RtmpUserControlMsg(RtmpUserControlMsg.PING_RESPONSE, request.getEventData() + 1));
+		assertThat(ping.getMinRttMs()).isEqualTo(-1);
+
+		channel.writeInbound(new RtmpUserControlMsg(RtmpUserControlMsg.PING_RESPONSE, request.getEventData()));
+		assertThat(ping.getMinRttMs()).isGreaterThanOrEqualTo(0);
+		assertThat(ping.getRttMs()).isEqualTo((double) ping.getMinRttMs());
+		assertThat(channel.inboundMessages()).isEmpty();
+	}
+
+	@Test
+	void passesOtherUserControlEvents() {
+		channel.writeInbound(new RtmpUserControlMsg(RtmpUserControlMsg.STREAM_BEGIN, 1));
+
+		RtmpUserControlMsg streamBegin = channel.readInbound();
+		assertThat(streamBegin.getEventType()).isEqualTo(RtmpUserControlMsg.STREAM_BEGIN);
+	}
+
+	@Test
+	void pingBypassesPacedMedia() {
+		PingHandler paced = new PingHandler(0);
+		EgressPacer pacer = new EgressPacer(1.0, 0.08, 1000, 0);
+		EmbeddedChannel pipeline = new EmbeddedChannel(new RtmpEncoder(), paced, pacer);
+		pipeline.writeAndFlush(new RtmpVideoMsg(0, 33, Unpooled.buffer(100).writeByte(0x17).writeZero(99)));
+		assertThat(pacer.getQueuedBytes()).isEqualTo(100);
+		assertThat((Object) pipeline.readOutbound()).isNull();
+
+		paced.sendPing();
+		ByteBuf request = pipeline.readOutbound();
+		assertThat(request).isNotNull();
+		// fmt0 csid 2 헤더 12 바이트 + 이벤트 타입 2 바이트 + timestamp 4 바이트
+		assertThat(request.readableBytes()).isEqualTo(18);
+		request.release();
+		pipeline.finishAndReleaseAll();
+	}
+}
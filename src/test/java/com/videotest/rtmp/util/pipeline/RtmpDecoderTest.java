@@ -0,0 +1,74 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 직접 만든 청크로 RtmpDecoder 의 timestamp 계산을 확인한다.
+ * fmt3 로 시작하는 새 메시지는 직전 헤더의 delta 를 더하고, fmt0 뒤의 delta 는 fmt0 의 timestamp 이다.
+ */
+class RtmpDecoderTest {
+
+	private static final int CSID = 4;
+
+	private final EmbeddedChannel decoder = new EmbeddedChannel(new RtmpDecoder());
+
+	@AfterEach
+	void tearDown() {
+		decoder.finishAndReleaseAll();
+	}
+
+	@Test
+	void fmt3AfterFmt0AddsFmt0Timestamp() {
+		ByteBuf in = Unpooled.buffer();
+		writeFmt0(in, 1000);
+		writeFmt3(in);
+
+		assertThat(decodeTimestamps(in)).containsExactly(1000L, 2000L);
+	}
+
+	@Test
+	void fmt3AfterFmt2ReusesDelta() {
+		ByteBuf in = Unpooled.buffer();
+		writeFmt0(in, 1000);
+		in.writeByte(0x80 | CSID).writeMedium(20);
+		writeAudioPayload(in);
+		writeFmt3(in);
+
+		assertThat(decodeTimestamps(in)).containsExactly(1000L, 1020L, 1040L);
+	}
+
+	private List<Long> decodeTimestamps(ByteBuf in) {
+		decoder.writeInbound(in);
+		List<Long> timestamps = new ArrayList<>();
+		for (RtmpAudioMsg msg; (msg = decoder.readInbound()) != null; ) {
+			timestamps.add(msg.getTimeStamp());
+			msg.release();
+		}
+		return timestamps;
+	}
+
+	private static void writeFmt0(ByteBuf in, int timestamp) {
+		in.writeByte(CSID).writeMedium(timestamp).writeMedium(2).writeByte(0x08).writeIntLE(1);
+		writeAudioPayload(in);
+	}
+
+	private static void writeFmt3(ByteBuf in) {
+		in.writeByte(0xc0 | CSID);
+		writeAudioPayload(in);
+	}
+
+	// AAC raw 프레임
+	private static void writeAudioPayload(ByteBuf in) {
+		in.writeByte(0xaf).writeByte(0x01);
+	}
+}
@@ -0,0 +1,406 @@
+package com.videotest.rtmp.util.pipeline;
+
+import com.videotest.rtmp.chunk.message.RtmpAMF0CmdMsg;
+import com.videotest.rtmp.chunk.message.RtmpAMF0DataMsg;
+import com.videotest.rtmp.chunk.message.RtmpAggregateMsg;
+import com.videotest.rtmp.chunk.message.RtmpAudioMsg;
+import com.videotest.rtmp.chunk.message.RtmpBaseMsg;
+import com.videotest.rtmp.chunk.message.RtmpChunkMsg;
+import com.videotest.rtmp.chunk.message.RtmpMediaMsg;
+import com.videotest.rtmp.chunk.message.RtmpPeerBandWidthMsg;
+import com.videotest.rtmp.chunk.message.RtmpUserControlMsg;
+import com.videotest.rtmp.chunk.message.RtmpVideoMsg;
+import com.videotest.rtmp.chunk.message.RtmpWinAckMsg;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * RtmpEncoder 가 고른 fmt 0/1/2/3 헤더를 RtmpDecoder 가 같은 timestamp 와 payload 로 읽는지 확인한다.
+ * Aggregate 는 원래 메시지들로 나뉘어 읽혀야 한다.
+ * 제어 메시지와 AMF 메시지도 정해진 csid 와 맞는 길이로 써서 뒤따르는 메시지가 어긋나지 않아야 한다.
+ * fmt0 뒤의 timestamp 는 우리 디코더가 아니라 스펙대로 헤더를 읽는 specTimestamps 로도 확인한다.
+ */
+class RtmpEncoderRoundTripTest {
+
+	private final EmbeddedChannel encoder = new EmbeddedChannel(new RtmpEncoder());
+	private final EmbeddedChannel decoder = new EmbeddedChannel(new RtmpDecoder());
+
+	@AfterEach
+	void tearDown() {
+		encoder.finishAndReleaseAll();
+		decoder.finishAndReleaseAll();
+	}
+
+	@Test
+	void sameSizeAndDeltaUsesFmt3() {
+		assertThat(roundTripVideo(0, 100)).isEqualTo(0);
+		assertThat(roundTripVideo(33, 100)).isEqualTo(2);
+		assertThat(roundTripVideo(66, 100)).isEqualTo(3);
+		assertThat(roundTripVideo(99, 100)).isEqualTo(3);
+	}
+
+	@Test
+	void sizeChangeUsesFmt1() {
+		roundTripVideo(0, 100);
+		roundTripVideo(33, 100);
+		assertThat(roundTripVideo(66, 120)).isEqualTo(1);
+		assertThat(roundTripVideo(99, 120)).isEqualTo(3);
+	}
+
+	@Test
+	void deltaChangeUsesFmt2() {
+		roundTripVideo(0, 100);
+		roundTripVideo(33, 100);
+		roundTripVideo(66, 100);
+		assertThat(roundTripVideo(100, 100)).isEqualTo(2);
+		assertThat(roundTripVideo(134, 100)).isEqualTo(3);
+	}
+
+	@Test
+	void timestampGoingBackUsesFmt0() {
+		roundTripVideo(1000, 100);
+		assertThat(roundTripVideo(500, 100)).isEqualTo(0);
+	}
+
+	@Test
+	void fmt0TimestampIsDeltaForFollowingMessage() {
+		// 스펙대로라면 fmt0(1000) 뒤의 fmt3 은 2000 이므로 같은 1000 은 fmt3 으로 보낼 수 없다
+		assertThat(specTimestamps(encodeVideos(1000, 1000, 2000, 3000))).containsExactly(1000L, 1000L, 2000L, 3000L);
+	}
+
+	@Test
+	void fmt0AfterRewindIsDeltaForFollowingMessage() {
+		assertThat(specTimestamps(encodeVideos(5000, 500, 1000, 1000))).containsExactly(5000L, 500L, 1000L, 1000L);
+	}
+
+	@Test
+	void interleavedAudioKeepsStateForEachChunkStream() {
+		for (int i = 0; i < 10; i++) {
+			long videoTimestamp = i * 33L;
+			long audioTimestamp = i * 23L;
+			int videoFmt = roundTrip(new RtmpVideoMsg(videoTimestamp, 0, payload(0x27, 300)), videoTimestamp);
+			int audioFmt = roundTrip(new RtmpAudioMsg(audioTimestamp, 0, payload(0x2f, 50)), audioTimestamp);
+			if (i >= 2) {
+				assertThat(videoFmt).isEqualTo(3);
+				assertThat(audioFmt).isEqualTo(3);
+			}
+		}
+	}
+
+	@Test
+	void multiChunkMessagesAfterSetChunkSize() {
+		roundTripVideo(0, 1000);
+		roundTripVideo(40, 1000);
+
+		encoder.writeOutbound(new RtmpChunkMsg(4096));
+		List<RtmpBaseMsg> decoded = decode(readEncoded());
+		assertThat(decoded).hasSize(1);
+		assertThat(((RtmpChunkMsg) decoded.get(0)).getChunkSize()).isEqualTo(4096);
+
+		assertThat(roundTripVideo(80, 10_000)).isEqualTo(1);
+		assertThat(roundTripVideo(120, 10_000)).isEqualTo(3);
+	}
+
+	@Test
+	void extendedTimestamp() {
+		long base = 0xffffffL - 40;
+		assertThat(roundTripVideo(base, 500)).isEqualTo(0);
+		// 중간에 0xffffff 를 넘는다, delta 는 extended 가 아니므로 fmt3 로 이어진다
+		assertThat(roundTripVideo(base + 33, 500)).isEqualTo(2);
+		assertThat(roundTripVideo(base + 66, 500)).isEqualTo(3);
+		assertThat(roundTripVideo(base + 99, 500)).isEqualTo(3);
+
+		EmbeddedChannel freshEncoder = new EmbeddedChannel(new RtmpEncoder());
+		EmbeddedChannel freshDecoder = new EmbeddedChannel(new RtmpDecoder());
+		try {
+			// 절대 timestamp 가 extended 인 fmt0 뒤에도 delta 가 작으면 extended 없이 fmt2, fmt3 로 줄어든다
+			// 여러 청크로 나뉘므로 fmt0 메시지의 이어지는 청크에는 extended timestamp 가 붙는다
+			long extended = 0x1000000L;
+			for (int i = 0; i < 3; i++) {
+				long timestamp = extended + i * 33L;
+				RtmpVideoMsg msg = new RtmpVideoMsg(timestamp, 0, payload(0x27, 500));
+				ByteBuf expected = msg.getPayload().copy();
+				freshEncoder.writeOutbound(msg);
+				ByteBuf encoded = drain(freshEncoder);
+				assertThat(fmt(encoded)).isEqualTo(i == 0 ? 0 : (i == 1 ? 2 : 3));
+				freshDecoder.writeInbound(encoded);
+				RtmpVideoMsg decoded = freshDecoder.readInbound();
+				assertThat(decoded.getTimeStamp()).isEqualTo(timestamp);
+				assertThat(ByteBufUtil.equals(decoded.getPayload(), expected)).isTrue();
+				decoded.release();
+				expected.release();
+			}
+		} finally {
+			freshEncoder.finishAndReleaseAll();
+			freshDecoder.finishAndReleaseAll();
+		}
+	}
+
+	@Test
+	void amfCommandsOnSameChunkStream() {
+		List<Object> first = Arrays.asList("_result", 1.0, null, "NetConnection.Connect.Success");
+		List<Object> second = Arrays.asList("_result", 2.0, null, "NetConnection.Connect.Success");
+		List<Object> large = new ArrayList<>(Arrays.asList("onStatus", 0.0, null));
+		large.add("x".repeat(500));
+
+		assertThat(roundTripCommand(first)).isEqualTo(0);
+		// 길이와 type, timestamp 가 같으면 헤더가 basic header 하나로 줄어든다
+		assertThat(roundTripCommand(second)).isEqualTo(3);
+		assertThat(roundTripCommand(large)).isEqualTo(1);
+	}
+
+	@Test
+	void controlMessagesOnChunkStream2() {
+		encoder.writeOutbound(new RtmpWinAckMsg(2_500_000));
+		ByteBuf encoded = readEncoded();
+		assertThat(csid(encoded)).isEqualTo(2);
+		// fmt0 헤더 12 바이트 + payload 4 바이트
+		assertThat(encoded.readableBytes()).isEqualTo(16);
+		encodeInto(encoded, new RtmpPeerBandWidthMsg(2_500_000, (byte) 2));
+		encodeInto(encoded, new RtmpUserControlMsg((short) 6, 1234));
+		// 제어 메시지의 길이가 틀리면 뒤따르는 비디오 헤더를 잘못 읽는다
+		encodeInto(encoded, new RtmpVideoMsg(0, 0, payload(0x17, 100)));
+
+		List<RtmpBaseMsg> decoded = decode(encoded);
+		try {
+			assertThat(decoded).extracting(Object::getClass).containsExactly(RtmpWinAckMsg.class,
+					RtmpPeerBandWidthMsg.class, RtmpUserControlMsg.class, RtmpVideoMsg.class);
+			assertThat(((RtmpWinAckMsg) decoded.get(0)).getAcknowledgementSize()).isEqualTo(2_500_000);
+			RtmpPeerBandWidthMsg peerBandWidth = (RtmpPeerBandWidthMsg) decoded.get(1);
+			assertThat(peerBandWidth.getAckSize()).isEqualTo(2_500_000);
+			assertThat(peerBandWidth.getLimitType()).isEqualTo((byte) 2);
+			RtmpUserControlMsg userControl = (RtmpUserControlMsg) decoded.get(2);
+			assertThat(userControl.getEventType()).isEqualTo((short) 6);
+			assertThat(userControl.getEventData()).isEqualTo(1234);
+			assertThat(((RtmpVideoMsg) decoded.get(3)).getPayloadLength()).isEqualTo(100);
+		} finally {
+			decoded.forEach(ReferenceCountUtil::release);
+		}
+	}
+
+	@Test
+	void amfCommandAndDataOnOwnChunkStreams() {
+		List<Object> command = Arrays.asList("_result", 2.0, null, 1.0);
+		List<Object> data = Arrays.asList("onStatus", "x".repeat(300));
+
+		encoder.writeOutbound(new RtmpAMF0CmdMsg(0, command));
+		ByteBuf encoded = readEncoded();
+		assertThat(csid(encoded)).isEqualTo(3);
+		encoder.writeOutbound(new RtmpAMF0DataMsg(0, data));
+		ByteBuf encodedData = readEncoded();
+		// 128 바이트 청크로 나뉘고 이어지는 청크도 csid 5 의 fmt3 이다
+		assertThat(csid(encodedData)).isEqualTo(5);
+		assertThat(encodedData.getUnsignedByte(encodedData.readerIndex() + 12 + 128)).isEqualTo((short) (0xc0 | 5));
+		encoded.writeBytes(encodedData);
+		encodedData.release();
+
+		List<RtmpBaseMsg> decoded = decode(encoded);
+		assertThat(decoded).hasSize(2);
+		assertThat(((RtmpAMF0CmdMsg) decoded.get(0)).getObjectList()).containsExactlyElementsOf(command);
+		assertThat(((RtmpAMF0DataMsg) decoded.get(1)).getDataList()).containsExactlyElementsOf(data);
+	}
+
+	@Test
+	void aggregateSplitsIntoOriginalMessages() {
+		List<RtmpMediaMsg> messages = List.of(
+				new RtmpVideoMsg(0, 0, payload(0x17, 3000)),
+				new RtmpAudioMsg(10, 0, payload(0x2f, 50)),
+				new RtmpVideoMsg(33, 0, payload(0x27, 800)),
+				new RtmpAudioMsg(33, 0, payload(0x2f, 50)),
+				new RtmpVideoMsg(66, 0, payload(0x27, 900)));
+		List<ByteBuf> expected = new ArrayList<>();
+		for (RtmpMediaMsg msg : messages) {
+			expected.add(msg.getPayload().copy());
+		}
+
+		List<RtmpBaseMsg> packed = RtmpAggregateMsg.pack(ByteBufAllocator.DEFAULT, messages, 64 * 1024);
+		assertThat(packed).hasSize(1);
+		assertThat(((RtmpAggregateMsg) packed.get(0)).getLastVideoTimestamp()).isEqualTo(66);
+
+		encoder.writeOutbound(packed.get(0));
+		List<RtmpBaseMsg> decoded = decode(readEncoded());
+		try {
+			assertThat(decoded).hasSize(messages.size());
+			for (int i = 0; i < messages.size(); i++) {
+				RtmpMediaMsg decodedMsg = (RtmpMediaMsg) decoded.get(i);
+				assertThat(decodedMsg.getClass()).isEqualTo(messages.get(i).getClass());
+				assertThat(decodedMsg.getTimeStamp()).isEqualTo(messages.get(i).getTimeStamp());
+				assertThat(ByteBufUtil.equals(decodedMsg.getPayload(), expected.get(i))).isTrue();
+			}
+		} finally {
+			decoded.forEach(ReferenceCountUtil::release);
+			expected.forEach(ByteBuf::release);
+		}
+	}
+
+	@Test
+	void aggregateRebasesSubMessageTimestamps() {
+		// 첫 sub-message 가 0 이어도 Aggregate 의 timestamp 1000 에 맞춰진다
+		ByteBuf payload = ByteBufAllocator.DEFAULT.buffer();
+		for (int timestamp : new int[]{0, 40}) {
+			ByteBuf data = payload(0x27, 100);
+			payload.writeByte(0x09).writeMedium(100).writeMedium(timestamp).writeByte(0).writeMedium(0)
+					.writeBytes(data).writeInt(RtmpAggregateMsg.SUB_HEADER_LENGTH + 100);
+			data.release();
+		}
+
+		encoder.writeOutbound(new RtmpAggregateMsg(1000, payload, 40));
+		List<RtmpBaseMsg> decoded = decode(readEncoded());
+		assertThat(decoded).extracting(msg -> ((RtmpMediaMsg) msg).getTimeStamp()).containsExactly(1000L, 1040L);
+		decoded.forEach(ReferenceCountUtil::release);
+	}
+
+	@Test
+	void packLeavesLargeMessagesAlone() {
+		List<RtmpMediaMsg> messages = List.of(
+				new RtmpVideoMsg(0, 0, payload(0x17, 5000)),
+				new RtmpVideoMsg(33, 0, payload(0x27, 400)),
+				new RtmpVideoMsg(66, 0, payload(0x27, 400)),
+				new RtmpVideoMsg(99, 0, payload(0x27, 400)));
+
+		List<RtmpBaseMsg> packed = RtmpAggregateMsg.pack(ByteBufAllocator.DEFAULT, messages, 1000);
+		assertThat(packed).extracting(Object::getClass)
+				.containsExactly(RtmpVideoMsg.class, RtmpAggregateMsg.class, RtmpVideoMsg.class);
+		packed.forEach(ReferenceCountUtil::release);
+	}
+
+	// 한 청크에 들어가는 비디오를 차례로 인코딩해 이어붙인다
+	private ByteBuf encodeVideos(long... timestamps) {
+		ByteBuf encoded = ByteBufAllocator.DEFAULT.buffer();
+		for (long timestamp : timestamps) {
+			encoder.writeOutbound(new RtmpVideoMsg(timestamp, 0, payload(0x27, 100)));
+			ByteBuf msg = readEncoded();
+			encoded.writeBytes(msg);
+			msg.release();
+		}
+		return encoded;
+	}
+
+	/**
+	 * RTMP 스펙(5.3.1.2)대로 헤더만 읽어 메시지마다 timestamp 를 구한다. csid 하나, 한 청크짜리 메시지만 다룬다.
+	 * fmt0 은 절대값이자 다음 fmt3 의 delta, fmt1/2 는 delta, fmt3 은 직전 delta 를 더한다.
+	 */
+	private static List<Long> specTimestamps(ByteBuf encoded) {
+		List<Long> timestamps = new ArrayList<>();
+		long timestamp = 0;
+		long delta = 0;
+		int length = 0;
+		try {
+			while (encoded.isReadable()) {
+				int fmt = encoded.readUnsignedByte() >> 6;
+				if (fmt <= 2) {
+					long field = encoded.readUnsignedMedium();
+					if (fmt <= 1) {
+						length = encoded.readUnsignedMedium();
+						encoded.skipBytes(fmt == 0 ? 5 : 1);
+					}
+					if (field == 0xffffff) {
+						field = encoded.readUnsignedInt();
+					}
+					delta = field;
+					timestamp = fmt == 0 ? field : timestamp + field;
+				} else {
+					timestamp += delta;
+				}
+				timestamps.add(timestamp);
+				encoded.skipBytes(length);
+			}
+		} finally {
+			encoded.release();
+		}
+		return timestamps;
+	}
+
+	private int roundTripVideo(long timestamp, int size) {
+		return roundTrip(new RtmpVideoMsg(timestamp, 0, payload(0x27, size)), timestamp);
+	}
+
+	/**
+	 * @return 메시지 첫 청크의 fmt
+	 */
+	private int roundTrip(RtmpMediaMsg msg, long timestamp) {
+		ByteBuf expected = msg.getPayload().copy();
+		try {
+			encoder.writeOutbound(msg);
+			ByteBuf encoded = readEncoded();
+			int fmt = fmt(encoded);
+			List<RtmpBaseMsg> decoded = decode(encoded);
+			assertThat(decoded).hasSize(1);
+			RtmpMediaMsg decodedMsg = (RtmpMediaMsg) decoded.get(0);
+			assertThat(decodedMsg.getClass()).isEqualTo(msg.getClass());
+			assertThat(decodedMsg.getTimeStamp()).isEqualTo(timestamp);
+			assertThat(ByteBufUtil.equals(decodedMsg.getPayload(), expected)).isTrue();
+			decoded.forEach(ReferenceCountUtil::release);
+			return fmt;
+		} finally {
+			expected.release();
+		}
+	}
+
+	private int roundTripCommand(List<Object> objects) {
+		encoder.writeOutbound(new RtmpAMF0CmdMsg(0, objects));
+		ByteBuf encoded = readEncoded();
+		int fmt = fmt(encoded);
+		List<RtmpBaseMsg> decoded = decode(encoded);
+		assertThat(decoded).hasSize(1);
+		assertThat(((RtmpAMF0CmdMsg) decoded.get(0)).getObjectList()).containsExactlyElementsOf(objects);
+		return fmt;
+	}
+
+	private void encodeInto(ByteBuf encoded, RtmpBaseMsg msg) {
+		encoder.writeOutbound(msg);
+		ByteBuf next = readEncoded();
+		encoded.writeBytes(next);
+		next.release();
+	}
+
+	private ByteBuf readEncoded() {
+		return drain(encoder);
+	}
+
+	// 메시지 하나를 인코딩한 버퍼들(헤더, 본문)을 하나로 이어붙인다
+	private static ByteBuf drain(EmbeddedChannel channel) {
+		ByteBuf encoded = ByteBufAllocator.DEFAULT.buffer();
+		for (ByteBuf buf; (buf = channel.readOutbound()) != null; ) {
+			encoded.writeBytes(buf);
+			buf.release();
+		}
+		return encoded;
+	}
+
+	private List<RtmpBaseMsg> decode(ByteBuf encoded) {
+		decoder.writeInbound(encoded);
+		List<RtmpBaseMsg> messages = new ArrayList<>();
+		for (Object msg; (msg = decoder.readInbound()) != null; ) {
+			messages.add((RtmpBaseMsg) msg);
+		}
+		return messages;
+	}
+
+	private static int csid(ByteBuf encoded) {
+		return encoded.getUnsignedByte(encoded.readerIndex()) & 0x3f;
+	}
+
+	private static int fmt(ByteBuf encoded) {
+		return encoded.getUnsignedByte(encoded.readerIndex()) >> 6;
+	}
+
+	private static ByteBuf payload(int control, int size) {
+		ByteBuf payload = ByteBufAllocator.DEFAULT.buffer(size).writeByte(control).writeByte(0x01);
+		for (int i = 2; i < size; i++) {
+			payload.writeByte(i);
+		}
+		return payload;
+	}
+}